@@ -0,0 +1,146 @@
+package mas.cv4;
+
+import jade.content.ContentElement;
+import jade.content.ContentManager;
+import jade.content.lang.Codec;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.content.onto.basic.Result;
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import mas.cv4.onto.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the SL codec with the binary codec on the typical content of each message of one trade (see
+ * ContentBenchmark for the larger transactions and proposals). The size of the encoded content is printed when the
+ * benchmark is set up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"SellMeBooks", "ChooseFrom", "Chosen", "MakeTransaction", "AgentInfo"})
+    String content;
+
+    @Param({"fipa-sl", BinaryCodec.NAME})
+    String language;
+
+    Ontology onto = BookOntology.getInstance();
+    ContentManager cm;
+    ContentElement element;
+    ACLMessage filled;
+
+    @Setup
+    public void setup() throws Exception {
+        cm = new ContentManager();
+        cm.registerLanguage(new SLCodec());
+        cm.registerLanguage(new BinaryCodec());
+        cm.registerOntology(onto);
+
+        element = createContent(content);
+        filled = newMessage();
+        cm.fillContent(filled, element);
+
+        int size = filled.hasByteSequenceContent() ? filled.getByteSequenceContent().length : filled.getContent().length();
+        System.out.printf("%n%s in %s: %d bytes%n", content, language, size);
+    }
+
+    private ACLMessage newMessage() {
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.setLanguage(language);
+        msg.setOntology(onto.getName());
+        return msg;
+    }
+
+    @Benchmark
+    public ACLMessage fill() throws Codec.CodecException, OntologyException {
+        ACLMessage msg = newMessage();
+        cm.fillContent(msg, element);
+        return msg;
+    }
+
+    @Benchmark
+    public ContentElement extract() throws Codec.CodecException, OntologyException {
+        return cm.extractContent(filled);
+    }
+
+    //the content of one of the messages sent during a trade
+    static ContentElement createContent(String name) {
+
+        AID env = new AID("environment@benchmark", AID.ISGUID);
+        AID trader = new AID("trader1@benchmark", AID.ISGUID);
+
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+        for (String title : Constants.getBooknames()) {
+            if (books.size() == 5)
+                break;
+            BookInfo bi = new BookInfo();
+            bi.setBookName(title);
+            bi.setBookID(1000 + books.size());
+            books.add(bi);
+        }
+
+        ArrayList<Offer> offers = new ArrayList<Offer>();
+        for (int i = 0; i < 3; i++) {
+            Offer o = new Offer();
+            o.setMoney(120.5 * (i + 1));
+            o.setBooks(new ArrayList<BookInfo>(books.subList(0, i + 1)));
+            offers.add(o);
+        }
+
+        if (name.equals("SellMeBooks")) {
+            SellMeBooks smb = new SellMeBooks();
+            smb.setBooks(books);
+            return new Action(trader, smb);
+        }
+
+        if (name.equals("ChooseFrom")) {
+            ChooseFrom cf = new ChooseFrom();
+            cf.setWillSell(books);
+            cf.setOffers(offers);
+            return cf;
+        }
+
+        if (name.equals("Chosen")) {
+            Chosen ch = new Chosen();
+            ch.setOffer(offers.get(1));
+            return ch;
+        }
+
+        if (name.equals("MakeTransaction")) {
+            MakeTransaction mt = Population.newTransaction("trader1", "trader2",
+                    new ArrayList<BookInfo>(books.subList(0, 2)), 0, new ArrayList<BookInfo>(), 241);
+            mt.setTradeConversationID("trader2-1-1444000000000");
+            return new Action(env, mt);
+        }
+
+        if (name.equals("AgentInfo")) {
+            ArrayList<Goal> goals = new ArrayList<Goal>();
+            for (BookInfo bi : books) {
+                Goal g = new Goal();
+                g.setBook(bi);
+                g.setValue(50 + bi.getBookID() % 7 * 10);
+                goals.add(g);
+            }
+
+            AgentInfo ai = new AgentInfo();
+            ai.setBooks(books);
+            ai.setGoals(goals);
+            ai.setMoney(1000);
+            ai.setVersion(3);
+            return new Result(new Action(env, new GetMyInfo()), ai);
+        }
+
+        throw new IllegalArgumentException("unknown content " + name);
+    }
+}
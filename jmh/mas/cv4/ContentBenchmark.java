@@ -0,0 +1,109 @@
+package mas.cv4;
+
+import jade.content.ContentElement;
+import jade.content.ContentManager;
+import jade.content.lang.Codec;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.BookOntology;
+import mas.cv4.onto.ChooseFrom;
+import mas.cv4.onto.MakeTransaction;
+import mas.cv4.onto.Offer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filling and extracting the content of the MakeTransaction requests and the ChooseFrom proposals, the offers in the
+ * proposal are the ones a seller makes for the books of one CFP.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentBenchmark {
+
+    //the number of books in the transaction and in each offer
+    @Param({"1", "5", "50"})
+    int booksPerAgent;
+
+    //the number of offers in the proposal
+    @Param({"3", "30"})
+    int offers;
+
+    @Param({"fipa-sl", BinaryCodec.NAME})
+    String language;
+
+    Ontology onto = BookOntology.getInstance();
+    ContentManager cm;
+    Action makeTransaction;
+    ChooseFrom chooseFrom;
+    ACLMessage filledTransaction;
+    ACLMessage filledChooseFrom;
+
+    @Setup
+    public void setup() throws Exception {
+        cm = new ContentManager();
+        cm.registerLanguage(new SLCodec());
+        cm.registerLanguage(new BinaryCodec());
+        cm.registerOntology(onto);
+
+        Population p = new Population();
+        ArrayList<BookInfo> books = p.newBooks(booksPerAgent);
+
+        MakeTransaction mt = Population.newTransaction("trader1", "trader2", books, 0, new ArrayList<BookInfo>(), 100);
+        makeTransaction = new Action(new AID("environment@benchmark", AID.ISGUID), mt);
+
+        ArrayList<Offer> os = new ArrayList<Offer>();
+        for (int i = 0; i < offers; i++) {
+            os.add(p.newOffer(booksPerAgent));
+        }
+        chooseFrom = new ChooseFrom();
+        chooseFrom.setWillSell(books);
+        chooseFrom.setOffers(os);
+
+        filledTransaction = newMessage();
+        cm.fillContent(filledTransaction, makeTransaction);
+        filledChooseFrom = newMessage();
+        cm.fillContent(filledChooseFrom, chooseFrom);
+    }
+
+    private ACLMessage newMessage() {
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.setLanguage(language);
+        msg.setOntology(onto.getName());
+        return msg;
+    }
+
+    @Benchmark
+    public ACLMessage fillMakeTransaction() throws Codec.CodecException, OntologyException {
+        ACLMessage msg = newMessage();
+        cm.fillContent(msg, makeTransaction);
+        return msg;
+    }
+
+    @Benchmark
+    public ContentElement extractMakeTransaction() throws Codec.CodecException, OntologyException {
+        return cm.extractContent(filledTransaction);
+    }
+
+    @Benchmark
+    public ACLMessage fillChooseFrom() throws Codec.CodecException, OntologyException {
+        ACLMessage msg = newMessage();
+        cm.fillContent(msg, chooseFrom);
+        return msg;
+    }
+
+    @Benchmark
+    public ContentElement extractChooseFrom() throws Codec.CodecException, OntologyException {
+        return cm.extractContent(filledChooseFrom);
+    }
+}
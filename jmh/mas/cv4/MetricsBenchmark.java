@@ -0,0 +1,52 @@
+package mas.cv4;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording of the latencies by the agents, with the metrics switched on and off, from one and from several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @Param({"true", "false"})
+    boolean enabled;
+
+    Metrics metrics;
+
+    @State(Scope.Thread)
+    public static class Trade {
+        long n = 0;
+        String id = "trade-" + Thread.currentThread().getId();
+    }
+
+    @Setup
+    public void setup() {
+        metrics = new Metrics();
+        metrics.setEnabled(enabled);
+    }
+
+    @Benchmark
+    public void record(Trade t) {
+        metrics.record(Metrics.SETTLEMENT, (t.n++ * 7919) & 0xFFFFFF);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Trade t) {
+        metrics.record(Metrics.SETTLEMENT, (t.n++ * 7919) & 0xFFFFFF);
+    }
+
+    @Benchmark
+    public void trace(Trade t) {
+        metrics.begin(t.id);
+        metrics.stage(t.id, Metrics.TRADE_MATCHED);
+        metrics.end(t.id, Metrics.TRADE_REPLIED);
+    }
+}
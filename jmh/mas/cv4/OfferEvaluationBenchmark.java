@@ -0,0 +1,67 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.Offer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The evaluation of the offers a trader receives from the other traders (one offer per seller) when it buys a book.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfferEvaluationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int agents;
+
+    @Param({"5", "50"})
+    int booksPerAgent;
+
+    @Param({"3", "30"})
+    int goalsPerAgent;
+
+    BookTrader trader;
+    ArrayList<Offer> offers;
+
+    @Setup
+    public void setup() {
+        Population p = new Population();
+        AgentInfo ai = p.newAgent(booksPerAgent, goalsPerAgent);
+
+        trader = new BookTrader();
+        trader.setInfo(ai);
+        trader.pricing = new PricingEngine(new PriceCurve.Linear());
+        trader.pricing.start(System.currentTimeMillis(), trader.goalByType);
+
+        offers = new ArrayList<Offer>(agents);
+        for (int i = 0; i < agents; i++) {
+            offers.add(p.newOffer(i % 3));
+        }
+    }
+
+    @Benchmark
+    public ArrayList<Offer> getFulfillableOffers() {
+        return trader.getFulfillableOffers(offers);
+    }
+
+    @Benchmark
+    public Offer chooseBestOffer() {
+        return trader.chooseBestOffer(offers);
+    }
+
+    @Benchmark
+    public double computeOfferPrice() {
+        double sum = 0;
+        for (Offer o : offers) {
+            sum += trader.computeOfferPrice(o);
+        }
+        return sum;
+    }
+}
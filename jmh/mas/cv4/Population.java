@@ -0,0 +1,84 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.Goal;
+import mas.cv4.onto.MakeTransaction;
+import mas.cv4.onto.Offer;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Generates the agents of a market for the benchmarks, the same way the environment does (random titles, unique IDs),
+ * but with a fixed seed so that all runs of a benchmark see the same market.
+ */
+class Population {
+
+    final String[] titles = Constants.getBooknames().toArray(new String[0]);
+    final Random rnd = new Random(42);
+    int nextID = 0;
+
+    BookInfo newBook() {
+        BookInfo bi = new BookInfo();
+        bi.setBookName(titles[rnd.nextInt(titles.length)]);
+        bi.setBookID(nextID++);
+        return bi;
+    }
+
+    ArrayList<BookInfo> newBooks(int count) {
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>(count);
+        for (int i = 0; i < count; i++) {
+            books.add(newBook());
+        }
+        return books;
+    }
+
+    ArrayList<Goal> newGoals(int count) {
+        ArrayList<Goal> goals = new ArrayList<Goal>(count);
+        for (int i = 0; i < count; i++) {
+            Goal g = new Goal();
+            BookInfo bi = new BookInfo();
+            bi.setBookName(titles[rnd.nextInt(titles.length)]);
+            g.setBook(bi);
+            g.setValue(rnd.nextInt(100));
+            goals.add(g);
+        }
+        return goals;
+    }
+
+    AgentInfo newAgent(int books, int goals) {
+        AgentInfo ai = new AgentInfo();
+        ai.setBooks(newBooks(books));
+        ai.setGoals(newGoals(goals));
+        ai.setMoney(1000);
+        return ai;
+    }
+
+    //an offer asking for some (randomly named) books and money
+    Offer newOffer(int books) {
+        Offer o = new Offer();
+        o.setMoney(rnd.nextInt(200));
+        ArrayList<BookInfo> wanted = new ArrayList<BookInfo>(books);
+        for (int i = 0; i < books; i++) {
+            BookInfo bi = new BookInfo();
+            bi.setBookName(titles[rnd.nextInt(titles.length)]);
+            wanted.add(bi);
+        }
+        o.setBooks(wanted);
+        return o;
+    }
+
+    static MakeTransaction newTransaction(String sender, String receiver, ArrayList<BookInfo> sending, double sendingMoney,
+                                          ArrayList<BookInfo> receiving, double receivingMoney) {
+        MakeTransaction mt = new MakeTransaction();
+        mt.setSenderName(sender);
+        mt.setReceiverName(receiver);
+        mt.setTradeConversationID(receiver + "-" + sender);
+        mt.setSendingBooks(sending);
+        mt.setSendingMoney(sendingMoney);
+        mt.setReceivingBooks(receiving);
+        mt.setReceivingMoney(receivingMoney);
+        return mt;
+    }
+}
@@ -0,0 +1,98 @@
+package mas.cv4;
+
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.TransactionInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The validation and settlement of a matched pair of MakeTransaction requests (what used to be done in
+ * Environment.HandleSendBehaviour). Each invocation settles one trade, the next one trades the books back, so the
+ * market does not change between the iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SettlementBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int agents;
+
+    @Param({"5", "50"})
+    int booksPerAgent;
+
+    @Param({"3", "30"})
+    int goalsPerAgent;
+
+    //the number of books in one trade
+    @Param({"1", "4"})
+    int tradeSize;
+
+    SettlementEngine engine;
+
+    //trades between random pairs of agents, the odd ones return the books of the even ones
+    TransactionInfo[][] trades;
+    int next = 0;
+
+    @Setup
+    public void setup() {
+        Population p = new Population();
+        Ledger ledger = new Ledger();
+        ArrayList<ArrayList<BookInfo>> books = new ArrayList<ArrayList<BookInfo>>();
+
+        for (int i = 0; i < agents; i++) {
+            ArrayList<BookInfo> b = p.newBooks(Math.max(booksPerAgent, tradeSize));
+            books.add(b);
+            ledger.addAgent("agent" + i, b, p.newGoals(goalsPerAgent), 1000);
+        }
+
+        engine = new SettlementEngine(ledger, 1, true, null);
+
+        trades = new TransactionInfo[256][];
+        for (int i = 0; i < trades.length; i += 2) {
+            int a = p.rnd.nextInt(agents);
+            int b = (a + 1 + p.rnd.nextInt(agents - 1)) % agents;
+            ArrayList<BookInfo> sold = new ArrayList<BookInfo>(books.get(a).subList(0, tradeSize));
+            ArrayList<BookInfo> none = new ArrayList<BookInfo>();
+
+            trades[i] = new TransactionInfo[]{
+                    transaction("agent" + a, "agent" + b, sold, 0, none, 10),
+                    transaction("agent" + b, "agent" + a, none, 10, sold, 0)};
+            trades[i + 1] = new TransactionInfo[]{
+                    transaction("agent" + b, "agent" + a, sold, 0, none, 10),
+                    transaction("agent" + a, "agent" + b, none, 10, sold, 0)};
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    private static TransactionInfo transaction(String sender, String receiver, ArrayList<BookInfo> sending,
+                                               double sendingMoney, ArrayList<BookInfo> receiving,
+                                               double receivingMoney) {
+        TransactionInfo ti = new TransactionInfo();
+        ti.setSendOrder(Population.newTransaction(sender, receiver, sending, sendingMoney, receiving, receivingMoney));
+        return ti;
+    }
+
+    @Benchmark
+    public SettlementEngine.Result settle() {
+        TransactionInfo[] t = trades[next];
+        next = (next + 1) % trades.length;
+        return engine.settle(t[0], t[1]);
+    }
+
+    @Benchmark
+    public String checkOrdersMatch() {
+        TransactionInfo[] t = trades[next];
+        next = (next + 1) % trades.length;
+        return SettlementEngine.checkOrdersMatch(t[0].getSendOrder(), t[1].getSendOrder());
+    }
+}
@@ -0,0 +1,58 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The utility of all agents in the market, as computed by the environment when it prints the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int agents;
+
+    @Param({"5", "50"})
+    int booksPerAgent;
+
+    @Param({"3", "30"})
+    int goalsPerAgent;
+
+    ArrayList<AgentInfo> infos;
+
+    @Setup
+    public void setup() {
+        Population p = new Population();
+        infos = new ArrayList<AgentInfo>(agents);
+        for (int i = 0; i < agents; i++) {
+            infos.add(p.newAgent(booksPerAgent, goalsPerAgent));
+        }
+    }
+
+    @Benchmark
+    public double computeUtility() {
+        double sum = 0;
+        for (AgentInfo ai : infos) {
+            sum += Utils.computeUtility(ai);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int hasAllBooks() {
+        int n = 0;
+        for (AgentInfo ai : infos) {
+            if (Utils.hasAllBooks(ai))
+                n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,90 @@
+package mas.cv1;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//prints the chat messages on its own thread, so the agent does not wait for the console
+public class ChatLog implements Runnable {
+
+    //one logged line, formatted only by the log thread
+    private static class Entry {
+        final long time;
+        final String sender;
+        final String text;
+
+        Entry(long time, String sender, String text) {
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private ArrayBlockingQueue<Entry> queue;
+    private PrintStream out;
+    private Thread thread;
+    private volatile boolean running = true;
+    //entries dropped because the queue was full
+    private AtomicLong dropped = new AtomicLong();
+
+    public ChatLog(PrintStream out, int capacity) {
+        this.out = out;
+        this.queue = new ArrayBlockingQueue<Entry>(capacity);
+        thread = new Thread(this, "chat-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //queues the line, never blocks - if the log cannot keep up, the line is dropped and counted
+    public void log(String sender, String text) {
+        if (!queue.offer(new Entry(System.currentTimeMillis(), sender, text)))
+            dropped.incrementAndGet();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    //prints the remaining lines and stops the thread
+    public void close() {
+        running = false;
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        ArrayList<Entry> batch = new ArrayList<Entry>();
+        StringBuilder sb = new StringBuilder();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            //one write for the whole batch
+            for (Entry e : batch) {
+                sb.append('[').append(format.format(new Date(e.time))).append("] ")
+                        .append(e.sender).append(": ").append(e.text).append('\n');
+            }
+            out.print(sb);
+            out.flush();
+            sb.setLength(0);
+            batch.clear();
+        }
+    }
+}
@@ -1,22 +1,72 @@
 package mas.cv1;
 
+import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAException;
 import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.proto.SubscriptionInitiator;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 
 //a simple agent which registers itself to the DF, prints received messages and forwards themto other agents
+//
+//the clients are followed by a DF subscription, so forwarding a message does not need a DF search. When more than
+//digest-threshold messages arrive per second, they are not forwarded one by one, but collected and sent to the clients
+//as a single digest every digest-period ms. The arguments are digest-threshold=N, digest-period=ms and
+//stats-period=ms (how often the messages/s are printed, 0 = never).
 public class SimpleChatServer extends Agent {
 
+    //name of the user defined parameter with the number of messages in a digest
+    public static final String DIGEST_PARAM = "digest";
+
+    int digestThreshold = 100;
+    long digestPeriod = 200;
+    long statsPeriod = 5000;
+
+    //the current clients (from the DF notifications) and the same as a list for adding the receivers
+    LinkedHashSet<AID> clients = new LinkedHashSet<AID>();
+    ArrayList<AID> clientList = new ArrayList<AID>();
+    ClientSubscription subscription;
+
+    //messages waiting for the next digest, null when the messages are forwarded one by one
+    ArrayList<String> digest = null;
+
+    //counters for the statistics, only the agent thread uses them
+    long receivedInPeriod = 0;
+    long receivedInSecond = 0;
+    long deliveredInPeriod = 0;
+    long sentInPeriod = 0;
+
+    ChatLog log = new ChatLog(System.out, 10000);
+
     @Override
     protected void setup() {
         super.setup();
 
+        //arguments in the form key=value
+        Object[] args = getArguments();
+        if (args != null) {
+            for (Object arg : args) {
+                String[] kv = arg.toString().split("=", 2);
+                if (kv.length != 2)
+                    continue;
+                if (kv[0].equals("digest-threshold"))
+                    digestThreshold = Integer.parseInt(kv[1]);
+                if (kv[0].equals("digest-period"))
+                    digestPeriod = Long.parseLong(kv[1]);
+                if (kv[0].equals("stats-period"))
+                    statsPeriod = Long.parseLong(kv[1]);
+            }
+        }
+
         //messaging-server service description
         ServiceDescription sd = new ServiceDescription();
         sd.setType("messaging-server");
@@ -34,64 +84,185 @@ public class SimpleChatServer extends Agent {
             e.printStackTrace();
         }
 
+        //follow the registrations of the clients
+        ServiceDescription clientSd = new ServiceDescription();
+        clientSd.setType("messaging-client");
+        DFAgentDescription clientDfd = new DFAgentDescription();
+        clientDfd.addServices(clientSd);
+        SearchConstraints sc = new SearchConstraints();
+        sc.setMaxResults(-1L);
+        subscription = new ClientSubscription(this, DFService.createSubscriptionMessage(this, getDefaultDF(), clientDfd, sc));
+        this.addBehaviour(subscription);
+
         //add behavior which takes care of the receiving and forwarding of messages
         this.addBehaviour(new MessageReceivingBehaviour());
+        this.addBehaviour(new DigestBehaviour(this, digestPeriod));
+        this.addBehaviour(new RateBehaviour(this));
     }
 
     @Override
     protected void takeDown() {
         super.takeDown();
 
+        //stop following the clients
+        if (subscription.subscribe.getConversationId() != null) {
+            send(DFService.createCancelMessage(this, getDefaultDF(), subscription.subscribe));
+        }
+
         //derigister at the end
         try {
             DFService.deregister(this);
         } catch (FIPAException e) {
             e.printStackTrace();
         }
+
+        log.close();
     }
 
+    //sends the message to all clients, returns the number of delivered copies
+    int sendToClients(String content, int messages) {
+        if (clientList.isEmpty())
+            return 0;
+
+        ACLMessage toClients = new ACLMessage(ACLMessage.INFORM);
+        toClients.setContent(content);
+        if (messages > 1)
+            toClients.addUserDefinedParameter(DIGEST_PARAM, String.valueOf(messages));
+        for (AID client : clientList) {
+            toClients.addReceiver(client);
+        }
+        send(toClients);
+
+        sentInPeriod++;
+        deliveredInPeriod += (long)messages * clientList.size();
+        return clientList.size();
+    }
+
+    //keeps the set of clients up to date from the DF notifications
+    class ClientSubscription extends SubscriptionInitiator {
+
+        ACLMessage subscribe;
+
+        ClientSubscription(Agent a, ACLMessage subscribe) {
+            super(a, subscribe);
+            this.subscribe = subscribe;
+        }
+
+        @Override
+        protected void handleInform(ACLMessage inform) {
+            //needed to cancel the subscription
+            subscribe.setConversationId(inform.getConversationId());
+
+            try {
+                for (DFAgentDescription dfd : DFService.decodeNotification(inform.getContent())) {
+                    //a description without services means the agent deregistered
+                    if (dfd.getAllServices().hasNext()) {
+                        clients.add(dfd.getName());
+                    } else {
+                        clients.remove(dfd.getName());
+                    }
+                }
+                clientList = new ArrayList<AID>(clients);
+            } catch (FIPAException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
     //a behavior which receives, prints and forwards the messages
     class MessageReceivingBehaviour extends CyclicBehaviour {
 
+        //the notifications of the DF are handled by the subscription
+        MessageTemplate chat = MessageTemplate.not(MessageTemplate.MatchSender(getDefaultDF()));
+
+        //maximum number of messages handled in one run
+        static final int BATCH = 100;
+
         @Override
         public void action() {
-            ACLMessage msg = myAgent.receive();
-            if (msg == null) {
-                block();
-                return;
+
+            //handle more waiting messages in one run of the behaviour, but not all of them, so that the digests and
+            //the statistics get their turn under a flood
+            for (int i = 0; i < BATCH; i++) {
+                ACLMessage msg = myAgent.receive(chat);
+                if (msg == null) {
+                    block();
+                    return;
+                }
+
+                receivedInPeriod++;
+                receivedInSecond++;
+
+                //print the received message (the log formats and prints it on its own thread)
+                String sender = msg.getSender().getName();
+                log.log(sender, msg.getContent());
+
+                String line = sender + ": " + msg.getContent();
+
+                //too many messages, the next digest delivers it
+                if (digest != null) {
+                    digest.add(line);
+                    continue;
+                }
+
+                sendToClients(line, 1);
             }
+        }
+    }
+
+    //sends the collected messages as a single digest
+    class DigestBehaviour extends TickerBehaviour {
+
+        DigestBehaviour(Agent a, long period) {
+            super(a, period);
+        }
 
-            //print the received message
-            System.out.println("[" + new Date().toString() + "] " + msg.getSender().getName() + ": " + msg.getContent());
+        @Override
+        protected void onTick() {
+            if (digest == null || digest.isEmpty())
+                return;
 
-            //description of the messaging-client service (for searching)
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType("messaging-client");
+            StringBuilder sb = new StringBuilder();
+            for (String line : digest) {
+                sb.append(line).append('\n');
+            }
+            sendToClients(sb.toString(), digest.size());
+            digest.clear();
+        }
+    }
 
-            //description of the client agents
-            DFAgentDescription dfd = new DFAgentDescription();
-            dfd.addServices(sd);
+    //switches between forwarding and digests by the number of messages in the last second, prints the messages/s
+    class RateBehaviour extends TickerBehaviour {
 
-            try {
+        long ticks = 0;
 
-                //search for the clients
-                DFAgentDescription[] clients = DFService.search(myAgent, dfd);
+        RateBehaviour(Agent a) {
+            super(a, 1000);
+        }
 
-                //create the message for the clients
-                ACLMessage toClients = new ACLMessage(ACLMessage.INFORM);
-                toClients.setContent(msg.getSender().getName() + ": " + msg.getContent());
+        @Override
+        protected void onTick() {
 
-                //add all clients to the recipients and send the message
-                for (DFAgentDescription client : clients) {
-                    toClients.addReceiver(client.getName());
-                }
-                myAgent.send(toClients);
-            } catch (FIPAException e) {
-                e.printStackTrace();
+            if (receivedInSecond > digestThreshold && digest == null) {
+                digest = new ArrayList<String>();
+            } else if (receivedInSecond <= digestThreshold && digest != null && digest.isEmpty()) {
+                digest = null;
             }
+            receivedInSecond = 0;
+
+            ticks++;
+            if (statsPeriod <= 0 || ticks * 1000 < statsPeriod)
+                return;
+
+            double seconds = ticks;
+            System.out.printf("[chat-server] in %.1f msg/s, out %.1f msg/s (%.1f ACL msg/s), %d clients, %s, %d log lines dropped%n",
+                    receivedInPeriod / seconds, deliveredInPeriod / seconds, sentInPeriod / seconds, clientList.size(),
+                    digest != null ? "digest mode" : "forwarding", log.getDropped());
 
-            block();
+            ticks = 0;
+            receivedInPeriod = 0;
+            deliveredInPeriod = 0;
+            sentInPeriod = 0;
         }
     }
 
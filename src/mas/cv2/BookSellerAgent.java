@@ -38,7 +38,7 @@ import java.util.*;
 
 public class BookSellerAgent extends Agent {
 	// The catalogue of books for sale (maps the title of a book to its price)
-	private Hashtable catalogue;
+	private Catalogue catalogue;
 	// The GUI by means of which the user can add books in the catalogue
 	private BookSellerGui myGui;
 
@@ -47,7 +47,7 @@ public class BookSellerAgent extends Agent {
 	// Put agent initializations here
 	protected void setup() {
 		// Create the catalogue
-		catalogue = new Hashtable();
+		catalogue = new Catalogue();
         catalogue.put("LOTR", rnd.nextInt(100) + 50);
         catalogue.put("Hobbit", rnd.nextInt(50) + 40);
 
@@ -84,12 +84,9 @@ public class BookSellerAgent extends Agent {
      This is invoked by the GUI when the user adds a new book for sale
      */
     public void updateCatalogue(final String title, final int price) {
-        addBehaviour(new OneShotBehaviour() {
-            public void action() {
-                catalogue.put(title, new Integer(price));
-                System.out.println(title+" inserted into catalogue. Price = "+price);
-            }
-        } );
+        //the catalogue is concurrent, the GUI thread changes it directly and does not wait for the agent
+        catalogue.put(title, price);
+        System.out.println(title+" inserted into catalogue. Price = "+price);
     }
 
     // Put agent clean-up operations here
@@ -141,7 +138,7 @@ public class BookSellerAgent extends Agent {
                 throw new NotUnderstoodException("invalid request format");
             }
 
-            if (!catalogue.containsKey(fields[1])) {
+            if (catalogue.getPrice(fields[1]) == null) {
                 throw new RefuseException("book not available");
             }
 
@@ -180,16 +177,10 @@ public class BookSellerAgent extends Agent {
         @Override
         protected ACLMessage prepareResultNotification(ACLMessage request, ACLMessage response) throws FailureException {
 
-            StringBuilder books = new StringBuilder();
-
-            //books are delimited by "|"
-            for (Object book: catalogue.keySet()) {
-                books.append(book.toString() + "|");
-            }
-
             ACLMessage reply = request.createReply();
             reply.setPerformative(ACLMessage.INFORM);
-            reply.setContent(books.toString());
+            //books are delimited by "|", the list is built only when the catalogue changes
+            reply.setContent(catalogue.getBookList());
 
             return reply;
         }
@@ -221,10 +212,11 @@ public class BookSellerAgent extends Agent {
             String bookTitle = fields[1];
 
             //if we have the book, we offer our price
-            if (catalogue.containsKey(bookTitle)) {
+            Integer price = catalogue.getPrice(bookTitle);
+            if (price != null) {
                 ACLMessage reply = cfp.createReply();
                 reply.setPerformative(ACLMessage.PROPOSE);
-                reply.setContent(catalogue.get(bookTitle).toString());
+                reply.setContent(price.toString());
                 return reply;
             }
 
@@ -239,7 +231,7 @@ public class BookSellerAgent extends Agent {
             String[] fields = content.split("\\|");
             String bookTitle = fields[1];
 
-            if (!catalogue.containsKey(bookTitle)) {
+            if (catalogue.getPrice(bookTitle) == null) {
                 throw new FailureException("book no longer available");
             }
 
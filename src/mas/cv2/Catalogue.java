@@ -0,0 +1,63 @@
+package mas.cv2;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The books for sale and their prices.
+ *
+ * The GUI changes the catalogue from its own thread while the behaviours of the agent read it, the map is concurrent
+ * so neither of them waits for the other. Each change increments the version of the catalogue. The list of books sent
+ * to the buyers is built once for each version and shared by all the list requests until the catalogue changes.
+ */
+public class Catalogue {
+
+    //the list of books of one version of the catalogue, never changed once built
+    private static class Snapshot {
+        final long version;
+        final String books;
+
+        Snapshot(long version, String books) {
+            this.version = version;
+            this.books = books;
+        }
+    }
+
+    private ConcurrentHashMap<String, Integer> prices = new ConcurrentHashMap<String, Integer>();
+    private AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = null;
+
+    /** Adds the book or changes its price */
+    public void put(String title, int price) {
+        prices.put(title, price);
+        //after the put, so a snapshot of the new version always contains the change
+        version.incrementAndGet();
+    }
+
+    /** The price of the book, null if it is not for sale */
+    public Integer getPrice(String title) {
+        return prices.get(title);
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    /** The titles of all books delimited by "|" (the content of the reply to get-books-list) */
+    public String getBookList() {
+        Snapshot s = snapshot;
+        long v = version.get();
+        if (s != null && s.version == v)
+            return s.books;
+
+        //a change made during the build gets a new version, so the list is built again next time
+        StringBuilder books = new StringBuilder();
+        for (Map.Entry<String, Integer> book : prices.entrySet()) {
+            books.append(book.getKey()).append('|');
+        }
+        s = new Snapshot(v, books.toString());
+        snapshot = s;
+        return s.books;
+    }
+}
@@ -0,0 +1,158 @@
+package mas.cv3;
+
+import jade.content.ContentElement;
+import jade.content.Concept;
+import jade.content.lang.Codec;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Routes the requests of an agent by the name of the requested action.
+ *
+ * The sender puts the name of the action into the "action" parameter of the message (see tag()), so the templates of
+ * the behaviours only compare a string (see matchAction()) and never decode the content. JADE evaluates the templates
+ * for every message in the queue, decoding the content there would decode each message several times.
+ *
+ * The content is decoded once, when a behaviour asks for it (getAction()), and kept until the behaviour releases it.
+ * Messages from senders which do not tag them are decoded and tagged by the behaviour returned by untaggedRouter(). The
+ * behaviours get their templates from route(), so the router knows which actions they handle and answers the other
+ * requests with NOT_UNDERSTOOD (otherwise they would stay in the queue for good).
+ */
+public class ActionRouter {
+
+    /** The user defined parameter with the name of the action */
+    public static final String ACTION_PARAM = "action";
+
+    //decoded messages which were not released, the oldest ones are dropped (e.g. of refused requests)
+    static final int MAX_DECODED = 256;
+
+    Agent agent;
+    String ontology;
+    //the performatives and actions handled by the behaviours of the agent (see route())
+    HashSet<String> routes = new HashSet<String>();
+
+    //messages are compared by identity, ACLMessage does not override equals()
+    Map<ACLMessage, Action> decoded = new LinkedHashMap<ACLMessage, Action>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ACLMessage, Action> eldest) {
+            return size() > MAX_DECODED;
+        }
+    };
+
+    public ActionRouter(Agent agent, String ontology) {
+        this.agent = agent;
+        this.ontology = ontology;
+    }
+
+    /** Puts the name of the action into the message, call it before sending the message */
+    public static void tag(ACLMessage msg, Concept action) {
+        msg.addUserDefinedParameter(ACTION_PARAM, action.getClass().getSimpleName());
+    }
+
+    /** Matches the messages tagged with the action (e.g. "SellBook"), looks only at the parameter */
+    public static MessageTemplate matchAction(final String action) {
+        return new MessageTemplate(new MessageTemplate.MatchExpression() {
+            @Override
+            public boolean match(ACLMessage msg) {
+                return action.equals(msg.getUserDefinedParameter(ACTION_PARAM));
+            }
+        });
+    }
+
+    /**
+     * Matches the messages with the performative tagged with the action, the behaviour which handles them takes them
+     * with this template (the other actions are not understood)
+     */
+    public MessageTemplate route(int performative, String action) {
+        routes.add(performative + "/" + action);
+        return MessageTemplate.and(MessageTemplate.MatchPerformative(performative), matchAction(action));
+    }
+
+    //whether a behaviour handles the action requested with the performative
+    boolean isRouted(int performative, String action) {
+        return routes.contains(performative + "/" + action);
+    }
+
+    /** The requested action of the message, decoded only the first time, null if it cannot be decoded */
+    public Action getAction(ACLMessage msg) {
+        Action a = decoded.get(msg);
+        if (a == null) {
+            a = decode(msg);
+            if (a != null)
+                decoded.put(msg, a);
+        }
+        return a;
+    }
+
+    /** Returns the action (as getAction()) and forgets it, call it when the message is handled */
+    public Action release(ACLMessage msg) {
+        Action a = decoded.remove(msg);
+        return a != null ? a : decode(msg);
+    }
+
+    private Action decode(ACLMessage msg) {
+        try {
+            ContentElement ce = agent.getContentManager().extractContent(msg);
+            if (ce instanceof Action)
+                return (Action)ce;
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * A behaviour which decodes the messages of the ontology without the action parameter, tags them and puts them
+     * back to the queue, so they are routed as the tagged ones. Messages which are not actions, and the actions no
+     * behaviour handles (see route()), tagged or not, are not understood.
+     */
+    public CyclicBehaviour untaggedRouter() {
+        final MessageTemplate unrouted = new MessageTemplate(new MessageTemplate.MatchExpression() {
+            @Override
+            public boolean match(ACLMessage msg) {
+                if (msg.getPerformative() != ACLMessage.REQUEST && msg.getPerformative() != ACLMessage.CFP)
+                    return false;
+                String action = msg.getUserDefinedParameter(ACTION_PARAM);
+                if (action != null)
+                    return !isRouted(msg.getPerformative(), action);
+                return ontology.equals(msg.getOntology());
+            }
+        });
+
+        return new CyclicBehaviour(agent) {
+            @Override
+            public void action() {
+                ACLMessage msg = myAgent.receive(unrouted);
+                if (msg == null) {
+                    block();
+                    return;
+                }
+
+                if (msg.getUserDefinedParameter(ACTION_PARAM) == null) {
+                    Action a = getAction(msg);
+                    if (a != null && a.getAction() != null
+                            && isRouted(msg.getPerformative(), a.getAction().getClass().getSimpleName())) {
+                        tag(msg, a.getAction());
+                        myAgent.putBack(msg);
+                        return;
+                    }
+                }
+
+                decoded.remove(msg);
+                ACLMessage reply = msg.createReply();
+                reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                myAgent.send(reply);
+            }
+        };
+    }
+}
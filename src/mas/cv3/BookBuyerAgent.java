@@ -123,6 +123,7 @@ public class BookBuyerAgent extends Agent {
                     msg.setOntology(onto.getName());
                     msg.setLanguage(codec.getName());
                     getContentManager().fillContent(msg, new Action(seller, gbl));
+                    ActionRouter.tag(msg, gbl);
                     requests.add(msg);
                 }
             } catch (Codec.CodecException e) {
@@ -203,6 +204,7 @@ public class BookBuyerAgent extends Agent {
                     msg.setOntology(onto.getName());
                     msg.setLanguage(codec.getName());
                     getContentManager().fillContent(msg, new Action(seller, sb));
+                    ActionRouter.tag(msg, sb);
                     Date t = new Date();
                     msg.setReplyByDate(new Date(t.getTime() + 10000)); //agents must reply in 10 seconds
                     cfps.add(msg);
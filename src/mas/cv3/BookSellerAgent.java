@@ -23,7 +23,6 @@ Boston, MA  02111-1307, USA.
 
 package mas.cv3;
 
-import jade.content.ContentElement;
 import jade.content.lang.Codec;
 import jade.content.lang.sl.SLCodec;
 import jade.content.onto.Ontology;
@@ -31,8 +30,6 @@ import jade.content.onto.OntologyException;
 import jade.content.onto.basic.Action;
 import jade.content.onto.basic.Result;
 import jade.core.Agent;
-import jade.core.behaviours.OneShotBehaviour;
-import jade.core.behaviours.ReceiverBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.*;
 import jade.domain.FIPAException;
@@ -40,18 +37,16 @@ import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.proto.AchieveREResponder;
 import jade.proto.ContractNetResponder;
-import jade.util.leap.ArrayList;
 import mas.cv3.onto.BookInfo;
 import mas.cv3.onto.BookOntology;
 import mas.cv3.onto.GetBookList;
 import mas.cv3.onto.SellBook;
 
-import java.util.Hashtable;
 import java.util.Random;
 
 public class BookSellerAgent extends Agent {
 	// The catalogue of books for sale (maps the title of a book to its price)
-	private Hashtable catalogue;
+	private Catalogue catalogue;
 	// The GUI by means of which the user can add books in the catalogue
 	private BookSellerGui myGui;
 
@@ -60,10 +55,13 @@ public class BookSellerAgent extends Agent {
 
     private Random rnd = new Random();
 
+    //decodes the content of each request once, the behaviours are chosen by the action parameter
+    private ActionRouter router = new ActionRouter(this, onto.getName());
+
 	// Put agent initializations here
 	protected void setup() {
 		// Create the catalogue
-		catalogue = new Hashtable();
+		catalogue = new Catalogue();
         catalogue.put("LOTR", rnd.nextInt(100) + 50);
         catalogue.put("Hobbit", rnd.nextInt(50) + 40);
 
@@ -89,14 +87,17 @@ public class BookSellerAgent extends Agent {
 			fe.printStackTrace();
 		}
 
+        //tags the requests of buyers which do not put the action parameter into them
+        addBehaviour(router.untaggedRouter());
+
         //behavior which processes the ListBooks requuests
-        addBehaviour(new ListAvailableBooks(this, MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST), new MessageTemplate(new MatchListBooks()))));
+        addBehaviour(new ListAvailableBooks(this, router.route(ACLMessage.REQUEST, "GetBookList")));
 
         //behavir which sells the books
-        addBehaviour(new HandleSellBook(this, MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST), new MessageTemplate(new MatchSellBook()))));
+        addBehaviour(new HandleSellBook(this, router.route(ACLMessage.REQUEST, "SellBook")));
 
         //behavior to return an offer on a book and sells it eventually
-        addBehaviour(new OfferBookPrices(this, MessageTemplate.MatchPerformative(ACLMessage.CFP)));
+        addBehaviour(new OfferBookPrices(this, router.route(ACLMessage.CFP, "SellBook")));
 
 	}
 
@@ -104,12 +105,9 @@ public class BookSellerAgent extends Agent {
      This is invoked by the GUI when the user adds a new book for sale
      */
     public void updateCatalogue(final String title, final int price) {
-        addBehaviour(new OneShotBehaviour() {
-            public void action() {
-                catalogue.put(title, new Integer(price));
-                System.out.println(title+" inserted into catalogue. Price = "+price);
-            }
-        } );
+        //the catalogue is concurrent, the GUI thread changes it directly and does not wait for the agent
+        catalogue.put(title, price);
+        System.out.println(title+" inserted into catalogue. Price = "+price);
     }
 
     // Put agent clean-up operations here
@@ -127,45 +125,6 @@ public class BookSellerAgent extends Agent {
 		System.out.println("Seller-agent "+getAID().getName()+" terminating.");
 	}
 
-    //MessageTemplate, which matches only ListBook messages
-    private class MatchListBooks implements MessageTemplate.MatchExpression {
-
-        @Override
-        public boolean match(ACLMessage aclMessage) {
-            System.err.println(aclMessage.getContent());
-            ContentElement ce = null;
-            try {
-                ce = getContentManager().extractContent(aclMessage);
-            } catch (Codec.CodecException e) {
-                e.printStackTrace();
-            } catch (OntologyException e) {
-                e.printStackTrace();
-            }
-
-            Action a = (Action)ce;
-            return a.getAction() instanceof GetBookList;
-        }
-    }
-
-    //MessageTemplate, which matches only SellBook messages
-    private class MatchSellBook implements MessageTemplate.MatchExpression {
-
-        @Override
-        public boolean match(ACLMessage aclMessage) {
-            System.err.println(aclMessage.getContent());
-            ContentElement ce = null;
-            try {
-                ce = getContentManager().extractContent(aclMessage);
-            } catch (Codec.CodecException e) {
-                e.printStackTrace();
-            } catch (OntologyException e) {
-                e.printStackTrace();
-            }
-
-            Action a = (Action)ce;
-            return a.getAction() instanceof SellBook;
-        }
-    }
     //this behavior sells a single book
     private class HandleSellBook extends AchieveREResponder {
 
@@ -177,15 +136,16 @@ public class BookSellerAgent extends Agent {
         protected ACLMessage handleRequest(ACLMessage request) throws NotUnderstoodException, RefuseException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(request);
-                Action act = (Action)ce;
+                //the request is answered right away, nothing else needs the decoded action
+                Action act = router.release(request);
 
-                if (!(act.getAction() instanceof SellBook))
+                if (act == null || !(act.getAction() instanceof SellBook))
                     throw (new NotUnderstoodException(""));
 
                 SellBook sb = (SellBook)act.getAction();
 
-                if (!catalogue.containsKey(sb.getBi().getName())) {
+                Integer price = catalogue.getPrice(sb.getBi().getName());
+                if (price == null) {
                     throw new RefuseException("book not available");
                 }
 
@@ -194,7 +154,7 @@ public class BookSellerAgent extends Agent {
 
                 BookInfo bi = new BookInfo();
                 bi.setName(sb.getBi().getName());
-                bi.setPrice((Integer)catalogue.get(sb.getBi().getName()));
+                bi.setPrice(price);
 
                 getContentManager().fillContent(reply, new Result(sb, bi));
 
@@ -222,17 +182,10 @@ public class BookSellerAgent extends Agent {
         @Override
         protected ACLMessage handleRequest(ACLMessage request) throws NotUnderstoodException, RefuseException {
 
-            ContentElement ce = null;
-            try {
-                ce = getContentManager().extractContent(request);
-            } catch (Codec.CodecException e) {
-                e.printStackTrace();
-            } catch (OntologyException e) {
-                e.printStackTrace();
-            }
-            Action a = (Action)ce;
+            //decoded once here, prepareResultNotification() gets the same action from the router
+            Action a = router.getAction(request);
 
-            if (a.getAction() instanceof GetBookList) {
+            if (a != null && a.getAction() instanceof GetBookList) {
                 ACLMessage reply = request.createReply();
                 reply.setPerformative(ACLMessage.AGREE);
                 return reply;
@@ -247,22 +200,13 @@ public class BookSellerAgent extends Agent {
         protected ACLMessage prepareResultNotification(ACLMessage request, ACLMessage response) throws FailureException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(request);
-                Action a = (Action)ce;
-
-                if (a.getAction() instanceof GetBookList) {
-
-                    ArrayList bis = new ArrayList();
-                    for (Object key : catalogue.keySet()) {
-                        BookInfo bi = new BookInfo();
-                        bi.setName(key.toString());
-                        bi.setPrice((Integer)catalogue.get(key));
-                        bis.add(bi);
-                    }
+                Action a = router.release(request);
 
+                if (a != null && a.getAction() instanceof GetBookList) {
                     ACLMessage reply = request.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    getContentManager().fillContent(reply, new Result(a.getAction(), bis));
+                    //the list is encoded only when the catalogue changes
+                    catalogue.fillBookList(getContentManager(), reply);
                     return reply;
                 }
             } catch (Codec.CodecException e) {
@@ -287,20 +231,21 @@ public class BookSellerAgent extends Agent {
         protected ACLMessage handleCfp(ACLMessage cfp) throws RefuseException, FailureException, NotUnderstoodException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(cfp);
-                Action ac = (Action)ce;
+                //kept in the router until the proposal is accepted or rejected
+                Action ac = router.getAction(cfp);
 
-                if (ac.getAction() instanceof SellBook) {
+                if (ac != null && ac.getAction() instanceof SellBook) {
                     SellBook sb = (SellBook)ac.getAction();
                     String bookTitle = sb.getBi().getName();
 
                     //if we own the book, we propose our price
-                    if (catalogue.containsKey(bookTitle)) {
+                    Integer price = catalogue.getPrice(bookTitle);
+                    if (price != null) {
                         ACLMessage reply = cfp.createReply();
                         reply.setPerformative(ACLMessage.PROPOSE);
                         BookInfo bi = new BookInfo();
                         bi.setName(bookTitle);
-                        bi.setPrice((Integer)catalogue.get(bookTitle));
+                        bi.setPrice(price);
                         getContentManager().fillContent(reply, new Result(sb, bi));
                         return reply;
                     }
@@ -322,12 +267,14 @@ public class BookSellerAgent extends Agent {
         protected ACLMessage handleAcceptProposal(ACLMessage cfp, ACLMessage propose, ACLMessage accept) throws FailureException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(cfp);
-                Action ac = (Action)ce;
+                Action ac = router.release(cfp);
+                if (ac == null)
+                    throw new FailureException("");
                 SellBook sb = (SellBook)ac.getAction();
                 String bookTitle = sb.getBi().getName();
 
-                if (!catalogue.containsKey(bookTitle)) {
+                Integer price = catalogue.getPrice(bookTitle);
+                if (price == null) {
                     throw new FailureException("book no longer available");
                 }
 
@@ -335,7 +282,7 @@ public class BookSellerAgent extends Agent {
                 reply.setPerformative(ACLMessage.INFORM);
                 BookInfo bi = new BookInfo();
                 bi.setName(sb.getBi().getName());
-                bi.setPrice((Integer)catalogue.get(bi.getName()));
+                bi.setPrice(price);
                 getContentManager().fillContent(reply, new Result(ac.getAction(), bi));
                 return reply;
 
@@ -351,6 +298,7 @@ public class BookSellerAgent extends Agent {
         //the agent did not accept our proposal
         @Override
         protected void handleRejectProposal(ACLMessage cfp, ACLMessage propose, ACLMessage reject) {
+            router.release(cfp);
             System.out.println("Agent " + cfp.getSender() + " rejected the proposal :(");
         }
     }
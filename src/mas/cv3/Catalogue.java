@@ -0,0 +1,81 @@
+package mas.cv3;
+
+import jade.content.ContentManager;
+import jade.content.lang.Codec;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Result;
+import jade.lang.acl.ACLMessage;
+import jade.util.leap.ArrayList;
+import mas.cv3.onto.BookInfo;
+import mas.cv3.onto.GetBookList;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The books for sale and their prices.
+ *
+ * The GUI changes the catalogue from its own thread while the behaviours of the agent read it, the map is concurrent
+ * so neither of them waits for the other. Each change increments the version of the catalogue. The reply to
+ * GetBookList is encoded once for each version and its content is reused until the catalogue changes, so the list
+ * requests do not build and encode the list of BookInfo again.
+ */
+public class Catalogue {
+
+    //the encoded book list of one version of the catalogue, never changed once built
+    private static class Snapshot {
+        final long version;
+        final String content;
+
+        Snapshot(long version, String content) {
+            this.version = version;
+            this.content = content;
+        }
+    }
+
+    private ConcurrentHashMap<String, Integer> prices = new ConcurrentHashMap<String, Integer>();
+    private AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = null;
+
+    /** Adds the book or changes its price */
+    public void put(String title, int price) {
+        prices.put(title, price);
+        //after the put, so a snapshot of the new version always contains the change
+        version.incrementAndGet();
+    }
+
+    /** The price of the book, null if it is not for sale */
+    public Integer getPrice(String title) {
+        return prices.get(title);
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Fills the reply with the Result of GetBookList (the list of BookInfo), the reply must have the language and the
+     * ontology of the request. The content is encoded only when the catalogue changed since the last call, so the
+     * method should be called by the agent thread (the content manager is not shared with other threads).
+     */
+    public void fillBookList(ContentManager cm, ACLMessage reply) throws Codec.CodecException, OntologyException {
+        Snapshot s = snapshot;
+        long v = version.get();
+        if (s == null || s.version != v) {
+            ArrayList bis = new ArrayList();
+            for (Map.Entry<String, Integer> book : prices.entrySet()) {
+                BookInfo bi = new BookInfo();
+                bi.setName(book.getKey());
+                bi.setPrice(book.getValue());
+                bis.add(bi);
+            }
+            //GetBookList has no slots, so the content is the same for all the requests
+            cm.fillContent(reply, new Result(new GetBookList(), bis));
+            //a change made during the build gets a new version, so the list is encoded again next time
+            snapshot = new Snapshot(v, reply.getContent());
+            return;
+        }
+        reply.setContent(s.content);
+    }
+}
@@ -0,0 +1,304 @@
+package mas.cv4;
+
+import jade.content.abs.*;
+import jade.content.lang.ByteArrayCodec;
+import jade.content.onto.Ontology;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * A compact binary content language for the book ontology.
+ *
+ * The content is encoded as a tree of tagged values. The names of the types and slots of the book ontology (and of the
+ * basic ontology elements used by it, like action, result or agent-identifier) are encoded as one-byte codes from a
+ * fixed dictionary, other names are written as strings. Numbers are written in binary, so nothing has to be parsed.
+ *
+ * The agents announce the language in the DF (see DirectoryCache.supportsLanguage()), agents which do not support it
+ * keep using the SL codec.
+ */
+public class BinaryCodec extends ByteArrayCodec {
+
+    public static final String NAME = "book-binary";
+
+    //kinds of the encoded abstract objects
+    private static final byte NULL = 0;
+    private static final byte CONCEPT = 1;
+    private static final byte PREDICATE = 2;
+    private static final byte AGENT_ACTION = 3;
+    private static final byte AGGREGATE = 4;
+    private static final byte CONTENT_ELEMENT_LIST = 5;
+    private static final byte STRING = 6;
+    private static final byte INTEGER = 7;
+    private static final byte LONG = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte FLOAT = 10;
+    private static final byte BOOLEAN = 11;
+    private static final byte DATE = 12;
+    private static final byte BYTES = 13;
+
+    //the names with a code, the code of a name is its index + 1 (0 means the name follows as a string), new names
+    //have to be added at the end, otherwise the agents with older versions cannot understand the content
+    private static final String[] DICTIONARY = {
+            //basic ontology
+            "action", "actor", "result", "value", "agent-identifier", "name", "addresses", "resolvers", "sequence",
+            "set",
+            //book ontology types
+            "AgentInfo", "BookInfo", "ChooseFrom", "Chosen", "GetMyInfo", "Goal", "InfoUpdate", "MakeTransaction",
+            "Offer", "SellMeBooks", "StartTrading",
+            //book ontology slots
+            "books", "goals", "money", "version", "bookName", "bookID", "offers", "willSell", "offer", "book",
+            "senderName", "receiverName", "tradeConversationID", "sendingBooks", "sendingMoney", "receivingBooks",
+            "receivingMoney", "addedBooks", "removedBooks", "moneyChange",
+            //order book
+            "PlaceOrder", "bid", "price"
+    };
+
+    private static final HashMap<String, Integer> CODES = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            CODES.put(DICTIONARY[i], i + 1);
+        }
+    }
+
+    public BinaryCodec() {
+        super(NAME);
+    }
+
+    @Override
+    public byte[] encode(AbsContentElement content) throws CodecException {
+        return encode(null, content);
+    }
+
+    @Override
+    public byte[] encode(Ontology ontology, AbsContentElement content) throws CodecException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            write(out, content);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new CodecException("cannot encode the content", e);
+        }
+    }
+
+    @Override
+    public AbsContentElement decode(byte[] content) throws CodecException {
+        return decode(null, content);
+    }
+
+    @Override
+    public AbsContentElement decode(Ontology ontology, byte[] content) throws CodecException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            AbsObject abs = read(in);
+            if (!(abs instanceof AbsContentElement)) {
+                throw new CodecException("the content is not a content element");
+            }
+            return (AbsContentElement)abs;
+        } catch (IOException e) {
+            throw new CodecException("cannot decode the content", e);
+        } catch (ClassCastException e) {
+            throw new CodecException("malformed content", e);
+        }
+    }
+
+    private void write(DataOutputStream out, AbsObject abs) throws IOException, CodecException {
+
+        if (abs == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        switch (abs.getAbsType()) {
+            case AbsObject.ABS_PRIMITIVE:
+                writePrimitive(out, (AbsPrimitive)abs);
+                return;
+            case AbsObject.ABS_AGGREGATE:
+                AbsAggregate agg = (AbsAggregate)abs;
+                out.writeByte(AGGREGATE);
+                writeName(out, agg.getTypeName());
+                writeVarInt(out, agg.size());
+                for (int i = 0; i < agg.size(); i++) {
+                    write(out, agg.get(i));
+                }
+                return;
+            case AbsObject.ABS_CONTENT_ELEMENT_LIST:
+                AbsContentElementList list = (AbsContentElementList)abs;
+                out.writeByte(CONTENT_ELEMENT_LIST);
+                writeVarInt(out, list.size());
+                for (int i = 0; i < list.size(); i++) {
+                    write(out, list.get(i));
+                }
+                return;
+            case AbsObject.ABS_CONCEPT:
+                out.writeByte(CONCEPT);
+                break;
+            case AbsObject.ABS_PREDICATE:
+                out.writeByte(PREDICATE);
+                break;
+            case AbsObject.ABS_AGENT_ACTION:
+                out.writeByte(AGENT_ACTION);
+                break;
+            default:
+                throw new CodecException("unsupported content " + abs);
+        }
+
+        //concepts, predicates and actions: type and slots
+        writeName(out, abs.getTypeName());
+        String[] names = abs.getNames();
+        writeVarInt(out, names.length);
+        for (String name : names) {
+            writeName(out, name);
+            write(out, abs.getAbsObject(name));
+        }
+    }
+
+    private void writePrimitive(DataOutputStream out, AbsPrimitive p) throws IOException, CodecException {
+        Object o = p.getObject();
+        if (o instanceof String) {
+            out.writeByte(STRING);
+            out.writeUTF((String)o);
+        } else if (o instanceof Integer) {
+            out.writeByte(INTEGER);
+            writeVarInt(out, (Integer)o);
+        } else if (o instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long)o);
+        } else if (o instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double)o);
+        } else if (o instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float)o);
+        } else if (o instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean)o);
+        } else if (o instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date)o).getTime());
+        } else if (o instanceof byte[]) {
+            out.writeByte(BYTES);
+            writeVarInt(out, ((byte[])o).length);
+            out.write((byte[])o);
+        } else {
+            throw new CodecException("unsupported primitive " + p);
+        }
+    }
+
+    private AbsObject read(DataInputStream in) throws IOException, CodecException {
+
+        byte kind = in.readByte();
+
+        switch (kind) {
+            case NULL:
+                return null;
+            case STRING:
+                return AbsPrimitive.wrap(in.readUTF());
+            case INTEGER:
+                return AbsPrimitive.wrap(readVarInt(in));
+            case LONG:
+                return AbsPrimitive.wrap(in.readLong());
+            case DOUBLE:
+                return AbsPrimitive.wrap(in.readDouble());
+            case FLOAT:
+                return AbsPrimitive.wrap(in.readFloat());
+            case BOOLEAN:
+                return AbsPrimitive.wrap(in.readBoolean());
+            case DATE:
+                return AbsPrimitive.wrap(new Date(in.readLong()));
+            case BYTES:
+                byte[] data = new byte[readVarInt(in)];
+                in.readFully(data);
+                return AbsPrimitive.wrap(data);
+            case AGGREGATE: {
+                AbsAggregate agg = new AbsAggregate(readName(in));
+                int n = readVarInt(in);
+                for (int i = 0; i < n; i++) {
+                    agg.add((AbsTerm)read(in));
+                }
+                return agg;
+            }
+            case CONTENT_ELEMENT_LIST: {
+                AbsContentElementList list = new AbsContentElementList();
+                int n = readVarInt(in);
+                for (int i = 0; i < n; i++) {
+                    list.add((AbsContentElement)read(in));
+                }
+                return list;
+            }
+            case CONCEPT:
+            case AGENT_ACTION: {
+                String type = readName(in);
+                AbsConcept c = kind == CONCEPT ? new AbsConcept(type) : new AbsAgentAction(type);
+                int n = readVarInt(in);
+                for (int i = 0; i < n; i++) {
+                    String slot = readName(in);
+                    c.set(slot, (AbsTerm)read(in));
+                }
+                return c;
+            }
+            case PREDICATE: {
+                AbsPredicate p = new AbsPredicate(readName(in));
+                int n = readVarInt(in);
+                for (int i = 0; i < n; i++) {
+                    String slot = readName(in);
+                    p.set(slot, read(in));
+                }
+                return p;
+            }
+            default:
+                throw new CodecException("unknown kind of content " + kind);
+        }
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        Integer code = CODES.get(name);
+        if (code != null) {
+            writeVarInt(out, code);
+        } else {
+            writeVarInt(out, 0);
+            out.writeUTF(name);
+        }
+    }
+
+    private static String readName(DataInputStream in) throws IOException, CodecException {
+        int code = readVarInt(in);
+        if (code == 0) {
+            return in.readUTF();
+        }
+        if (code > DICTIONARY.length) {
+            throw new CodecException("unknown name code " + code);
+        }
+        return DICTIONARY[code - 1];
+    }
+
+    //zig-zag encoded variable length int, small numbers (of both signs) take one byte
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        int v = (value << 1) ^ (value >> 31);
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int v = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,77 @@
+package mas.cv4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The titles of the books interned to dense integer type IDs.
+ *
+ * The titles from Constants get their IDs when the class is loaded (in alphabetical order, so they are the same in all
+ * agents), titles which are not known get the next free ID when they are seen for the first time. The prices are kept
+ * in an array indexed by the type, so the agents can keep their books and goals in arrays indexed by the type too and
+ * compare types instead of titles (see BookInfo.getTypeID()).
+ */
+public class BookCatalogue {
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    //type -> title and price, replaced (not modified) when a new title is interned
+    private static volatile String[] titles = new String[0];
+    private static volatile double[] prices = new double[0];
+
+    static {
+        ArrayList<String> known = new ArrayList<String>(Constants.getBooknames());
+        Collections.sort(known);
+        for (String title : known) {
+            intern(title);
+        }
+    }
+
+    /** The type ID of the title */
+    public static int getTypeID(String title) {
+        Integer id = ids.get(title);
+        if (id != null) {
+            return id;
+        }
+        return intern(title);
+    }
+
+    private static synchronized int intern(String title) {
+
+        Integer id = ids.get(title);
+        if (id != null) {
+            return id;
+        }
+
+        int type = titles.length;
+
+        String[] newTitles = new String[type + 1];
+        System.arraycopy(titles, 0, newTitles, 0, type);
+        newTitles[type] = title;
+
+        double[] newPrices = new double[type + 1];
+        System.arraycopy(prices, 0, newPrices, 0, type);
+        newPrices[type] = Constants.getPrice(title); //NaN for titles which are not in the competition
+
+        //the arrays have to be visible before the ID
+        prices = newPrices;
+        titles = newTitles;
+        ids.put(title, type);
+
+        return type;
+    }
+
+    public static String getTitle(int type) {
+        return titles[type];
+    }
+
+    /** The default price of the book type (see Constants.getPrice()) */
+    public static double getPrice(int type) {
+        return prices[type];
+    }
+
+    /** The number of known types, all type IDs are smaller */
+    public static int size() {
+        return titles.length;
+    }
+}
@@ -8,6 +8,7 @@ import jade.content.onto.OntologyException;
 import jade.content.onto.UngroundedException;
 import jade.content.onto.basic.Action;
 import jade.content.onto.basic.Result;
+import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.TickerBehaviour;
@@ -26,33 +27,105 @@ import java.util.*;
  * Created by Martin Pilat on 16.4.14.
  *
  * A simple (testing) version of the trading agent. The agent does not trade in any reasonable way, it only ensures it
- * does not sell bosks it does not own (but it can still happed from time to time if two agents asks for the same book
- * at the same time).
+ * does not sell bosks it does not own. A book offered in a running negotiation is reserved for it (see Reservations),
+ * so two agents asking for the same book at the same time cannot both buy it.
  *
  */
 public class BookTrader extends Agent {
 
     Codec codec = new SLCodec();
+    Codec binaryCodec = new BinaryCodec();
     Ontology onto = BookOntology.getInstance();
 
     ArrayList<BookInfo> myBooks;
     ArrayList<Goal> myGoal;
     double myMoney;
 
+    //number of our books and our goals indexed by the book type (see BookCatalogue), kept in sync with the lists
+    int[] ownedCount = new int[0];
+    Goal[] goalByType = new Goal[0];
+
+    //version of our information, the changes sent by the environment after each trade must follow it
+    int myVersion;
+    //changes which arrived before the previous ones
+    TreeMap<Integer, InfoUpdate> pendingUpdates = new TreeMap<>();
+    boolean refreshingInfo = false;
+
     Random rnd = new Random();
 
+    //local copy of the DF entries of the other traders and the environment
+    DirectoryCache directory;
+    //the agent which sent us StartTrading
+    AID startedBy;
+    //number of the CFPs we sent (to create their conversation IDs)
+    int cfpCount = 0;
+
+    //our CFPs which did not finish yet, in total and per book type, and their limits
+    int cfpsInFlight = 0;
+    int[] cfpsByType = new int[0];
+    int maxCfps;
+    int maxCfpsPerBook;
+    //our books promised in the running negotiations, they are not offered in other ones
+    Reservations reservations = new Reservations();
+    //how long the books stay reserved after the transaction was sent to the environment
+    static final long TRANSACTION_TTL = 5000;
+
+    //our proposals waiting for the answer of the buyer, and their limit
+    int openProposals = 0;
+    int maxProposals;
+    //how long the buyer has to accept our proposal, and the seller to confirm the accepted one
+    static final long PROPOSAL_TTL = 5000;
+
+    //user defined parameter of the CFPs which ask for several books at once, the sellers may offer only some of them
+    static final String BATCH_PARAM = "batch";
+    //maximum number of books in one batched CFP
+    static final int MAX_BATCH = 16;
+
+    //buy all missing books with one CFP per tick
+    boolean batchBuying;
+
+    //use the binary codec with the agents which support it
+    boolean preferBinary;
+
+    //our sell and buy prices, the bounds are computed when the trading starts
+    PricingEngine pricing;
+
+    //trade through the order books of the environment instead of the CFPs to all traders
+    boolean useOrderBook;
+    //how long an order stays in the order book (it is placed again on each tick while we still want to trade)
+    static final long ORDER_TTL = 5000;
+
     @Override
     protected void setup() {
         super.setup();
 
+        //arguments: batch (ask for all missing books in one CFP), codec=sl|binary (preferred content language),
+        //curve=linear|exponential|stepwise (how the prices change during the trading),
+        //market=contract-net|order-book (how the books are bought and sold), max-cfps=N (our open CFPs),
+        //max-cfps-per-book=K (open CFPs for one book), max-proposals=M (our proposals waiting for an answer)
+        HashMap<String, String> args = Utils.parseArguments(getArguments());
+        batchBuying = Boolean.parseBoolean(Utils.getArgument(args, "batch", "false"));
+        preferBinary = Utils.getArgument(args, "codec", "binary").equals("binary");
+        pricing = new PricingEngine(PricingEngine.createCurve(Utils.getArgument(args, "curve", "linear")));
+        useOrderBook = Utils.getArgument(args, "market", "contract-net").equals("order-book");
+        maxCfps = Integer.parseInt(Utils.getArgument(args, "max-cfps", "8"));
+        maxCfpsPerBook = Integer.parseInt(Utils.getArgument(args, "max-cfps-per-book", "1"));
+        maxProposals = Integer.parseInt(Utils.getArgument(args, "max-proposals", "32"));
+
+        //make the metrics of this JVM available through JMX
+        Metrics.getInstance().registerMBean();
+
         //register the codec and the ontology with the content manager
         this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerLanguage(binaryCodec);
         this.getContentManager().registerOntology(onto);
 
-        //book-trader service description
+        //book-trader service description (with the languages we understand)
         ServiceDescription sd = new ServiceDescription();
         sd.setType("book-trader");
         sd.setName("book-trader");
+        sd.addLanguages(codec.getName());
+        sd.addLanguages(binaryCodec.getName());
 
         //description of this agent and the services it provides
         DFAgentDescription dfd = new DFAgentDescription();
@@ -66,6 +139,12 @@ public class BookTrader extends Agent {
             e.printStackTrace();
         }
 
+        //follow the (de)registrations of the traders and the environment
+        directory = new DirectoryCache(this);
+        //the other traders are followed only when the trading starts, otherwise each registration of a trader would be
+        //sent to all traders registered before it
+        directory.subscribe("environment");
+
         //add behavior which waits for the StartTrading message
         addBehaviour(new StartTradingBehaviour(this, MessageTemplate.MatchPerformative(ACLMessage.REQUEST)));
     }
@@ -73,6 +152,7 @@ public class BookTrader extends Agent {
     @Override
     protected void takeDown() {
         super.takeDown();
+        directory.cancel();
         try {
             DFService.deregister(this);
         } catch (FIPAException e) {
@@ -80,89 +160,236 @@ public class BookTrader extends Agent {
         }
     }
 
-    private final double TIME_THOLD = 1 * 60 * 1000;
-    private final double START_LOWER_TIME = 0;//60 * 1000;
-
-    private double startTime;
-
-    private HashMap<String, Integer> bookCounts = new HashMap<>();
-
-    private static double lerp(double min, double max, double t)
+    private boolean isMyGoal(int type)
     {
-        double value = min + (max - min)  * t;
-        //System.out.println("Lerp: " + value);
-        return Math.max(value, 0);
+        return getGoalByBook(type) != null;
     }
 
-    private boolean isMyGoal(String bookName)
+    private boolean hasBook(int type)
     {
+        return type < ownedCount.length && ownedCount[type] > 0;
+    }
+
+    private Goal getGoalByBook(int type) {
+        return type < goalByType.length ? goalByType[type] : null;
+    }
+
+    /** Replaces all our information, rebuilds the indices of the books and goals */
+    void setInfo(AgentInfo ai) {
+        myBooks = ai.getBooks();
+        myGoal = ai.getGoals();
+        myMoney = ai.getMoney();
+        myVersion = ai.getVersion();
+
+        ownedCount = ai.countBooksByType();
+
+        goalByType = new Goal[BookCatalogue.size()];
         for (Goal goal : myGoal) {
-            if (bookName.equals(goal.getBook().getBookName())) {
-                return true;
+            int type = goal.getBook().getTypeID();
+            if (type >= goalByType.length)
+                goalByType = Arrays.copyOf(goalByType, BookCatalogue.size());
+            //the first goal with the type counts (as before in the list)
+            if (goalByType[type] == null)
+                goalByType[type] = goal;
+        }
+    }
+
+    void addMyBook(BookInfo book) {
+        int type = book.getTypeID();
+        if (type >= ownedCount.length)
+            ownedCount = Arrays.copyOf(ownedCount, BookCatalogue.size());
+        myBooks.add(book);
+        ownedCount[type]++;
+    }
+
+    void removeMyBook(int index) {
+        BookInfo book = myBooks.remove(index);
+        ownedCount[book.getTypeID()]--;
+    }
+
+    /** Whether another CFP for the books can be sent now, counts the CFPs which cannot */
+    boolean admitCfp(ArrayList<BookInfo> books) {
+        for (BookInfo book : books) {
+            int type = book.getTypeID();
+            if (type < cfpsByType.length && cfpsByType[type] >= maxCfpsPerBook) {
+                //the open CFP asks for the book already
+                Metrics.getInstance().count(Metrics.CFPS_COALESCED);
+                return false;
             }
         }
+        if (cfpsInFlight >= maxCfps) {
+            Metrics.getInstance().count(Metrics.CFPS_DROPPED);
+            return false;
+        }
+        return true;
+    }
 
-        return false;
+    /** Our CFP for the books was sent (started) or finished */
+    void cfpStarted(ArrayList<BookInfo> books) {
+        cfpsInFlight++;
+        for (BookInfo book : books) {
+            int type = book.getTypeID();
+            if (type >= cfpsByType.length)
+                cfpsByType = Arrays.copyOf(cfpsByType, Math.max(type + 1, BookCatalogue.size()));
+            cfpsByType[type]++;
+        }
     }
 
-    private boolean hasBook(String id)
-    {
-        for (BookInfo book : myBooks)
-        {
-            if (book.getBookName().equals(id))
-                return true;
+    void cfpFinished(ArrayList<BookInfo> books) {
+        cfpsInFlight--;
+        for (BookInfo book : books) {
+            cfpsByType[book.getTypeID()]--;
         }
-        return false;
     }
 
-    private Goal getGoalByBook(String bookName) {
-        for (Goal goal : myGoal) {
-            if (goal.getBook().getBookName().equals(bookName))
-                return goal;
+    /** Reserves the books for the conversation, returns false (and reserves nothing) if one of them is reserved */
+    boolean reserveBooks(ArrayList<BookInfo> books, String owner, long expiry) {
+        long now = System.currentTimeMillis();
+        if (books == null)
+            return true;
+        for (BookInfo book : books) {
+            if (reservations.isReserved(book.getBookID(), owner, now))
+                return false;
+        }
+        for (BookInfo book : books) {
+            reservations.reserve(book.getBookID(), owner, expiry, now);
         }
+        return true;
+    }
 
-        return null;
+    /**
+     * The environment (from the DF, or the agent which started the trading if the DF did not tell us about it yet). If
+     * the environment is split into shards, it is the shard which keeps our account (see ShardMap).
+     */
+    AID getEnvironment() {
+        ArrayList<AID> envs = directory.getProviders("environment");
+        if (envs.size() == 1) {
+            return envs.get(0);
+        }
+        for (AID env : envs) {
+            if (ShardMap.isHome(directory.getDescription("environment", env), getName())) {
+                return env;
+            }
+        }
+        return startedBy;
     }
 
     /**
-     * How much do we want to get for this book.
+     * The ID the environment uses to match the two MakeTransaction requests of a trade. A batched CFP can end with
+     * several trades (one per seller), so the name of the seller is added to the conversation ID.
      */
-    private double getBookSellPrice(String bookName) {
-        double elapsed = System.currentTimeMillis() - startTime;
-
-        double maxPrice = Constants.getPrice(bookName) + 19;
-        double minPrice = Math.max(1, Constants.getPrice(bookName) / 2);
-
-        if (elapsed < START_LOWER_TIME) {
-            return maxPrice;
-        } else if (elapsed >= TIME_THOLD) {
-            return minPrice;
-        } else {
-            return lerp(minPrice, maxPrice, 1 - ((elapsed - START_LOWER_TIME) / (TIME_THOLD - START_LOWER_TIME)));
+    static String getTradeID(ACLMessage cfp, String conversationID, String sellerName) {
+        if (cfp != null && cfp.getUserDefinedParameter(BATCH_PARAM) != null) {
+            return conversationID + "/" + sellerName;
         }
+        return conversationID;
     }
 
     /**
-     * How much are we willing to pay for this book.
+     * The language of a message for the receivers (providers of the service type), the binary codec is used only if
+     * all of them announced they support it.
      */
-    private double getBookBuyPrice(String bookName) {
-        double elapsed = System.currentTimeMillis() - startTime;
+    String getLanguage(String type, Collection<AID> receivers) {
+        if (!preferBinary)
+            return codec.getName();
+
+        for (AID receiver : receivers) {
+            if (!directory.supportsLanguage(type, receiver, binaryCodec.getName()))
+                return codec.getName();
+        }
+        return binaryCodec.getName();
+    }
+
+    String getLanguage(String type, AID receiver) {
+        return getLanguage(type, Collections.singletonList(receiver));
+    }
+
+    /**
+     * Finds the offers we can fulfill (we have all requested books and enough money), fills in the IDs of our books
+     * the seller wants.
+     */
+    ArrayList<Offer> getFulfillableOffers(ArrayList<Offer> offers) {
+
+        long now = System.currentTimeMillis();
+        ArrayList<Offer> canFulfill = new ArrayList<>();
+        for (Offer o: offers) {
+            if (o.getMoney() > myMoney)
+                continue;
+
+            boolean foundAll = true;
+            if (o.getBooks() != null) {
+                for (BookInfo bi : o.getBooks()) {
+                    int type = bi.getTypeID();
+                    boolean found = false;
+                    if (!isMyGoal(type) && hasBook(type)) {
+                        for (BookInfo myBook : myBooks) {
+                            //the books promised to somebody else cannot be given
+                            if (myBook.getTypeID() == type && !reservations.isReserved(myBook.getBookID(), null, now)) {
+                                found = true;
+                                bi.setBookID(myBook.getBookID());
+                                break;
+                            }
+                        }
+                    }
+                    if (!found) {
+                        foundAll = false;
+                        break;
+                    }
+                }
+            }
+            if (foundAll) {
+                canFulfill.add(o);
+            }
+        }
+
+        return canFulfill;
+    }
 
-        Goal goal = getGoalByBook(bookName);
+    /**
+     * How much do we want to get for this book (in the current round, see PricingEngine.startRound()).
+     */
+    private double getBookSellPrice(int type) {
+        return pricing.getSellPrice(type);
+    }
 
-        if (goal == null || hasBook(goal.getBook().getBookName()))
+    /**
+     * How much are we willing to pay for this book (in the current round).
+     */
+    private double getBookBuyPrice(int type) {
+        if (hasBook(type))
             return 0;
+        return pricing.getBuyPrice(type);
+    }
+
+    double computeOfferPrice(Offer offer) {
+        double price = offer.getMoney();
+        if (offer.getBooks() != null) {
+            for (BookInfo book : offer.getBooks()) {
+                Goal goal = getGoalByBook(book.getTypeID());
+                if (goal != null) {
+                    price += goal.getValue() + 500;
+                } else {
+                    //price += Constants.getPrice(book.getBookName());
+                    price += getBookSellPrice(book.getTypeID());
+                }
+            }
+        }
 
-        double maxPrice = goal.getValue() - 1;
-        double minPrice = Math.max(1, goal.getValue() - 40);
+        return price;
+    }
 
-        if (elapsed < START_LOWER_TIME) {
-            return minPrice;
-        } else if (elapsed >= TIME_THOLD) {
-            return maxPrice;
-        } else {
-            return lerp(minPrice, maxPrice, (elapsed - START_LOWER_TIME) / (TIME_THOLD - START_LOWER_TIME));
+    Offer chooseBestOffer(ArrayList<Offer> offers) {
+        double bestPrice = Double.MAX_VALUE;
+        Offer bestOffer = null;
+        for (Offer offer : offers) {
+            double price = computeOfferPrice(offer);
+            if (bestOffer == null || price < bestPrice) {
+                bestOffer = offer;
+                bestPrice = price;
+            }
         }
+
+        return bestOffer;
     }
 
     // waits for the StartTrading message and adds the trading behavior
@@ -187,22 +414,19 @@ public class BookTrader extends Agent {
                 //we got the request to start trading
                 if (a.getAction() instanceof StartTrading) {
 
-                    startTime = System.currentTimeMillis();
+                    long startTime = System.currentTimeMillis();
 
                     //find out what our goals are
                     ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
-                    getMyInfo.setLanguage(codec.getName());
                     getMyInfo.setOntology(onto.getName());
 
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
+                    //the request comes from the environment, if the DF did not tell us about it yet
+                    startedBy = request.getSender();
+                    AID env = getEnvironment();
 
-                    getMyInfo.addReceiver(envs[0].getName());
-                    getContentManager().fillContent(getMyInfo, new Action(envs[0].getName(), new GetMyInfo()));
+                    getMyInfo.setLanguage(getLanguage("environment", env));
+                    getMyInfo.addReceiver(env);
+                    getContentManager().fillContent(getMyInfo, new Action(env, new GetMyInfo()));
 
                     ACLMessage myInfo = FIPAService.doFipaRequestClient(myAgent, getMyInfo);
 
@@ -210,20 +434,19 @@ public class BookTrader extends Agent {
 
                     AgentInfo ai = (AgentInfo)res.getValue();
 
-                    myBooks = ai.getBooks();
-                    myGoal = ai.getGoals();
-                    myMoney = ai.getMoney();
+                    setInfo(ai);
+                    pricing.start(startTime, goalByType);
 
-                    bookCounts.clear();
-                    for (String book : Constants.getBooknames()) {
-                        bookCounts.put(book, 0);
-                    }
-                    for (BookInfo book : myBooks) {
-                        bookCounts.put(book.getBookName(), bookCounts.get(book.getBookName()) + 1);
-                    }
+                    //all the traders are registered by now, the DF sends them to us in one notification (at most as
+                    //many as its result limit, see DirectoryCache)
+                    directory.subscribe("book-trader");
 
-                    //add a behavior which tries to buy a book every two seconds
-                    addBehaviour(new TradingBehaviour(myAgent, 2000));
+                    //add a behavior which tries to buy a book every two seconds (or places our orders)
+                    if (useOrderBook) {
+                        addBehaviour(new PlaceOrdersBehaviour(myAgent, 2000));
+                    } else {
+                        addBehaviour(new TradingBehaviour(myAgent, 2000));
+                    }
 
                     //add a behavior which sells book to other agents
                     addBehaviour(new SellBook(myAgent, MessageTemplate.MatchPerformative(ACLMessage.CFP)));
@@ -259,64 +482,217 @@ public class BookTrader extends Agent {
             @Override
             protected void onTick() {
 
+                //the CFPs of the previous ticks are still open, new ones would only wait behind them
+                if (cfpsInFlight >= maxCfps) {
+                    Metrics.getInstance().count(Metrics.TICKS_SKIPPED);
+                    return;
+                }
+
                 try {
 
+                    if (batchBuying) {
+                        buyAllMissing();
+                        return;
+                    }
+
                     for (Goal goal : myGoal) {
-                        if (hasBook(goal.getBook().getBookName()))
+                        if (hasBook(goal.getBook().getTypeID()))
                             continue;
 
-                        //find other seller and prepare a CFP
-                        ServiceDescription sd = new ServiceDescription();
-                        sd.setType("book-trader");
-                        DFAgentDescription dfd = new DFAgentDescription();
-                        dfd.addServices(sd);
+                        ArrayList<BookInfo> bis = new ArrayList<>();
+
+                        // Try to buy all books from my goal I don't have yet
+                        BookInfo bi = new BookInfo();
+                        bi.setBookName(goal.getBook().getBookName());
+                        bis.add(bi);
+
+                        if (!admitCfp(bis))
+                            continue;
 
-                        DFAgentDescription[] traders = DFService.search(myAgent, dfd);
+                        //find other seller (in the local copy of the DF) and prepare a CFP
+                        ArrayList<AID> traders = directory.getProviders("book-trader");
 
                         ACLMessage buyBook = new ACLMessage(ACLMessage.CFP);
-                        buyBook.setLanguage(codec.getName());
                         buyBook.setOntology(onto.getName());
                         buyBook.setReplyByDate(new Date(System.currentTimeMillis()+5000));
 
-                        for (DFAgentDescription dfad : traders) {
-                            if (dfad.getName().equals(myAgent.getAID()))
+                        ArrayList<AID> receivers = new ArrayList<>();
+                        for (AID trader : traders) {
+                            if (trader.equals(myAgent.getAID()))
                                 continue;
-                            buyBook.addReceiver(dfad.getName());
+                            buyBook.addReceiver(trader);
+                            receivers.add(trader);
                         }
-
-                        ArrayList<BookInfo> bis = new ArrayList<>();
-
-                        // Try to buy all books from my goal I don't have yet
-                        BookInfo bi = new BookInfo();
-                        bi.setBookName(goal.getBook().getBookName());
-                        bis.add(bi);
+                        buyBook.setLanguage(getLanguage("book-trader", receivers));
 
                         SellMeBooks smb = new SellMeBooks();
                         smb.setBooks(bis);
 
                         getContentManager().fillContent(buyBook, new Action(myAgent.getAID(), smb));
-                        addBehaviour(new ObtainBook(myAgent, buyBook));
+
+                        //the conversation ID is also the ID of the trade, the stages of the trade are traced by it
+                        buyBook.setConversationId(getLocalName() + "-cfp-" + cfpCount++);
+                        Metrics.getInstance().begin(buyBook.getConversationId());
+                        cfpStarted(bis);
+                        addBehaviour(new ObtainBook(myAgent, buyBook, bis));
                     }
                 } catch (Codec.CodecException e) {
                     e.printStackTrace();
                 } catch (OntologyException e) {
                     e.printStackTrace();
-                } catch (FIPAException e) {
+                }
+
+            }
+
+            //sends one CFP with all the goals we do not have yet
+            private void buyAllMissing() throws Codec.CodecException, OntologyException {
+
+                ArrayList<BookInfo> bis = new ArrayList<>();
+                for (Goal goal : myGoal) {
+                    int type = goal.getBook().getTypeID();
+                    if (hasBook(type) || bis.size() == MAX_BATCH)
+                        continue;
+
+                    //an open CFP asks for the book already
+                    if (type < cfpsByType.length && cfpsByType[type] >= maxCfpsPerBook) {
+                        Metrics.getInstance().count(Metrics.CFPS_COALESCED);
+                        continue;
+                    }
+
+                    BookInfo bi = new BookInfo();
+                    bi.setBookName(goal.getBook().getBookName());
+                    bis.add(bi);
+                }
+
+                if (bis.isEmpty())
+                    return;
+
+                ACLMessage buyBooks = new ACLMessage(ACLMessage.CFP);
+                buyBooks.setOntology(onto.getName());
+                buyBooks.setReplyByDate(new Date(System.currentTimeMillis()+5000));
+                buyBooks.addUserDefinedParameter(BATCH_PARAM, "true");
+
+                ArrayList<AID> receivers = new ArrayList<>();
+                for (AID trader : directory.getProviders("book-trader")) {
+                    if (trader.equals(myAgent.getAID()))
+                        continue;
+                    buyBooks.addReceiver(trader);
+                    receivers.add(trader);
+                }
+                buyBooks.setLanguage(getLanguage("book-trader", receivers));
+
+                SellMeBooks smb = new SellMeBooks();
+                smb.setBooks(bis);
+
+                getContentManager().fillContent(buyBooks, new Action(myAgent.getAID(), smb));
+                cfpStarted(bis);
+                addBehaviour(new ObtainBooks(myAgent, buyBooks, bis));
+            }
+        }
+
+
+        //places a bid for each missing goal and an ask for each book we do not need into the order books of the
+        //environment, the environment matches them with the orders of the other traders
+        class PlaceOrdersBehaviour extends TickerBehaviour {
+
+            public PlaceOrdersBehaviour(Agent a, long period) {
+                super(a, period);
+            }
+
+            @Override
+            protected void onTick() {
+
+                pricing.startRound();
+
+                try {
+                    for (Goal goal : myGoal) {
+                        int type = goal.getBook().getTypeID();
+                        double price = getBookBuyPrice(type);
+                        if (hasBook(type) || price <= 0)
+                            continue;
+
+                        BookInfo bi = new BookInfo();
+                        bi.setBookName(goal.getBook().getBookName());
+                        placeOrder(bi, true, price);
+                    }
+
+                    //one ask for each type of book we do not need (and did not promise to anybody)
+                    long now = System.currentTimeMillis();
+                    boolean[] offered = new boolean[BookCatalogue.size()];
+                    for (BookInfo book : myBooks) {
+                        int type = book.getTypeID();
+                        if (isMyGoal(type) || offered[type] || reservations.isReserved(book.getBookID(), null, now))
+                            continue;
+                        offered[type] = true;
+                        placeOrder(book, false, getBookSellPrice(type));
+                    }
+                } catch (Codec.CodecException e) {
+                    e.printStackTrace();
+                } catch (OntologyException e) {
                     e.printStackTrace();
                 }
+            }
+
+            private void placeOrder(BookInfo book, boolean bid, double price) throws Codec.CodecException, OntologyException {
 
+                PlaceOrder po = new PlaceOrder();
+                po.setBook(book);
+                po.setBid(bid);
+                po.setPrice(price);
+
+                AID env = getEnvironment();
+
+                ACLMessage order = new ACLMessage(ACLMessage.REQUEST);
+                order.addReceiver(env);
+                order.setLanguage(getLanguage("environment", env));
+                order.setOntology(onto.getName());
+                //the environment removes the order from the book at this time
+                order.setReplyByDate(new Date(System.currentTimeMillis() + ORDER_TTL));
+
+                getContentManager().fillContent(order, new Action(env, po));
+                addBehaviour(new WaitForFill(myAgent, order));
             }
         }
 
+        //waits until the order is filled (the environment sends the changes of our information) or replaced
+        class WaitForFill extends AchieveREInitiator {
+
+            public WaitForFill(Agent a, ACLMessage msg) {
+                super(a, msg);
+            }
+
+            @Override
+            protected void handleInform(ACLMessage inform) {
+                handleTransactionResult(inform);
+            }
+        }
 
         //this behavior takes care of the buying of the book itself
         class ObtainBook extends ContractNetInitiator {
 
-            public ObtainBook(Agent a, ACLMessage cfp) {
+            long started = System.nanoTime();
+            String conversationID;
+            ArrayList<BookInfo> wanted;
+
+            public ObtainBook(Agent a, ACLMessage cfp, ArrayList<BookInfo> wanted) {
                 super(a, cfp);
+                this.conversationID = cfp.getConversationId();
+                this.wanted = wanted;
+            }
+
+            @Override
+            public int onEnd() {
+                cfpFinished(wanted);
+                //the books we offered were not sent to the environment, there is no trade to trace
+                if (!sent) {
+                    reservations.release(conversationID);
+                    Metrics.getInstance().drop(conversationID);
+                }
+                return super.onEnd();
             }
 
             Chosen c;  //we need to remember what offer we have chosen
+            boolean sent = false; //we sent the transaction to the environment
             ArrayList<BookInfo> shouldReceive; //we also remember what the seller offered to us
 
 
@@ -345,21 +721,17 @@ public class BookTrader extends Agent {
                     mt.setReceivingBooks(shouldReceive);
                     mt.setReceivingMoney(0.0);
 
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
+                    AID env = getEnvironment();
 
                     ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
-                    transReq.addReceiver(envs[0].getName());
-                    transReq.setLanguage(codec.getName());
+                    transReq.addReceiver(env);
+                    transReq.setLanguage(getLanguage("environment", env));
                     transReq.setOntology(onto.getName());
-                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
+                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + TRANSACTION_TTL));
 
-                    getContentManager().fillContent(transReq, new Action(envs[0].getName(), mt));
-                    addBehaviour(new SendBook(myAgent, transReq));
+                    getContentManager().fillContent(transReq, new Action(env, mt));
+                    addBehaviour(new SendBook(myAgent, transReq, conversationID));
+                    sent = true;
 
                 } catch (UngroundedException e) {
                     e.printStackTrace();
@@ -367,47 +739,18 @@ public class BookTrader extends Agent {
                     e.printStackTrace();
                 } catch (Codec.CodecException e) {
                     e.printStackTrace();
-                } catch (FIPAException e) {
-                    e.printStackTrace();
-                }
-
-            }
-
-            private double computeOfferPrice(Offer offer) {
-                double price = offer.getMoney();
-                if (offer.getBooks() != null) {
-                    for (BookInfo book : offer.getBooks()) {
-                        Goal goal = getGoalByBook(book.getBookName());
-                        if (goal != null) {
-                            price += goal.getValue() + 500;
-                        } else {
-                            //price += Constants.getPrice(book.getBookName());
-                            price += getBookSellPrice(book.getBookName());
-                        }
-                    }
-                }
-
-                return price;
-            }
-
-            private Offer chooseBestOffer(ArrayList<Offer> offers) {
-                double bestPrice = Double.MAX_VALUE;
-                Offer bestOffer = null;
-                for (Offer offer : offers) {
-                    double price = computeOfferPrice(offer);
-                    if (bestOffer == null || price < bestPrice) {
-                        bestOffer = offer;
-                        bestPrice = price;
-                    }
                 }
 
-                return bestOffer;
             }
 
             //process the offers from the sellers
             @Override
             protected void handleAllResponses(Vector responses, Vector acceptances) {
 
+                Metrics.getInstance().record(Metrics.CFP, System.nanoTime() - started);
+                Metrics.getInstance().stage(conversationID, Metrics.TRADE_PROPOSALS);
+                pricing.startRound();
+
                 Iterator it = responses.iterator();
 
                 //we need to accept only one offer, otherwise we create two transactions with the same ID
@@ -428,44 +771,16 @@ public class BookTrader extends Agent {
                         ArrayList<Offer> offers = cf.getOffers();
 
                         //find out which offers we can fulfill (we have all requested books and enough money)
-                        ArrayList<Offer> canFulfill = new ArrayList<>();
-                        for (Offer o: offers) {
-                            if (o.getMoney() > myMoney)
-                                continue;
-
-                            boolean foundAll = true;
-                            if (o.getBooks() != null) {
-                                for (BookInfo bi : o.getBooks()) {
-                                    String bn = bi.getBookName();
-                                    boolean found = false;
-                                    if (!isMyGoal(bn)) {
-                                        for (BookInfo myBook : myBooks) {
-                                            if (myBook.getBookName().equals(bn)) {
-                                                found = true;
-                                                bi.setBookID(myBook.getBookID());
-                                                break;
-                                            }
-                                        }
-                                    }
-                                    if (!found) {
-                                        foundAll = false;
-                                        break;
-                                    }
-                                }
-                            }
-                            if (foundAll) {
-                                canFulfill.add(o);
-                            }
-                        }
+                        ArrayList<Offer> canFulfill = getFulfillableOffers(offers);
 
-                        Offer bestOffer = chooseBestOffer(offers);
+                        Offer bestOffer = chooseBestOffer(canFulfill);
 
                         double givenValue = computeOfferPrice(bestOffer);
                         double recievedValue = Double.MAX_VALUE;
                         if (cf.getWillSell() != null) {
                             recievedValue = 0.0;
                             for (BookInfo bi : cf.getWillSell()) {
-                                recievedValue += getBookBuyPrice(bi.getBookName());
+                                recievedValue += getBookBuyPrice(bi.getTypeID());
                             }
                         }
 
@@ -484,8 +799,13 @@ public class BookTrader extends Agent {
 
                         ACLMessage acc = response.createReply();
                         acc.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
+                        //do not wait for the confirmation of the seller forever
+                        acc.setReplyByDate(new Date(System.currentTimeMillis() + PROPOSAL_TTL));
                         accepted = true;
 
+                        //the books we give are promised to the seller
+                        reserveBooks(bestOffer.getBooks(), conversationID, acc.getReplyByDate().getTime());
+
                         //choose an offer
                         Chosen ch = new Chosen();
                         ch.setOffer(bestOffer);
@@ -508,6 +828,262 @@ public class BookTrader extends Agent {
         }
 
 
+        //buys several books at once, possibly from several sellers (one trade with each of them)
+        class ObtainBooks extends ContractNetInitiator {
+
+            ACLMessage batchCfp;
+            //the books we asked for, their position is their bit in the masks
+            ArrayList<BookInfo> wanted;
+
+            //what we have chosen from each accepted seller and what the seller will send us
+            HashMap<String, Chosen> chosen = new HashMap<>();
+            HashMap<String, ArrayList<BookInfo>> shouldReceive = new HashMap<>();
+
+            long started = System.nanoTime();
+
+            public ObtainBooks(Agent a, ACLMessage cfp, ArrayList<BookInfo> wanted) {
+                super(a, cfp);
+                this.batchCfp = cfp;
+                this.wanted = wanted;
+            }
+
+            @Override
+            public int onEnd() {
+                cfpFinished(wanted);
+                //the books we offered to the sellers which did not confirm the trade (and their traces)
+                for (String trade : reserved.values()) {
+                    reservations.release(trade);
+                    Metrics.getInstance().drop(trade);
+                }
+                Metrics.getInstance().drop(batchCfp.getConversationId());
+                return super.onEnd();
+            }
+
+            //seller -> the trade our books are reserved for (until the transaction is sent)
+            HashMap<String, String> reserved = new HashMap<>();
+
+            //one proposal we might accept
+            class Candidate {
+                ACLMessage response;
+                ChooseFrom cf;
+                Offer offer;
+                int mask;       //the wanted books the seller sells
+                double cost;    //value of what we give
+            }
+
+            //the best combination of candidates found so far for one set of bought books
+            class Plan {
+                ArrayList<Candidate> candidates = new ArrayList<>();
+                HashSet<Integer> usedBooks = new HashSet<>();
+                double cost;
+                double money;
+
+                Plan extend(Candidate c) {
+                    Plan p = new Plan();
+                    p.candidates.addAll(candidates);
+                    p.candidates.add(c);
+                    p.usedBooks.addAll(usedBooks);
+                    p.cost = cost + c.cost;
+                    p.money = money + c.offer.getMoney();
+                    return p;
+                }
+            }
+
+            //the seller informs us it processed the order, we need to send the payment
+            @Override
+            protected void handleInform(ACLMessage inform) {
+                try {
+
+                    String seller = inform.getSender().getName();
+                    Chosen c = chosen.get(seller);
+                    if (c == null)
+                        return;
+
+                    //create the transaction info and send it to the environment
+                    MakeTransaction mt = new MakeTransaction();
+
+                    mt.setSenderName(myAgent.getName());
+                    mt.setReceiverName(seller);
+                    String tradeID = getTradeID(batchCfp, inform.getConversationId(), seller);
+                    mt.setTradeConversationID(tradeID);
+
+                    if (c.getOffer().getBooks() == null)
+                        c.getOffer().setBooks(new ArrayList<BookInfo>());
+
+                    mt.setSendingBooks(c.getOffer().getBooks());
+                    mt.setSendingMoney(c.getOffer().getMoney());
+                    mt.setReceivingBooks(shouldReceive.get(seller));
+                    mt.setReceivingMoney(0.0);
+
+                    AID env = getEnvironment();
+
+                    ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
+                    transReq.addReceiver(env);
+                    transReq.setLanguage(getLanguage("environment", env));
+                    transReq.setOntology(onto.getName());
+                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + TRANSACTION_TTL));
+
+                    getContentManager().fillContent(transReq, new Action(env, mt));
+                    addBehaviour(new SendBook(myAgent, transReq, reserved.remove(seller)));
+
+                } catch (OntologyException e) {
+                    e.printStackTrace();
+                } catch (Codec.CodecException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            //evaluates all proposals and accepts the combination which buys the most books for the lowest cost
+            @Override
+            protected void handleAllResponses(Vector responses, Vector acceptances) {
+
+                Metrics.getInstance().record(Metrics.CFP, System.nanoTime() - started);
+                pricing.startRound();
+
+                HashMap<String, Integer> wantedIndex = new HashMap<>();
+                for (int i = 0; i < wanted.size(); i++) {
+                    wantedIndex.put(wanted.get(i).getBookName(), i);
+                }
+
+                ArrayList<Candidate> candidates = new ArrayList<>();
+
+                for (Object o : responses) {
+                    ACLMessage response = (ACLMessage)o;
+                    if (response.getPerformative() != ACLMessage.PROPOSE)
+                        continue;
+
+                    try {
+                        ChooseFrom cf = (ChooseFrom)getContentManager().extractContent(response);
+                        if (cf.getWillSell() == null)
+                            continue;
+
+                        Candidate c = new Candidate();
+                        c.response = response;
+                        c.cf = cf;
+
+                        double receivedValue = 0.0;
+                        for (BookInfo bi : cf.getWillSell()) {
+                            Integer idx = wantedIndex.get(bi.getBookName());
+                            if (idx != null)
+                                c.mask |= 1 << idx;
+                            receivedValue += getBookBuyPrice(bi.getTypeID());
+                        }
+
+                        c.offer = chooseBestOffer(getFulfillableOffers(cf.getOffers()));
+                        if (c.offer == null || c.mask == 0)
+                            continue;
+
+                        c.cost = computeOfferPrice(c.offer);
+                        if (c.cost > receivedValue)
+                            continue;
+
+                        candidates.add(c);
+                    } catch (Codec.CodecException e) {
+                        e.printStackTrace();
+                    } catch (OntologyException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                HashSet<Candidate> accepted = new HashSet<>(chooseCombination(candidates));
+
+                for (Object o : responses) {
+                    ACLMessage response = (ACLMessage)o;
+                    if (response.getPerformative() != ACLMessage.PROPOSE)
+                        continue;
+
+                    Candidate acceptedCandidate = null;
+                    for (Candidate c : accepted) {
+                        if (c.response == response)
+                            acceptedCandidate = c;
+                    }
+
+                    ACLMessage acc = response.createReply();
+                    if (acceptedCandidate == null) {
+                        acc.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                        acceptances.add(acc);
+                        continue;
+                    }
+
+                    try {
+                        Chosen ch = new Chosen();
+                        ch.setOffer(acceptedCandidate.offer);
+                        getContentManager().fillContent(acc, ch);
+                        acc.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
+                        acc.setReplyByDate(new Date(System.currentTimeMillis() + PROPOSAL_TTL));
+
+                        String seller = response.getSender().getName();
+                        chosen.put(seller, ch);
+                        shouldReceive.put(seller, acceptedCandidate.cf.getWillSell());
+
+                        String tradeID = getTradeID(batchCfp, response.getConversationId(), seller);
+                        reserveBooks(acceptedCandidate.offer.getBooks(), tradeID, acc.getReplyByDate().getTime());
+                        reserved.put(seller, tradeID);
+                    } catch (Codec.CodecException e) {
+                        e.printStackTrace();
+                        acc.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                    } catch (OntologyException e) {
+                        e.printStackTrace();
+                        acc.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                    }
+                    acceptances.add(acc);
+                }
+            }
+
+            /**
+             * Chooses the candidates which together buy the most wanted books, with the lowest cost among those. The
+             * candidates must not sell the same book twice, must not want the same book of ours and we must be able to
+             * pay all of them. This is a knapsack over the sets of bought books (there are at most MAX_BATCH of them).
+             */
+            private ArrayList<Candidate> chooseCombination(ArrayList<Candidate> candidates) {
+
+                Plan[] best = new Plan[1 << wanted.size()];
+                best[0] = new Plan();
+
+                for (Candidate c : candidates) {
+                    //go from the largest sets, so that one candidate is used at most once
+                    for (int mask = best.length - 1; mask >= 0; mask--) {
+                        Plan p = best[mask];
+                        if (p == null || (mask & c.mask) != 0 || p.money + c.offer.getMoney() > myMoney)
+                            continue;
+
+                        boolean conflict = false;
+                        ArrayList<Integer> books = new ArrayList<>();
+                        if (c.offer.getBooks() != null) {
+                            for (BookInfo bi : c.offer.getBooks()) {
+                                if (p.usedBooks.contains(bi.getBookID()) || books.contains(bi.getBookID()))
+                                    conflict = true;
+                                books.add(bi.getBookID());
+                            }
+                        }
+                        if (conflict)
+                            continue;
+
+                        int newMask = mask | c.mask;
+                        if (best[newMask] == null || best[newMask].cost > p.cost + c.cost) {
+                            Plan np = p.extend(c);
+                            np.usedBooks.addAll(books);
+                            best[newMask] = np;
+                        }
+                    }
+                }
+
+                Plan bestPlan = best[0];
+                int bestCount = 0;
+                for (int mask = 1; mask < best.length; mask++) {
+                    if (best[mask] == null)
+                        continue;
+                    int count = Integer.bitCount(mask);
+                    if (count > bestCount || (count == bestCount && best[mask].cost < bestPlan.cost)) {
+                        bestPlan = best[mask];
+                        bestCount = count;
+                    }
+                }
+
+                return bestPlan.candidates;
+            }
+        }
+
         //this behavior processes the selling of books
         class SellBook extends SSResponderDispatcher {
 
@@ -523,18 +1099,34 @@ public class BookTrader extends Agent {
 
         class SellBookResponder extends SSContractNetResponder {
 
+            //we sent a proposal and wait for the answer, the buyer accepted it
+            boolean proposed = false;
+            boolean accepted = false;
+            //the trade the offered books are reserved for
+            String tradeID;
+
             public SellBookResponder(Agent a, ACLMessage cfp) {
                 super(a, cfp);
             }
 
+            @Override
+            public int onEnd() {
+                if (proposed)
+                    openProposals--;
+                //the books stay reserved until the transaction finishes (see SendBook)
+                if (tradeID != null && !accepted)
+                    reservations.release(tradeID);
+                return super.onEnd();
+            }
+
             private ArrayList<Offer> makeOtherOffers(double price) {
                 ArrayList<Offer> offers = new ArrayList<>();
                 for (Goal goal : myGoal) {
-                    if (hasBook(goal.getBook().getBookName())) {
+                    if (hasBook(goal.getBook().getTypeID())) {
                         continue;
                     }
                     //double offerMoney = price - goal.getValue() - 10;
-                    double offerMoney = price - getBookBuyPrice(goal.getBook().getBookName());
+                    double offerMoney = price - getBookBuyPrice(goal.getBook().getTypeID());
 
                     ArrayList<BookInfo> bis = new ArrayList<>();
                     bis.add(goal.getBook());
@@ -550,6 +1142,20 @@ public class BookTrader extends Agent {
             @Override
             protected ACLMessage handleCfp(ACLMessage cfp) throws RefuseException, FailureException, NotUnderstoodException {
 
+                //the buyer does not wait for the answer any more (the CFP waited in our queue for too long)
+                if (cfp.getReplyByDate() != null && cfp.getReplyByDate().getTime() <= System.currentTimeMillis()) {
+                    Metrics.getInstance().count(Metrics.CFPS_EXPIRED);
+                    throw new RefuseException("expired");
+                }
+
+                //too many of our proposals wait for the answer, they could all be accepted
+                if (openProposals >= maxProposals) {
+                    Metrics.getInstance().count(Metrics.CFPS_REFUSED_BUSY);
+                    throw new RefuseException("busy");
+                }
+
+                pricing.startRound();
+
                 try {
                     Action ac = (Action)getContentManager().extractContent(cfp);
 
@@ -558,27 +1164,37 @@ public class BookTrader extends Agent {
 
                     ArrayList<BookInfo> sellBooks = new ArrayList<>();
 
-                    //find out, if we have books the agent wants
+                    //in a batched CFP, we can offer only some of the books
+                    boolean partial = cfp.getUserDefinedParameter(BATCH_PARAM) != null;
+                    String trade = getTradeID(cfp, cfp.getConversationId(), myAgent.getName());
+                    long now = System.currentTimeMillis();
+
+                    //find out, if we have books the agent wants (and did not offer them to somebody else)
                     for (BookInfo wantedBook : books) {
                         boolean found = false;
-                        if (!isMyGoal(wantedBook.getBookName())) {
+                        int type = wantedBook.getTypeID();
+                        if (!isMyGoal(type) && hasBook(type)) {
                             for (BookInfo myBook : myBooks) {
-                                if (myBook.getBookName().equals(wantedBook.getBookName())) {
+                                if (myBook.getTypeID() == type && !sellBooks.contains(myBook)
+                                        && !reservations.isReserved(myBook.getBookID(), trade, now)) {
                                     sellBooks.add(myBook);
                                     found = true;
                                     break;
                                 }
                             }
                         }
-                        if (!found)
+                        if (!found && !partial)
                             throw new RefuseException("");
                     }
 
+                    if (sellBooks.isEmpty())
+                        throw new RefuseException("");
+
                     // Make money offfer
                     Offer o1 = new Offer();
                     double price = 0.0;
                     for (BookInfo book : sellBooks) {
-                        price += getBookSellPrice(book.getBookName());
+                        price += getBookSellPrice(book.getTypeID());
                     }
                     o1.setMoney(price);
 
@@ -593,9 +1209,16 @@ public class BookTrader extends Agent {
                     //send the offers
                     ACLMessage reply = cfp.createReply();
                     reply.setPerformative(ACLMessage.PROPOSE);
-                    reply.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
+                    reply.setReplyByDate(new Date(System.currentTimeMillis() + PROPOSAL_TTL));
                     getContentManager().fillContent(reply, cf);
 
+                    proposed = true;
+                    openProposals++;
+
+                    //the offered books are not offered to anybody else until the buyer answers
+                    reserveBooks(sellBooks, trade, reply.getReplyByDate().getTime());
+                    tradeID = trade;
+
                     return reply;
                 } catch (UngroundedException e) {
                     e.printStackTrace();
@@ -611,15 +1234,23 @@ public class BookTrader extends Agent {
             @Override
             protected ACLMessage handleAcceptProposal(ACLMessage cfp, ACLMessage propose, ACLMessage accept) throws FailureException {
 
+                Metrics.getInstance().stage(cfp.getConversationId(), Metrics.TRADE_ACCEPTED);
+
                 try {
                     ChooseFrom cf = (ChooseFrom)getContentManager().extractContent(propose);
 
+                    //the buyer answered after our proposal expired and the books were offered to somebody else
+                    if (!reserveBooks(cf.getWillSell(), tradeID, System.currentTimeMillis() + TRANSACTION_TTL)) {
+                        throw new FailureException("the books are not available any more");
+                    }
+                    accepted = true;
+
                     //prepare the transaction info and send it to the environment
                     MakeTransaction mt = new MakeTransaction();
 
                     mt.setSenderName(myAgent.getName());
                     mt.setReceiverName(cfp.getSender().getName());
-                    mt.setTradeConversationID(cfp.getConversationId());
+                    mt.setTradeConversationID(getTradeID(cfp, cfp.getConversationId(), myAgent.getName()));
 
                     if (cf.getWillSell() == null) {
                         cf.setWillSell(new ArrayList<BookInfo>());
@@ -637,22 +1268,17 @@ public class BookTrader extends Agent {
                     mt.setReceivingBooks(c.getOffer().getBooks());
                     mt.setReceivingMoney(c.getOffer().getMoney());
 
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
+                    AID env = getEnvironment();
 
                     ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
-                    transReq.addReceiver(envs[0].getName());
-                    transReq.setLanguage(codec.getName());
+                    transReq.addReceiver(env);
+                    transReq.setLanguage(getLanguage("environment", env));
                     transReq.setOntology(onto.getName());
-                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
+                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + TRANSACTION_TTL));
 
-                    getContentManager().fillContent(transReq, new Action(envs[0].getName(), mt));
+                    getContentManager().fillContent(transReq, new Action(env, mt));
 
-                    addBehaviour(new SendBook(myAgent, transReq));
+                    addBehaviour(new SendBook(myAgent, transReq, tradeID));
 
                     ACLMessage reply = accept.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
@@ -664,8 +1290,6 @@ public class BookTrader extends Agent {
                     e.printStackTrace();
                 } catch (Codec.CodecException e) {
                     e.printStackTrace();
-                } catch (FIPAException e) {
-                    e.printStackTrace();
                 }
 
                 throw new FailureException("");
@@ -675,45 +1299,177 @@ public class BookTrader extends Agent {
         //after the transaction is complete (the environment returned an INFORM), we update our information
         class SendBook extends AchieveREInitiator {
 
-            public SendBook(Agent a, ACLMessage msg) {
+            long started = System.nanoTime();
+            //the trade our books are reserved for (null if none)
+            String reservation;
+
+            public SendBook(Agent a, ACLMessage msg, String reservation) {
                 super(a, msg);
+                this.reservation = reservation;
+                //the books stay reserved until the environment answers
+                if (reservation != null)
+                    reservations.extend(reservation, msg.getReplyByDate().getTime());
+            }
+
+            @Override
+            public int onEnd() {
+                if (reservation != null)
+                    reservations.release(reservation);
+                return super.onEnd();
+            }
+
+            @Override
+            protected void handleFailure(ACLMessage failure) {
+                Metrics.getInstance().record(Metrics.TRANSACTION, System.nanoTime() - started);
             }
 
             @Override
             protected void handleInform(ACLMessage inform) {
 
-                try {
-                    ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
-                    getMyInfo.setLanguage(codec.getName());
-                    getMyInfo.setOntology(onto.getName());
+                Metrics.getInstance().record(Metrics.TRANSACTION, System.nanoTime() - started);
+                handleTransactionResult(inform);
+            }
+        }
 
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
+        //applies the changes of our information sent with the result of a transaction
+        void handleTransactionResult(ACLMessage inform) {
 
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
+            //an environment which does not send the changes
+            if ("done".equals(inform.getContent())) {
+                requestInfo();
+                return;
+            }
 
-                    getMyInfo.addReceiver(envs[0].getName());
-                    getContentManager().fillContent(getMyInfo, new Action(envs[0].getName(), new GetMyInfo()));
+            try {
+                ContentElement ce = getContentManager().extractContent(inform);
+                if (ce instanceof InfoUpdate) {
+                    applyUpdate((InfoUpdate)ce);
+                    return;
+                }
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
 
-                    ACLMessage myInfo = FIPAService.doFipaRequestClient(myAgent, getMyInfo);
+            requestInfo();
+        }
 
-                    Result res = (Result)getContentManager().extractContent(myInfo);
+        //applies the changes sent by the environment, asks for the whole information if a version is missing
+        void applyUpdate(InfoUpdate update) {
+
+            if (update.getVersion() <= myVersion)
+                return;
+
+            pendingUpdates.put(update.getVersion(), update);
+            applyPendingUpdates();
+
+            //some of the updates were not applied, because a previous one did not arrive (yet)
+            if (!pendingUpdates.isEmpty()) {
+                requestInfo();
+            }
+        }
+
+        //applies the updates which follow the current version
+        void applyPendingUpdates() {
+
+            while (!pendingUpdates.isEmpty() && pendingUpdates.firstKey() <= myVersion + 1) {
+                InfoUpdate update = pendingUpdates.pollFirstEntry().getValue();
+                if (update.getVersion() <= myVersion)
+                    continue;
+
+                if (update.getRemovedBooks() != null) {
+                    for (BookInfo removed : update.getRemovedBooks()) {
+                        for (int i = 0; i < myBooks.size(); i++) {
+                            if (myBooks.get(i).getBookID() == removed.getBookID()) {
+                                removeMyBook(i);
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                if (update.getAddedBooks() != null) {
+                    for (BookInfo added : update.getAddedBooks()) {
+                        addMyBook(added);
+                    }
+                }
+
+                myMoney += update.getMoneyChange();
+                myVersion = update.getVersion();
+            }
+        }
+
+        //asks the environment for the whole information (without blocking the agent)
+        void requestInfo() {
+
+            if (refreshingInfo)
+                return;
+
+            try {
+                ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
+                getMyInfo.setOntology(onto.getName());
+
+                AID env = getEnvironment();
+
+                getMyInfo.setLanguage(getLanguage("environment", env));
+                getMyInfo.addReceiver(env);
+                getContentManager().fillContent(getMyInfo, new Action(env, new GetMyInfo()));
+
+                refreshingInfo = true;
+                addBehaviour(new RefreshInfo(myAgent, getMyInfo));
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //receives the whole information from the environment
+        class RefreshInfo extends AchieveREInitiator {
+
+            long started = System.nanoTime();
+
+            public RefreshInfo(Agent a, ACLMessage msg) {
+                super(a, msg);
+            }
+
+            @Override
+            protected void handleInform(ACLMessage inform) {
+
+                Metrics.getInstance().record(Metrics.INFO_REFRESH, System.nanoTime() - started);
+
+                try {
+                    Result res = (Result)getContentManager().extractContent(inform);
 
                     AgentInfo ai = (AgentInfo)res.getValue();
 
-                    myBooks = ai.getBooks();
-                    myGoal = ai.getGoals();
-                    myMoney = ai.getMoney();
+                    //updates sent before this information are already included in it
+                    if (ai.getVersion() < myVersion)
+                        return;
+
+                    setInfo(ai);
+
+                    applyPendingUpdates();
                 } catch (OntologyException e) {
                     e.printStackTrace();
-                } catch (FIPAException e) {
-                    e.printStackTrace();
                 } catch (Codec.CodecException e) {
                     e.printStackTrace();
                 }
+            }
+
+            @Override
+            public int onEnd() {
+                refreshingInfo = false;
+
+                //there are still updates we cannot apply
+                if (!pendingUpdates.isEmpty()) {
+                    pendingUpdates.headMap(myVersion + 1).clear();
+                    if (!pendingUpdates.isEmpty())
+                        requestInfo();
+                }
 
+                return super.onEnd();
             }
         }
     }
@@ -0,0 +1,269 @@
+package mas.cv4;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.proto.SubscriptionInitiator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A local copy of the parts of the DF the agent is interested in.
+ *
+ * The cache subscribes to the DF for each service type and updates itself only when the DF notifies it about a
+ * registration, modification or deregistration, so looking up the other traders or the environment does not need a
+ * round trip to the DF. Until the first notification for a type arrives, the lookups return no providers (the
+ * notification brings all of them), without a subscription they fall back to a normal DF search, whose result is used
+ * only for SEARCH_TTL milliseconds (nothing tells the cache it changed).
+ *
+ * The DF returns at most jade_domain_df_maxresult (100 by default) descriptions in one search (depending on the
+ * version of JADE also in the first notification of a subscription), the later notifications bring each registration
+ * separately. A platform with more providers of one type than the limit must be started with a larger one (e.g.
+ * jade.Boot -jade_domain_df_maxresult 10000), the cache prints a warning when a result may have been cut off.
+ *
+ * The cache is not thread safe, it should only be used from the behaviours of its agent.
+ */
+public class DirectoryCache {
+
+    /** The profile parameter with the largest number of results of one DF search (read by the DF) */
+    public static final String MAX_RESULTS = "jade_domain_df_maxresult";
+    static final int DEFAULT_MAX_RESULTS = 100;
+    //how long the result of a search for a type without a subscription is used
+    static final long SEARCH_TTL = 1000;
+
+    Agent myAgent;
+
+    //service type -> providers of the service (in the order the DF reported them)
+    HashMap<String, LinkedHashMap<AID, DFAgentDescription>> providers = new HashMap<String, LinkedHashMap<AID, DFAgentDescription>>();
+    //service type -> list of providers returned by getProviders() (null if it has to be rebuilt)
+    HashMap<String, ArrayList<AID>> providerLists = new HashMap<String, ArrayList<AID>>();
+    HashMap<String, DirectorySubscription> subscriptions = new HashMap<String, DirectorySubscription>();
+    //service type without a subscription -> time of the search the providers come from
+    HashMap<String, Long> searched = new HashMap<String, Long>();
+
+    public DirectoryCache(Agent myAgent) {
+        this.myAgent = myAgent;
+    }
+
+    /** Starts following the providers of the given service type */
+    public void subscribe(String type) {
+
+        if (subscriptions.containsKey(type)) {
+            return;
+        }
+        //the notifications bring the providers from now on
+        forgetSearch(type);
+
+        ACLMessage subscribe = DFService.createSubscriptionMessage(myAgent, myAgent.getDefaultDF(), template(type),
+                searchConstraints());
+        DirectorySubscription ds = new DirectorySubscription(myAgent, type, subscribe);
+        subscriptions.put(type, ds);
+        myAgent.addBehaviour(ds);
+    }
+
+    /** Cancels all the subscriptions, should be called from takeDown() */
+    public void cancel() {
+        for (DirectorySubscription ds : subscriptions.values()) {
+            //a subscription the DF did not answer yet has nothing to cancel
+            if (ds.active) {
+                ds.sendCancel();
+            }
+        }
+        subscriptions.clear();
+    }
+
+    /** Returns all known providers of the service, the list must not be modified */
+    public ArrayList<AID> getProviders(String type) {
+
+        Long time = searched.get(type);
+        if (time != null && System.currentTimeMillis() - time > SEARCH_TTL) {
+            forgetSearch(type);
+        }
+
+        ArrayList<AID> list = providerLists.get(type);
+        if (list != null) {
+            return list;
+        }
+
+        LinkedHashMap<AID, DFAgentDescription> known = providers.get(type);
+        if (known == null) {
+            DirectorySubscription ds = subscriptions.get(type);
+            if (ds != null && !ds.active && !ds.done()) {
+                //the first notification (with all the current providers) is on its way, searching now would only
+                //double the load of the DF when many agents subscribe at once
+                return new ArrayList<AID>();
+            }
+            //no notification yet, ask the DF directly
+            known = search(type);
+        }
+
+        list = new ArrayList<AID>(known.keySet());
+        //a failed search is not remembered
+        if (providers.get(type) == known) {
+            providerLists.put(type, list);
+        }
+        return list;
+    }
+
+    /** Returns the first known provider of the service, or null if there is none */
+    public AID getProvider(String type) {
+        ArrayList<AID> list = getProviders(type);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /** Returns the description of the provider as registered in the DF, or null if it is not known */
+    public DFAgentDescription getDescription(String type, AID provider) {
+        getProviders(type);
+        LinkedHashMap<AID, DFAgentDescription> known = providers.get(type);
+        return known == null ? null : known.get(provider);
+    }
+
+    /** Checks whether the provider announced (for the agent or for one of its services) it understands the language */
+    public boolean supportsLanguage(String type, AID provider, String language) {
+
+        DFAgentDescription dfd = getDescription(type, provider);
+        if (dfd == null) {
+            return false;
+        }
+
+        Iterator it = dfd.getAllLanguages();
+        while (it.hasNext()) {
+            if (language.equals(it.next()))
+                return true;
+        }
+
+        Iterator services = dfd.getAllServices();
+        while (services.hasNext()) {
+            ServiceDescription sd = (ServiceDescription)services.next();
+            Iterator langs = sd.getAllLanguages();
+            while (langs.hasNext()) {
+                if (language.equals(langs.next()))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    private LinkedHashMap<AID, DFAgentDescription> search(String type) {
+
+        LinkedHashMap<AID, DFAgentDescription> found = new LinkedHashMap<AID, DFAgentDescription>();
+
+        try {
+            for (DFAgentDescription dfd : DFService.search(myAgent, template(type), searchConstraints())) {
+                found.put(dfd.getName(), dfd);
+            }
+            checkLimit(type, found.size());
+        } catch (FIPAException e) {
+            e.printStackTrace();
+            return found; //do not remember failed searches
+        }
+
+        //if there is a subscription, the notifications keep the result up to date, otherwise it is searched again
+        //after a while
+        providers.put(type, found);
+        if (!subscriptions.containsKey(type)) {
+            searched.put(type, System.currentTimeMillis());
+        }
+
+        return found;
+    }
+
+    /** Whether the first notification of the subscription to the type arrived (the providers are known) */
+    public boolean isKnown(String type) {
+        return providers.containsKey(type) && !searched.containsKey(type);
+    }
+
+    private void forgetSearch(String type) {
+        if (searched.remove(type) != null) {
+            providers.remove(type);
+            providerLists.remove(type);
+        }
+    }
+
+    //as many results as the DF returns (a negative number means its limit, see MAX_RESULTS)
+    private static SearchConstraints searchConstraints() {
+        SearchConstraints sc = new SearchConstraints();
+        sc.setMaxResults(-1L);
+        return sc;
+    }
+
+    //warns when the DF returned exactly as many descriptions as its limit, there may be more of them
+    private void checkLimit(String type, int results) {
+        int limit = Integer.parseInt(myAgent.getProperty(MAX_RESULTS, "" + DEFAULT_MAX_RESULTS));
+        if (results == limit) {
+            System.err.println(myAgent.getLocalName() + ": the DF returned " + results + " providers of " + type +
+                    ", which is its limit, some may be missing (start the platform with -" + MAX_RESULTS + " N)");
+        }
+    }
+
+    private static DFAgentDescription template(String type) {
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(type);
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+        return dfd;
+    }
+
+    //receives the notifications from the DF about the providers of one service type
+    private class DirectorySubscription extends SubscriptionInitiator {
+
+        String type;
+        ACLMessage subscribe;
+        String conversationId;
+        boolean active = false;
+
+        DirectorySubscription(Agent a, String type, ACLMessage subscribe) {
+            super(a, subscribe);
+            this.type = type;
+            this.subscribe = subscribe;
+        }
+
+        //the cancel is sent directly, SubscriptionInitiator.cancel() fails for a session closed by the takedown
+        void sendCancel() {
+            subscribe.setConversationId(conversationId);
+            myAgent.send(DFService.createCancelMessage(myAgent, myAgent.getDefaultDF(), subscribe));
+        }
+
+        @Override
+        protected void handleInform(ACLMessage inform) {
+
+            active = true;
+            conversationId = inform.getConversationId();
+
+            try {
+                DFAgentDescription[] changes = DFService.decodeNotification(inform.getContent());
+
+                LinkedHashMap<AID, DFAgentDescription> known = providers.get(type);
+                if (known == null) {
+                    //the first notification is a search, the limit of the DF may apply to it
+                    checkLimit(type, changes.length);
+                    known = new LinkedHashMap<AID, DFAgentDescription>();
+                    providers.put(type, known);
+                }
+
+                for (DFAgentDescription dfd : changes) {
+                    //a description without services means the agent deregistered
+                    if (dfd.getAllServices().hasNext()) {
+                        known.put(dfd.getName(), dfd);
+                    } else {
+                        known.remove(dfd.getName());
+                    }
+                }
+
+                providerLists.remove(type);
+
+            } catch (FIPAException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
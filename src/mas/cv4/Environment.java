@@ -7,6 +7,7 @@ import jade.content.onto.Ontology;
 import jade.content.onto.OntologyException;
 import jade.content.onto.basic.Action;
 import jade.content.onto.basic.Result;
+import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
@@ -22,36 +23,138 @@ import mas.cv4.onto.*;
 import mas.cv4.onto.BookInfo;
 import mas.cv4.onto.BookOntology;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Martin Pilat on 11.2.14.
  *
  * An implementation of the environment which takes care of the trading between teh agents, send books and stores
  * information about agents.
+ *
+ * The environment can be split into shards (shard=I;shards=N), e.g. one per container. Each shard keeps the accounts
+ * of the agents in its range of name hashes and the order books of some titles (see ShardMap), and the traders talk
+ * only to their home shard. A request which belongs to another shard (a trade coordinated there, or an order for a
+ * title booked there) is forwarded to it and its reply is relayed back to the trader (see ShardRelay). A trade between
+ * the agents of two shards is settled with a two-phase commit (see TwoPhaseCommit): the coordinating shard asks the
+ * home shard of each agent to hold the books and money the agent sends (prepare), and commits the trade when all of
+ * them are held, or aborts it. Each shard replies to its own agent with the change of its information. A shard which
+ * restarts in the middle of the commit loses its holds (they are not journaled), the trades in doubt are not
+ * recovered.
+ *
+ * The traders are counted from the notifications of the DF. The first notification of a subscription brings at most
+ * jade_domain_df_maxresult (100 by default) of the traders registered before the environment, so a platform with more
+ * of them must be started with a larger limit (see DirectoryCache), the traders registered later are all counted.
  */
 public class Environment extends Agent {
 
     ArrayList<String> agents = new ArrayList<String>();
-    HashMap<String, AgentInfo> agentBooks = new HashMap<String, AgentInfo>();
-    HashMap<String, TransactionInfo> unfinishedTransaction = new HashMap<String, TransactionInfo>();
+    Ledger ledger = new Ledger();
+    SettlementEngine settlement;
+    //the first requests of the transactions waiting for the other side
+    TransactionMatcher transactions;
+    long transactionTimeout;
+    long expiredTransactions = 0;
+    //number of traders to wait for before the trading starts (0 = start with the traders registered at setup)
+    int expectedTraders;
+    //number of agents in the periodic report
+    int reportTop;
+    //time the StartTrading message was sent (0 if not yet)
+    volatile long tradingStart = 0;
     Codec codec = new SLCodec();
+    Codec binaryCodec = new BinaryCodec();
     Ontology onto = BookOntology.getInstance();
-    Random rnd = new Random();
+    //print the generated goals of the traders
+    boolean verbose;
+    //seed of the goal generator, number of threads generating the goals
+    long seed;
+    int workers;
+    //number of traders in one StartTrading message
+    int startBatch;
+    //print the metrics this often (in milliseconds, 0 = never)
+    long metricsPeriod;
+    //order books of the titles (indexed by the type ID of the title) and the expiry of the orders in them
+    OrderBook[] orderBooks = new OrderBook[0];
+    TimerWheel<OrderBook.Order> orderTimeouts;
+    //journal of the agents and the settled trades (null if there is none)
+    Journal journal;
+    //periodic snapshots of the market (null if there are none), written by their own thread
+    SnapshotStore snapshots;
+    ExecutorService snapshotWriter;
+    //records the received MakeTransaction requests (null if they are not recorded)
+    TradeRecorder recorder;
+    //sends the replies to the settled trades (also the ones sent when their journal records are durable)
+    SettlementReplyBehaviour replies;
+    ConcurrentLinkedQueue<ACLMessage> durableReplies = new ConcurrentLinkedQueue<ACLMessage>();
+
+    //protocols of the messages between the shards, the trader of a forwarded request and the request at its home shard
+    static final String RELAY_PROTOCOL = "shard-relay";
+    static final String COMMIT_PROTOCOL = "two-phase-commit";
+    static final String TRADER_PARAM = "trader";
+    static final String TOKEN_PARAM = "relay-token";
+
+    //the shard of this environment, the agents of all shards (known when the trading starts)
+    ShardMap shardMap;
+    DirectoryCache directory;
+    AID[] shardAgents;
+    //the requests forwarded to other shards, and the trades with the agents of other shards
+    ShardRelay<ACLMessage> relay;
+    TwoPhaseCommit twoPhaseCommit;
+    TwoPhaseCommitMessages commitMessages = new TwoPhaseCommitMessages();
+    //the messages taken by one run of the dispatcher, the scheduler runs the other behaviours between the batches
+    static final int DISPATCH_BATCH = 100;
 
 
     @Override
     protected void setup() {
         super.setup();
 
-        //register the codec and the ontology with the content manager
+        //arguments: workers=N (number of settlement threads), deterministic (settle in the order of arrival)
+        HashMap<String, String> args = Utils.parseArguments(getArguments());
+        workers = Integer.parseInt(Utils.getArgument(args, "workers", "" + Runtime.getRuntime().availableProcessors()));
+        boolean deterministic = Boolean.parseBoolean(Utils.getArgument(args, "deterministic", "false"));
+        //transaction-timeout=T (milliseconds to wait for the other side of a transaction)
+        transactionTimeout = Long.parseLong(Utils.getArgument(args, "transaction-timeout", "5000"));
+        transactions = new TransactionMatcher(transactionTimeout, System.currentTimeMillis());
+        orderTimeouts = new TimerWheel<OrderBook.Order>(1, 8192, System.currentTimeMillis());
+        relay = new ShardRelay<ACLMessage>(transactionTimeout, System.currentTimeMillis());
+        //shard=I, shards=N (keep only the agents of the I-th of N ranges of the name hashes, see ShardMap)
+        shardMap = new ShardMap(Integer.parseInt(Utils.getArgument(args, "shard", "0")),
+                Integer.parseInt(Utils.getArgument(args, "shards", "1")));
+        //traders=N (wait until N traders are registered in the DF)
+        expectedTraders = Integer.parseInt(Utils.getArgument(args, "traders", "0"));
+        //report-top=K (print only the K best agents)
+        reportTop = Integer.parseInt(Utils.getArgument(args, "report-top", "" + Integer.MAX_VALUE));
+        //verbose=false (do not print the goals), seed=S (of the goals), start-batch=B (traders per StartTrading)
+        verbose = Boolean.parseBoolean(Utils.getArgument(args, "verbose", "true"));
+        seed = Long.parseLong(Utils.getArgument(args, "seed", "" + new Random().nextLong()));
+        startBatch = Integer.parseInt(Utils.getArgument(args, "start-batch", "100"));
+        //metrics=false (do not record the latencies), metrics-period=T (print the metrics every T milliseconds)
+        if (!Boolean.parseBoolean(Utils.getArgument(args, "metrics", "true"))) {
+            Metrics.getInstance().setEnabled(false);
+        }
+        metricsPeriod = Long.parseLong(Utils.getArgument(args, "metrics-period", "0"));
+        Metrics.getInstance().registerMBean();
+
+        //register the codecs and the ontology with the content manager, the replies use the language of the request
         this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerLanguage(binaryCodec);
         this.getContentManager().registerOntology(onto);
 
         //describe the environment service
         ServiceDescription sd = new ServiceDescription();
         sd.setType("environment");
         sd.setName("env");
+        sd.addLanguages(codec.getName());
+        sd.addLanguages(binaryCodec.getName());
+        shardMap.describe(sd);
 
         //describe this agents and the services it provides
         DFAgentDescription dfd = new DFAgentDescription();
@@ -65,20 +168,102 @@ public class Environment extends Agent {
             e.printStackTrace();
         }
 
-        //send StartTrading to all agents
-        addBehaviour(new StartTradingBehavior());
-        //periodically print the utilities of all agents
+        //follow the registrations of the traders (and the trader hosts)
+        directory = new DirectoryCache(this);
+        directory.subscribe("book-trader");
+        directory.subscribe(TraderHost.SERVICE);
+
+        //the shards find each other in the DF, and send each other the requests and the two phases of the trades (the
+        //dispatcher takes their messages too)
+        if (shardMap.getShards() > 1) {
+            directory.subscribe("environment");
+        }
+
+        //send StartTrading to all agents (when the DF told us about them)
+        addBehaviour(new WaitForTradersBehaviour(this, 200));
+        //periodically print the utilities of all agents (and the metrics)
         addBehaviour(new PrintAgentUtilityBehaviour(this));
+        if (metricsPeriod > 0) {
+            addBehaviour(new PrintMetricsBehaviour(this, metricsPeriod));
+        }
         //process all incoming requests
         addBehaviour(new MessageDispatcherBehavior());
-        //periodically remove all transactions which were not completed in time
-        addBehaviour(new UnfinishedTransactionsRemoverBehavior(this));
+        //send the results of the settlements made by the settlement engine
+        replies = new SettlementReplyBehaviour();
+        addBehaviour(replies);
+        settlement = new SettlementEngine(ledger, workers, deterministic, new SettlementEngine.ResultListener() {
+            @Override
+            public void resultAvailable() {
+                replies.restart();
+            }
+        });
+        twoPhaseCommit = new TwoPhaseCommit(shardMap, ledger, transactionTimeout, System.currentTimeMillis(),
+                new TwoPhaseCommitSender());
+        //snapshot-dir=DIR (write snapshots of the market there and restore the latest one at the start),
+        //snapshot-period=T (milliseconds between the snapshots), snapshot-keep=N (number of snapshots kept)
+        String snapshotDir = shardFile(Utils.getArgument(args, "snapshot-dir", null));
+        long journalFrom = 0;
+        if (snapshotDir != null) {
+            snapshots = new SnapshotStore(new File(snapshotDir),
+                    Integer.parseInt(Utils.getArgument(args, "snapshot-keep", "2")));
+            journalFrom = restoreSnapshot();
+            snapshotWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "snapshot-writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            addBehaviour(new SnapshotBehaviour(this, Long.parseLong(Utils.getArgument(args, "snapshot-period", "60000"))));
+        }
+        //record=FILE (record the MakeTransaction requests for SettlementReplay)
+        String recordFile = shardFile(Utils.getArgument(args, "record", null));
+        if (recordFile != null) {
+            try {
+                recorder = new TradeRecorder(new File(recordFile));
+                addBehaviour(new TickerBehaviour(this, 1000) {
+                    @Override
+                    protected void onTick() {
+                        recorder.flush();
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        //journal=FILE (record the agents and the trades, a restarted environment recovers the ledger from the file,
+        //after the snapshot only the part of the journal written after it)
+        String journalFile = shardFile(Utils.getArgument(args, "journal", null));
+        if (journalFile != null) {
+            openJournal(new File(journalFile), journalFrom);
+        }
+        //remove all transactions which were not completed in time
+        addBehaviour(new UnfinishedTransactionsRemoverBehavior(this, 50));
 
     }
 
     @Override
     protected void takeDown() {
         super.takeDown();
+        settlement.shutdown();
+        //the last snapshot makes the next start fast
+        if (snapshots != null) {
+            snapshotWriter.shutdown();
+            try {
+                snapshotWriter.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writeSnapshot(ledger.capture(journal));
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (recorder != null) {
+            recorder.close();
+        }
+        directory.cancel();
         try {
             DFService.deregister(this);
         } catch (FIPAException e) {
@@ -86,72 +271,297 @@ public class Environment extends Agent {
         }
     }
 
-    //send the info about the start of trading, generate goals for agents
-    private class StartTradingBehavior extends OneShotBehaviour {
+    //each shard has its own journal, snapshots and recording, the shards of one environment add their index to the name
+    private String shardFile(String path) {
+        if (path == null || shardMap.getShards() == 1) {
+            return path;
+        }
+        return path + "." + shardMap.getShard();
+    }
+
+    //restores the ledger from the latest snapshot, returns the position of the journal the snapshot was taken at
+    private long restoreSnapshot() {
+        long start = System.currentTimeMillis();
+        SnapshotStore.Snapshot s = snapshots.readLatest();
+        if (s == null) {
+            return 0;
+        }
+        ledger.addAgents(s.names, s.infos);
+        System.out.println("Restored " + s.names.length + " agents from " + s.file + " (taken " + new Date(s.time) +
+                ") in " + (System.currentTimeMillis() - start) + " ms");
+        return s.journalPosition;
+    }
+
+    //writes the view of the ledger as a snapshot (on the calling thread)
+    private void writeSnapshot(Ledger.View view) {
+        long start = System.nanoTime();
+        try {
+            snapshots.write(view);
+            Metrics.getInstance().record(Metrics.SNAPSHOT, System.nanoTime() - start);
+            Metrics.getInstance().count(Metrics.SNAPSHOTS);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //takes the views of the ledger periodically, the snapshots are written by the snapshot writer
+    private class SnapshotBehaviour extends TickerBehaviour {
+
+        //a snapshot is not started while the previous one is being written
+        AtomicBoolean writing = new AtomicBoolean(false);
+
+        public SnapshotBehaviour(Agent a, long period) {
+            super(a, period);
+        }
 
         @Override
-        public void action() {
+        protected void onTick() {
+            if (ledger.getAgentCount() == 0 || !writing.compareAndSet(false, true)) {
+                return;
+            }
 
-            //find all traders
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType("book-trader");
-            DFAgentDescription dfd = new DFAgentDescription();
-            dfd.addServices(sd);
+            //the trades wait only while the states of the accounts are collected
+            long start = System.nanoTime();
+            final Ledger.View view = ledger.capture(journal);
+            Metrics.getInstance().record(Metrics.SNAPSHOT_VIEW, System.nanoTime() - start);
+
+            snapshotWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeSnapshot(view);
+                    } finally {
+                        writing.set(false);
+                    }
+                }
+            });
+        }
+    }
 
-            try {
-                DFAgentDescription[] traders = DFService.search(myAgent, dfd);
+    //rebuilds the ledger from the journal (the records after the position from) and records the settled trades in it
+    //from now on
+    private void openJournal(File file, long from) {
+        try {
+            long start = System.currentTimeMillis();
+            LedgerRecovery recovery = new LedgerRecovery();
+            journal = new Journal(file, recovery, from);
+            recovery.flushAgents();
+            settlement.setJournal(journal);
+            twoPhaseCommit.setJournal(journal);
+
+            if (recovery.agents > 0 || recovery.trades > 0 || recovery.failed > 0) {
+                System.out.println("Recovered " + recovery.agents + " agents and " + recovery.trades + " trades (" +
+                        recovery.failed + " failed) from " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                ACLMessage startMsg = new ACLMessage(ACLMessage.REQUEST);
-                startMsg.setOntology(onto.getName());
-                startMsg.setLanguage(codec.getName());
+    //applies the records of the journal to the ledger, the agents registered together are added at once
+    private class LedgerRecovery implements Journal.Replayer {
 
-                ArrayList<String> booksNames = new ArrayList<String>();
-                booksNames.addAll(Constants.getBooknames());
-                int bID = 0;
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<AgentInfo> infos = new ArrayList<AgentInfo>();
+        int agents = 0;
+        int trades = 0;
+        int failed = 0;
 
-                //generate goals and books for each agent
-                for (DFAgentDescription tr : traders) {
+        @Override
+        public void agent(String name, AgentInfo info) {
+            //the agent may be in the snapshot already, its record was appended just after the view was taken
+            if (ledger.hasAgent(name)) {
+                return;
+            }
+            names.add(name);
+            infos.add(info);
+        }
 
-                    Collections.shuffle(booksNames,rnd);
-                    AgentInfo ai = new AgentInfo();
-                    ArrayList<BookInfo> books = new ArrayList<BookInfo>();
-                    ArrayList<Goal> goal = new ArrayList<Goal>();
+        @Override
+        public void trade(long time, String conversationID, String agent1, int[] books1, double money1,
+                          String agent2, int[] books2, double money2) {
+            flushAgents();
+            if (ledger.applyTrade(agent1, books1, money1, agent2, books2, money2)) {
+                trades++;
+            } else {
+                failed++;
+                System.err.println("Cannot recover trade " + conversationID + " between " + agent1 + " and " + agent2);
+            }
+        }
 
+        @Override
+        public void transfer(long time, String conversationID, String agent, int[] sent, double sentMoney,
+                             ArrayList<BookInfo> received, double receivedMoney) {
+            flushAgents();
+            if (ledger.applyTransfer(agent, sent, sentMoney, received, receivedMoney)) {
+                trades++;
+            } else {
+                failed++;
+                System.err.println("Cannot recover the part of trade " + conversationID + " of " + agent);
+            }
+        }
 
-                    for (int i = 0; i < 4; i++) {
-                        BookInfo bi = new BookInfo();
-                        bi.setBookID(bID++);
-                        bi.setBookName(booksNames.get(i));
-                        books.add(bi);
+        void flushAgents() {
+            if (names.isEmpty()) {
+                return;
+            }
+            ledger.addAgents(names.toArray(new String[names.size()]), infos.toArray(new AgentInfo[infos.size()]));
+            agents += names.size();
+            names.clear();
+            infos.clear();
+        }
+    }
+
+    //finds all registered traders (also the ones run by the trader hosts), with the agent StartTrading is sent to
+    private LinkedHashMap<String, AID> findTraders() {
+        LinkedHashMap<String, AID> traders = new LinkedHashMap<String, AID>();
+        for (AID trader : directory.getProviders("book-trader")) {
+            traders.put(trader.getName(), trader);
+        }
+        for (AID host : directory.getProviders(TraderHost.SERVICE)) {
+            int count = TraderHost.getTraderCount(directory.getDescription(TraderHost.SERVICE, host));
+            for (int i = 0; i < count; i++) {
+                traders.put(TraderHost.getTraderName(host, i), host);
+            }
+        }
+        return traders;
+    }
+
+    //finds the agents of all shards (in the DF), returns true when all of them are known
+    private boolean findShards() {
+
+        if (shardMap.getShards() == 1) {
+            return true;
+        }
+
+        AID[] found = new AID[shardMap.getShards()];
+        for (AID env : directory.getProviders("environment")) {
+            int shard = ShardMap.getShard(directory.getDescription("environment", env));
+            if (shard < found.length) {
+                found[shard] = env;
+            }
+        }
+
+        for (AID env : found) {
+            if (env == null) {
+                return false;
+            }
+        }
+        shardAgents = found;
+        return true;
+    }
+
+    //whether the agent is the environment of another shard (the protocol and parameters are set by the sender, so
+    //only its name tells whether to trust them)
+    private boolean isShard(AID sender) {
+        if (shardAgents == null) {
+            findShards();
+        }
+        if (shardAgents == null) {
+            return false; //a single shard, or not all of them registered yet
+        }
+        for (AID shard : shardAgents) {
+            if (shard.equals(sender) && !shard.equals(getAID())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //starts the trading once the DF told us about the traders, the expected number of them (and all the shards)
+    //registered
+    private class WaitForTradersBehaviour extends TickerBehaviour {
+
+        public WaitForTradersBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+            //the DF does not notify about a service nobody provides, so only one of the types has to be known
+            if ((directory.isKnown("book-trader") || directory.isKnown(TraderHost.SERVICE))
+                    && findTraders().size() >= expectedTraders && findShards()) {
+                addBehaviour(new StartTradingBehavior());
+                stop();
+            }
+        }
+    }
+
+    //send the info about the start of trading, generate goals for agents
+    private class StartTradingBehavior extends OneShotBehaviour {
+
+        @Override
+        public void action() {
+
+            try {
+                //only the traders of this shard, and the agents running them (a trader host starts all its traders
+                //of this shard at once)
+                ArrayList<String> traders = new ArrayList<String>();
+                LinkedHashMap<AID, Integer> receivers = new LinkedHashMap<AID, Integer>();
+                for (Map.Entry<String, AID> trader : findTraders().entrySet()) {
+                    if (shardMap.isLocal(trader.getKey())) {
+                        traders.add(trader.getKey());
+                        Integer n = receivers.get(trader.getValue());
+                        receivers.put(trader.getValue(), n == null ? 1 : n + 1);
                     }
+                }
+                long start = System.currentTimeMillis();
 
-                    for (int i = 4; i < booksNames.size(); i++) {
-                        BookInfo bi = new BookInfo();
-                        bi.setBookID(bID++);
-                        bi.setBookName(booksNames.get(i));
-                        Goal g = new Goal();
-                        g.setBook(bi);
-                        g.setValue(Constants.getPrice(booksNames.get(i))+rnd.nextInt(40)-20);
-                        goal.add(g);
+                //the traders recovered from the journal keep their books and goals
+                ArrayList<String> newTraders = new ArrayList<String>();
+                for (String trader : traders) {
+                    if (!ledger.hasAgent(trader)) {
+                        newTraders.add(trader);
                     }
+                }
 
-                    ai.setBooks(books);
-                    ai.setGoals(goal);
-                    ai.setMoney(400);
+                //generate goals and books for each agent (in parallel, each agent has its own random generator)
+                AgentInfo[] infos = new GoalGenerator(seed, workers)
+                        .setPartition(shardMap.getShard(), shardMap.getShards())
+                        .generate(ledger.getAgentCount(), newTraders.size());
 
-                    System.out.println("Created goals for: " + tr.getName().getName());
-                    System.out.println("\t" + ai.toString());
-                    agentBooks.put(tr.getName().getName(), ai);
-                    startMsg.addReceiver(tr.getName());
+                String[] names = newTraders.toArray(new String[newTraders.size()]);
+                for (int i = 0; i < names.length; i++) {
+                    if (verbose) {
+                        System.out.println("Created goals for: " + names[i]);
+                        System.out.println("\t" + infos[i].toString());
+                    }
                 }
+                ledger.addAgents(names, infos);
 
+                //the traders must not start before their registration is durable
+                if (journal != null && names.length > 0) {
+                    for (int i = 0; i < names.length; i++) {
+                        journal.appendAgent(names[i], infos[i]);
+                    }
+                    journal.sync();
+                }
+                //the recording starts with the market as it is when the trading starts
+                if (recorder != null) {
+                    recorder.recordAgents(ledger);
+                }
 
-                getContentManager().fillContent(startMsg, new Action(myAgent.getAID(), new StartTrading()));
+                //send the StartTrading in batches, the first traders can start while the others are being sent
+                StartTradingProgress progress = new StartTradingProgress(traders.size(), start, receivers);
+                ArrayList<AID> recipients = new ArrayList<AID>(receivers.keySet());
+                for (int from = 0; from < recipients.size(); from += startBatch) {
 
-                addBehaviour(new AchieveREInitiator(myAgent, startMsg));
+                    ACLMessage startMsg = new ACLMessage(ACLMessage.REQUEST);
+                    startMsg.setOntology(onto.getName());
+                    startMsg.setLanguage(codec.getName());
+
+                    for (int i = from; i < Math.min(recipients.size(), from + startBatch); i++) {
+                        startMsg.addReceiver(recipients.get(i));
+                    }
+
+                    getContentManager().fillContent(startMsg, new Action(myAgent.getAID(), new StartTrading()));
+
+                    progress.batches++;
+                    addBehaviour(new StartTradingInitiator(myAgent, startMsg, progress));
+                }
+
+                tradingStart = System.currentTimeMillis();
 
-            } catch (FIPAException e) {
-                e.printStackTrace();
             } catch (Codec.CodecException e) {
                 e.printStackTrace();
             } catch (OntologyException e) {
@@ -161,97 +571,182 @@ public class Environment extends Agent {
         }
     }
 
-    //print the utility of all agents every 15 seconds
-    private class PrintAgentUtilityBehaviour extends TickerBehaviour {
-
-        public PrintAgentUtilityBehaviour(Agent myAgent) {
-            super(myAgent, 15000);
+    //how many of the StartTrading batches were answered
+    private static class StartTradingProgress {
+
+        final int traders;
+        final long start;
+        //the number of the traders each receiver runs
+        final HashMap<AID, Integer> receivers;
+        int batches;
+        int answered;
+        int started;
+
+        StartTradingProgress(int traders, long start, HashMap<AID, Integer> receivers) {
+            this.traders = traders;
+            this.start = start;
+            this.receivers = receivers;
         }
+    }
 
-        private class AgentUtil implements Comparable<AgentUtil> {
-
-            public String agent;
-            public double util;
-            public boolean goalMet;
+    //sends one batch of StartTrading, reports when all the batches are answered
+    private class StartTradingInitiator extends AchieveREInitiator {
 
-            public AgentUtil(String agent, double util, boolean goalMet) {
-                this.agent = agent;
-                this.util = util;
-                this.goalMet = goalMet;
-            }
+        StartTradingProgress progress;
 
-            @Override
-            public int compareTo(AgentUtil o) {
-                return Double.compare(this.util, o.util);
-            }
+        public StartTradingInitiator(Agent a, ACLMessage msg, StartTradingProgress progress) {
+            super(a, msg);
+            this.progress = progress;
         }
 
         @Override
-        protected void onTick() {
+        protected void handleAllResultNotifications(Vector resultNotifications) {
 
-            ArrayList<AgentUtil> utils = new ArrayList<AgentUtil>();
+            for (Object o : resultNotifications) {
+                ACLMessage notification = (ACLMessage)o;
+                Integer n = progress.receivers.get(notification.getSender());
+                if (notification.getPerformative() == ACLMessage.INFORM && n != null) {
+                    progress.started += n;
+                }
+            }
 
-            for (String aid : agentBooks.keySet()) {
-                AgentInfo ai = agentBooks.get(aid);
-                double util = Utils.computeUtility(ai);
-                boolean allGoals = Utils.hasAllBooks(ai);
-                utils.add(new AgentUtil(aid, util, allGoals));
+            if (++progress.answered < progress.batches) {
+                return;
             }
 
-            Collections.sort(utils);
+            long time = System.currentTimeMillis() - progress.start;
+            Metrics.getInstance().record(Metrics.START_TRADING, time * 1000000);
+            Metrics.getInstance().count(Metrics.TRADERS_STARTED, progress.started);
+            System.out.println(progress.started + " of " + progress.traders + " traders started in " + time + " ms");
+        }
+    }
+
+    //print the utility of the best agents every 15 seconds
+    private class PrintAgentUtilityBehaviour extends TickerBehaviour {
+
+        public PrintAgentUtilityBehaviour(Agent myAgent) {
+            super(myAgent, 15000);
+        }
+
+        @Override
+        protected void onTick() {
 
+            //the ledger keeps the agents ordered by their utility, only the printed ones are visited
             System.out.println();
             System.out.println();
-            for (int i = utils.size() - 1; i >=0; i--) {
-                AgentUtil au = utils.get(i);
-                System.out.printf("%50s  %13f %5s \n", au.agent, au.util, au.goalMet ? "YES" : "NO");
-                //System.out.println(agentBooks.get(au.agent));
+            for (Ledger.Standing st : ledger.getTop(reportTop)) {
+                System.out.printf("%50s  %13f %5s \n", st.name, st.utility, st.allGoalsMet ? "YES" : "NO");
             }
+            System.out.println("pending transactions: " + getPendingTransactions() + ", expired: " + getExpiredTransactions());
             System.out.println();
 
         }
     }
 
-    //remove unmatched transactions older than 5 seconds every 5 seconds
-    private class UnfinishedTransactionsRemoverBehavior extends TickerBehaviour {
+    //print the counters and the latencies of the stages
+    private class PrintMetricsBehaviour extends TickerBehaviour {
 
-        public UnfinishedTransactionsRemoverBehavior(Agent myAgent) {
-            super(myAgent, 5000);
+        public PrintMetricsBehaviour(Agent myAgent, long period) {
+            super(myAgent, period);
         }
 
         @Override
         protected void onTick() {
+            System.out.println();
+            Metrics.getInstance().print(System.out);
+            System.out.println();
+        }
+    }
 
-            ArrayList<String> remove = new ArrayList<String>();
+    /** The number of transactions waiting for the request of the other agent */
+    public int getPendingTransactions() {
+        return transactions.size();
+    }
 
-            long time = System.currentTimeMillis();
-            for (TransactionInfo ti : unfinishedTransaction.values()) {
-                if (ti.getTimeReceived()-time > 5000)
-                    remove.add(ti.getSendOrder().getTradeConversationID());
-            }
+    /** The time the trading started (in milliseconds), 0 if it did not start yet */
+    public long getTradingStart() {
+        return tradingStart;
+    }
 
-            for (String s : remove) {
+    /** The number of transactions which were not matched in time */
+    public long getExpiredTransactions() {
+        return expiredTransactions;
+    }
 
-                ACLMessage fail = unfinishedTransaction.get(s).getSenderMessage().createReply();
+    //remove unmatched transactions older than the timeout and expired orders (and the forwarded requests and trades
+    //between the shards nobody answered), the timer wheels find them without scanning all of them
+    private class UnfinishedTransactionsRemoverBehavior extends TickerBehaviour {
+
+        ArrayList<TransactionInfo> expired = new ArrayList<TransactionInfo>();
+        ArrayList<OrderBook.Order> expiredOrders = new ArrayList<OrderBook.Order>();
+
+        public UnfinishedTransactionsRemoverBehavior(Agent myAgent, long period) {
+            super(myAgent, period);
+        }
+
+        @Override
+        protected void onTick() {
+
+            transactions.expire(System.currentTimeMillis(), expired);
+
+            for (TransactionInfo ti : expired) {
+                ACLMessage fail = ti.getSenderMessage().createReply();
                 fail.setPerformative(ACLMessage.FAILURE);
                 fail.setContent("transaction not matched in time");
                 send(fail);
-                unfinishedTransaction.remove(s);
+                expiredTransactions++;
+                Metrics.getInstance().count(Metrics.TRANSACTIONS_EXPIRED);
+                Metrics.getInstance().drop(ti.getSendOrder().getTradeConversationID());
+            }
+
+            expired.clear();
+
+            //orders which were not filled until the reply-by time of their request, the trader does not wait for the
+            //reply any more, so none is sent
+            orderTimeouts.advance(System.currentTimeMillis(), expiredOrders);
+            for (OrderBook.Order order : expiredOrders) {
+                getOrderBook(order.order.getBook().getTypeID()).remove(order);
             }
+            expiredOrders.clear();
 
+            //the traders do not wait for these replies any more
+            relay.expire(System.currentTimeMillis());
+            twoPhaseCommit.expire(System.currentTimeMillis());
         }
     }
 
-    //dispatch the requests to two behaviros which will take care of them
+    //dispatch the requests to two behaviros which will take care of them, and the messages of the other shards (one
+    //template for all of them, a behaviour with a template of its own would scan the whole queue of the requests each
+    //time a message arrives)
     private class MessageDispatcherBehavior extends CyclicBehaviour {
 
+        MessageTemplate template = MessageTemplate.or(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                MessageTemplate.or(MessageTemplate.MatchProtocol(RELAY_PROTOCOL),
+                        MessageTemplate.MatchProtocol(COMMIT_PROTOCOL)));
+
         @Override
         public void action() {
 
-            ACLMessage received = myAgent.receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+            //a batch of messages at once, the other behaviours waiting for messages (the subscriptions to the DF) scan
+            //the whole queue each time they run
+            for (int i = 0; i < DISPATCH_BATCH; i++) {
+                ACLMessage received = myAgent.receive(template);
+                if (received == null) {
+                    block();
+                    return;
+                }
+                dispatch(received);
+            }
+        }
+
+        void dispatch(ACLMessage received) {
 
-            if (received == null) {
-                block();
+            if (COMMIT_PROTOCOL.equals(received.getProtocol())) {
+                commitMessages.handle(received);
+                return;
+            }
+            if (received.getPerformative() != ACLMessage.REQUEST) {
+                handleRelayReply(received);
                 return;
             }
 
@@ -270,8 +765,16 @@ public class Environment extends Agent {
 
             Action aa = (Action)ce;
 
-            //add behavior for MakeTransaction
+            //add behavior for MakeTransaction (the trade is paired by the coordinating shard)
             if (aa.getAction() instanceof MakeTransaction) {
+                int coordinator = shardMap.coordinatorOf((MakeTransaction)aa.getAction());
+                if (coordinator != shardMap.getShard()) {
+                    forward(received, coordinator, aa);
+                    return;
+                }
+                if (recorder != null) {
+                    recorder.recordRequest(getTrader(received), (MakeTransaction)aa.getAction());
+                }
                 myAgent.addBehaviour(new HandleSendBehaviour(myAgent, (MakeTransaction)aa.getAction(), received));
             }
 
@@ -280,7 +783,104 @@ public class Environment extends Agent {
                 myAgent.addBehaviour(new HandleInfoBehaviour(myAgent, (GetMyInfo)aa.getAction(), received));
             }
 
+            //add behavior for PlaceOrder (to the shard with the order book of the title)
+            if (aa.getAction() instanceof PlaceOrder) {
+                int shard = shardMap.shardOfTitle(((PlaceOrder)aa.getAction()).getBook().getTypeID());
+                if (shard != shardMap.getShard()) {
+                    forward(received, shard, aa);
+                    return;
+                }
+                myAgent.addBehaviour(new HandleOrderBehaviour(myAgent, (PlaceOrder)aa.getAction(), received));
+            }
+
+        }
+    }
+
+    /**
+     * The trader which sent the request, a request forwarded by another shard or sent by a trader host names it in a
+     * parameter (a host can only name its own traders, any trader can be named only by the agent of a shard).
+     */
+    String getTrader(ACLMessage request) {
+        String trader = request.getUserDefinedParameter(TRADER_PARAM);
+        if (trader != null && (isShard(request.getSender()) || isHostOf(request.getSender(), trader))) {
+            return trader;
+        }
+        return request.getSender().getName();
+    }
+
+    //whether the agent is a trader host registered in the DF which runs the trader (any agent can have a name which
+    //looks like the name of a host)
+    private boolean isHostOf(AID sender, String trader) {
+        int i = TraderHost.getTraderIndex(trader, sender);
+        if (i < 0) {
+            return false;
+        }
+        DFAgentDescription dfd = directory.getDescription(TraderHost.SERVICE, sender);
+        return dfd != null && i < TraderHost.getTraderCount(dfd);
+    }
+
+    //sends the request of a local trader to the shard which handles it, the reply is relayed back to the trader
+    private void forward(ACLMessage request, int shard, Action action) {
+
+        ACLMessage fwd = new ACLMessage(ACLMessage.REQUEST);
+        fwd.addReceiver(shardAgents[shard]);
+        fwd.setProtocol(RELAY_PROTOCOL);
+        fwd.setOntology(onto.getName());
+        fwd.setLanguage(binaryCodec.getName());
+        fwd.setConversationId(request.getConversationId());
+        fwd.setReplyWith(relay.add(request, request.getReplyByDate(), System.currentTimeMillis()));
+        fwd.setReplyByDate(request.getReplyByDate());
+        fwd.addUserDefinedParameter(TRADER_PARAM, getTrader(request));
+
+        try {
+            getContentManager().fillContent(fwd, action);
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+            relay.remove(fwd.getReplyWith());
+            return;
+        } catch (OntologyException e) {
+            e.printStackTrace();
+            relay.remove(fwd.getReplyWith());
+            return;
+        }
+
+        send(fwd);
+        Metrics.getInstance().count(Metrics.REQUESTS_FORWARDED);
+    }
+
+    //passes the reply of another shard to a forwarded request to the trader
+    private void handleRelayReply(ACLMessage msg) {
+
+        if (!isShard(msg.getSender())) {
+            System.err.println("Relayed reply not from a shard: " + msg);
+            return;
+        }
+
+        ACLMessage request = relay.remove(msg.getInReplyTo());
+        if (request == null) {
+            return; //the trader does not wait any more
+        }
+
+        ACLMessage reply = request.createReply();
+        reply.setPerformative(msg.getPerformative());
+        try {
+            relayContent(msg, reply);
+            send(reply);
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //copies the content of a message of another shard (encoded by the binary codec) to the reply to a trader in the
+    //language of the trader, a text (like a failure) is sent as it is
+    private void relayContent(ACLMessage from, ACLMessage to) throws Codec.CodecException, OntologyException {
+        if (!from.hasByteSequenceContent()) {
+            to.setContent(from.getContent());
+            return;
         }
+        getContentManager().fillContent(to, getContentManager().extractAbsContent(from));
     }
 
     //sends the info about the agent who requests it
@@ -303,10 +903,10 @@ public class Environment extends Agent {
 
             ACLMessage reply = request.createReply();
 
-            String agentName = request.getSender().getName();
+            String agentName = getTrader(request);
 
-            //get the information
-            AgentInfo ai = agentBooks.get(agentName);
+            //get the information (generated from the ledger)
+            AgentInfo ai = ledger.getAgentInfo(agentName);
 
             if (ai == null) {
                 reply.setPerformative(ACLMessage.FAILURE);
@@ -330,7 +930,7 @@ public class Environment extends Agent {
     }
 
 
-    //process the transaction between two agents
+    //match the two requests of a transaction and hand them to the settlement engine
     private class HandleSendBehaviour extends OneShotBehaviour {
 
         MakeTransaction sendMsgContent;
@@ -345,159 +945,397 @@ public class Environment extends Agent {
         @Override
         public void action() {
 
-            String transactionID = sendMsgContent.getTradeConversationID();
-
-
-            //we got request from one agent, remember the transaction
-            if (!unfinishedTransaction.containsKey(transactionID)) { //this is the first time we know about transaction
-                unfinishedTransaction.put(transactionID, new TransactionInfo(sendMsgContent, sendMsg, System.currentTimeMillis()));
+            //we got request from one agent, remember the transaction until the other one sends its request
+            TransactionInfo second = new TransactionInfo(sendMsgContent, sendMsg, System.currentTimeMillis());
+            TransactionInfo first = transactions.match(second);
+            if (first == null) {
                 return;
             }
 
-            //we got request from the other agent
-            ACLMessage sendMsg1 = unfinishedTransaction.get(transactionID).getSenderMessage();
-            ACLMessage sendMsg2 = sendMsg;
+            //we got request from the other agent, the engine validates the transaction and moves the books
+            settle(first, second);
+        }
+    }
 
-            MakeTransaction sendOrder1 = unfinishedTransaction.get(transactionID).getSendOrder();
-            MakeTransaction sendOrder2 = sendMsgContent;
+    /** The order book of the title with the type ID, created when it is needed for the first time */
+    OrderBook getOrderBook(int type) {
+        if (type >= orderBooks.length) {
+            orderBooks = Arrays.copyOf(orderBooks, Math.max(type + 1, BookCatalogue.size()));
+        }
+        if (orderBooks[type] == null) {
+            orderBooks[type] = new OrderBook();
+        }
+        return orderBooks[type];
+    }
 
+    //puts the order into the order book of its title, settles the trade if it crossed an order of another trader
+    private class HandleOrderBehaviour extends OneShotBehaviour {
 
-            //check the senders and receiver match
-            if (!sendOrder1.getReceiverName().equals(sendOrder2.getSenderName()) ||
-                    !sendOrder1.getSenderName().equals(sendOrder2.getReceiverName())) {
+        PlaceOrder order;
+        ACLMessage request;
 
-                sendFailure(sendMsg1, sendMsg2, "sender and receiver do not match");
-            }
+        private HandleOrderBehaviour(Agent a, PlaceOrder order, ACLMessage request) {
+            super(a);
+            this.order = order;
+            this.request = request;
+        }
 
-            String agentName1 = sendOrder1.getSenderName();
-            String agentName2 = sendOrder2.getSenderName();
+        @Override
+        public void action() {
 
-            AgentInfo agentInfo1 = agentBooks.get(agentName1);
-            AgentInfo agentInfo2 = agentBooks.get(agentName2);
+            String trader = getTrader(request);
+            long now = System.currentTimeMillis();
 
-            //check the agents have all the books they want to send
-            ArrayList<BookInfo> ag1MissingBooks = getMissingBooks(agentInfo1, sendOrder1.getSendingBooks());
-            if (ag1MissingBooks.size() > 0) {
-                sendFailure(sendMsg1, sendMsg2, agentName1 + " does not have " + ag1MissingBooks);
+            String failure = checkOrder(trader);
+            if (failure != null) {
+                ACLMessage reply = request.createReply();
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent(failure);
+                send(reply);
                 return;
             }
 
-            ArrayList<BookInfo> ag2MissingBooks = getMissingBooks(agentInfo2, sendOrder2.getSendingBooks());
-            if (ag2MissingBooks.size() > 0) {
-                sendFailure(sendMsg1, sendMsg2, agentName2 + " does not have " + ag2MissingBooks);
-                return;
-            }
+            Metrics.getInstance().count(Metrics.ORDERS_PLACED);
 
-            //check the agent have enough money
-            if (agentInfo1.getMoney() < sendOrder1.getSendingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, agentName1 + " does not have enough money");
-                return;
+            //the order waits until the trader stops waiting for the reply
+            Date replyBy = request.getReplyByDate();
+            long deadline = replyBy != null ? replyBy.getTime() : now + transactionTimeout;
+
+            OrderBook book = getOrderBook(order.getBook().getTypeID());
+            OrderBook.Order placed = book.createOrder(trader, order, request, now, deadline);
+            ArrayList<OrderBook.Order> replaced = new ArrayList<OrderBook.Order>();
+            OrderBook.Match match = book.place(placed, replaced);
+
+            for (OrderBook.Order old : replaced) {
+                ACLMessage reply = old.request.createReply();
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("order replaced");
+                send(reply);
             }
 
-            if (agentInfo2.getMoney() < sendOrder2.getSendingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, agentName2 + " does not have enough money");
+            if (match == null) {
+                orderTimeouts.schedule(placed, deadline);
                 return;
             }
 
-            //check the list of sent and expected books match
-            if (sendOrder1.getSendingBooks() != null && sendOrder2.getReceivingBooks() != null)
-                if (sendOrder1.getSendingBooks().size() != sendOrder2.getReceivingBooks().size()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
+            //the matched orders are settled as a transaction, the seller sends the book and the buyer the money
+            ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+            books.add(match.ask.order.getBook());
+
+            MakeTransaction buy = new MakeTransaction();
+            buy.setSenderName(match.bid.trader);
+            buy.setReceiverName(match.ask.trader);
+            buy.setSendingBooks(new ArrayList<BookInfo>());
+            buy.setSendingMoney(match.price);
+            buy.setReceivingBooks(books);
+            buy.setReceivingMoney(0);
+
+            MakeTransaction sell = new MakeTransaction();
+            sell.setSenderName(match.ask.trader);
+            sell.setReceiverName(match.bid.trader);
+            sell.setSendingBooks(books);
+            sell.setSendingMoney(0);
+            sell.setReceivingBooks(new ArrayList<BookInfo>());
+            sell.setReceivingMoney(match.price);
+
+            String id = "order-" + match.bid.seq + "-" + match.ask.seq;
+            buy.setTradeConversationID(id);
+            sell.setTradeConversationID(id);
+            //the trade is traced from the match, as there was no CFP
+            Metrics.getInstance().begin(id);
+
+            //the order which waited in the book is the first one
+            OrderBook.Order resting = match.bid == placed ? match.ask : match.bid;
+            Metrics.getInstance().record(Metrics.MATCH_WAIT, (now - resting.time) * 1000000);
+            Metrics.getInstance().count(Metrics.ORDERS_MATCHED);
+
+            TransactionInfo first = new TransactionInfo(resting == match.bid ? buy : sell, resting.request, resting.time);
+            TransactionInfo second = new TransactionInfo(resting == match.bid ? sell : buy, request, now);
+            settle(first, second);
+        }
 
-            if (sendOrder2.getSendingBooks() != null && sendOrder1.getReceivingBooks() != null)
-                if (sendOrder1.getReceivingBooks().size() != sendOrder2.getSendingBooks().size()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
+        //returns the reason the order cannot be placed, null if it is fine (the account of an agent of another shard
+        //is checked when the trade is prepared)
+        String checkOrder(String trader) {
+            boolean local = shardMap.isLocal(trader);
+            if (local && !ledger.hasAgent(trader)) {
+                return "agent not found";
+            }
+            if (order.getPrice() < 0 || Double.isNaN(order.getPrice())) {
+                return "invalid price";
+            }
+            if (local && !order.isBid()) {
+                //only the books the trader owns can be offered, and only under their real name
+                BookInfo book = ledger.getBook(order.getBook().getBookID());
+                if (book == null || !book.getBookName().equals(order.getBook().getBookName())) {
+                    return "unknown book";
                 }
-
-            for (int i = 0; i < sendOrder1.getSendingBooks().size(); i++) {
-                if (sendOrder1.getSendingBooks().get(i).getBookID() != sendOrder2.getReceivingBooks().get(i).getBookID()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
+                if (!trader.equals(ledger.getOwner(book.getBookID()))) {
+                    return trader + " does not have " + book;
                 }
             }
+            return null;
+        }
+    }
 
-            for (int i = 0; i < sendOrder2.getSendingBooks().size(); i++) {
-                if (sendOrder2.getSendingBooks().get(i).getBookID() != sendOrder1.getReceivingBooks().get(i).getBookID()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
+    //settles the matched pair of transactions, a trade with an agent of another shard in two phases
+    private void settle(TransactionInfo first, TransactionInfo second) {
+
+        if (shardMap.isLocal(first.getSendOrder().getSenderName()) && shardMap.isLocal(second.getSendOrder().getSenderName())) {
+            settlement.submit(first, second);
+            return;
+        }
+
+        String failure = SettlementEngine.checkOrdersMatch(first.getSendOrder(), second.getSendOrder());
+        if (failure != null) {
+            replies.sendFailure(first.getSenderMessage(), second.getSenderMessage(), failure);
+            Metrics.getInstance().count(Metrics.TRADES_FAILED);
+            Metrics.getInstance().end(first.getSendOrder().getTradeConversationID(), Metrics.TRADE_REPLIED);
+            return;
+        }
+
+        twoPhaseCommit.begin(first, second, System.currentTimeMillis());
+    }
+
+    //sends the messages of the trades between the shards coordinated here, and replies to the local agents
+    private class TwoPhaseCommitSender implements TwoPhaseCommit.Listener {
+
+        @Override
+        public void prepare(TwoPhaseCommit.Trade t, int side) {
+            ACLMessage prepare = createCommitMessage(t, side, ACLMessage.PROPOSE);
+            try {
+                getContentManager().fillContent(prepare,
+                        new Action(shardAgents[t.sides[side].shard], t.sides[side].ti.getSendOrder()));
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
             }
+            send(prepare);
+        }
 
-            //check the amount of money matches
-            if (sendOrder1.getSendingMoney() != sendOrder2.getReceivingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                return;
+        @Override
+        public void commit(TwoPhaseCommit.Trade t, int side, ArrayList<BookInfo> receivedBooks, double receivedMoney) {
+            ACLMessage commit = createCommitMessage(t, side, ACLMessage.ACCEPT_PROPOSAL);
+            InfoUpdate received = new InfoUpdate();
+            received.setAddedBooks(receivedBooks);
+            received.setRemovedBooks(new ArrayList<BookInfo>());
+            received.setMoneyChange(receivedMoney);
+            try {
+                getContentManager().fillContent(commit, received);
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
             }
+            send(commit);
+        }
+
+        @Override
+        public void abort(TwoPhaseCommit.Trade t, int side, String failure) {
+            ACLMessage abort = createCommitMessage(t, side, ACLMessage.REJECT_PROPOSAL);
+            abort.setContent(failure);
+            send(abort);
+        }
+
+        @Override
+        public void committed(TransactionInfo ti, InfoUpdate update, long journalPosition) {
+            sendWhenDurable(journalPosition, replies.createInform(ti.getSenderMessage(), update));
+        }
 
-            if (sendOrder1.getReceivingMoney() != sendOrder2.getSendingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, "orders do not match");
+        @Override
+        public void failed(TransactionInfo ti, String failure) {
+            ACLMessage reply = ti.getSenderMessage().createReply();
+            reply.setPerformative(ACLMessage.FAILURE);
+            reply.setContent(failure);
+            send(reply);
+        }
+    }
+
+    //a message of the commit protocol for the home shard of the agent of the side, the forwarded request of the agent
+    //is kept there under the relay token
+    private ACLMessage createCommitMessage(TwoPhaseCommit.Trade t, int side, int performative) {
+        ACLMessage msg = new ACLMessage(performative);
+        msg.addReceiver(shardAgents[t.sides[side].shard]);
+        msg.setProtocol(COMMIT_PROTOCOL);
+        msg.setOntology(onto.getName());
+        msg.setLanguage(binaryCodec.getName());
+        msg.setConversationId(t.id + "/" + side);
+        msg.addUserDefinedParameter(TOKEN_PARAM, t.sides[side].ti.getSenderMessage().getReplyWith());
+        return msg;
+    }
+
+    //the messages of the two-phase commit (taken by the dispatcher): the votes of the other shards for the trades
+    //coordinated here, and the phases of the trades of the local agents coordinated by other shards
+    private class TwoPhaseCommitMessages {
+
+        void handle(ACLMessage msg) {
+
+            if (!isShard(msg.getSender())) {
+                System.err.println("Two-phase commit message not from a shard: " + msg);
                 return;
             }
 
-            //remove the books the agent sends
-            ArrayList<BookInfo> books = agentInfo1.getBooks();
-            ArrayList<BookInfo> removeBooks = sendOrder1.getSendingBooks();
-            for (int i = 0; i < removeBooks.size(); i++) {
-                for (int j = 0; j < books.size(); j++) {
-                    if (books.get(j).getBookID() == removeBooks.get(i).getBookID()) {
-                        books.remove(j);
+            try {
+                switch (msg.getPerformative()) {
+                    case ACLMessage.PROPOSE:
+                        prepare(msg);
                         break;
-                    }
+                    case ACLMessage.ACCEPT_PROPOSAL:
+                        commit(msg);
+                        break;
+                    case ACLMessage.REJECT_PROPOSAL:
+                        abort(msg);
+                        break;
+                    case ACLMessage.AGREE:
+                    case ACLMessage.REFUSE:
+                        vote(msg);
+                        break;
+                    default:
+                        System.err.println("Unexpected message: " + msg);
                 }
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
             }
+        }
 
-            //the same for the other agent
-            books = agentInfo2.getBooks();
-            removeBooks = sendOrder2.getSendingBooks();
-            for (int i = 0; i < removeBooks.size(); i++) {
-                for (int j = 0; j < books.size(); j++) {
-                    if (books.get(j).getBookID() == removeBooks.get(i).getBookID()) {
-                        books.remove(j);
-                        break;
-                    }
-                }
+        //holds the books and money of the local agent, answers with the books as they are in the ledger
+        void prepare(ACLMessage msg) throws Codec.CodecException, OntologyException {
+
+            MakeTransaction mt = (MakeTransaction)((Action)getContentManager().extractContent(msg)).getAction();
+            Ledger.Hold hold = twoPhaseCommit.prepare(msg.getConversationId(), mt);
+
+            ACLMessage vote = msg.createReply();
+            if (hold.failure != null) {
+                vote.setPerformative(ACLMessage.REFUSE);
+                vote.setContent(hold.failure);
+                send(vote);
+                return;
+            }
+
+            InfoUpdate held = new InfoUpdate();
+            held.setAddedBooks(new ArrayList<BookInfo>());
+            held.setRemovedBooks(hold.books);
+            held.setMoneyChange(-hold.money);
+            vote.setPerformative(ACLMessage.AGREE);
+            getContentManager().fillContent(vote, held);
+            send(vote);
+        }
+
+        void commit(ACLMessage msg) throws Codec.CodecException, OntologyException {
+
+            InfoUpdate received = (InfoUpdate)getContentManager().extractContent(msg);
+            TwoPhaseCommit.Prepared p = twoPhaseCommit.commit(msg.getConversationId(), received.getAddedBooks(),
+                    received.getMoneyChange());
+            if (p == null) {
+                System.err.println("Commit of an unknown trade " + msg.getConversationId());
+                return;
+            }
+
+            ACLMessage request = relay.remove(msg.getUserDefinedParameter(TOKEN_PARAM));
+            if (request != null) {
+                sendWhenDurable(p.getJournalPosition(), replies.createInform(request, p.getUpdate()));
             }
+        }
+
+        void abort(ACLMessage msg) throws Codec.CodecException, OntologyException {
+
+            twoPhaseCommit.abort(msg.getConversationId());
 
-            //add books the agent receives
-            books = agentInfo1.getBooks();
-            ArrayList<BookInfo> addBooks = sendOrder2.getSendingBooks();
-            for (int i = 0; i < addBooks.size(); i++) {
-                books.add(addBooks.get(i));
+            ACLMessage request = relay.remove(msg.getUserDefinedParameter(TOKEN_PARAM));
+            if (request != null) {
+                ACLMessage reply = request.createReply();
+                reply.setPerformative(ACLMessage.FAILURE);
+                relayContent(msg, reply);
+                send(reply);
             }
+        }
+
+        //a vote of the home shard of one side of a trade coordinated here
+        void vote(ACLMessage msg) throws Codec.CodecException, OntologyException {
+
+            String conversationID = msg.getConversationId();
+            int slash = conversationID.lastIndexOf('/');
+            String tradeID = conversationID.substring(0, slash);
+            int side = Integer.parseInt(conversationID.substring(slash + 1));
+
+            if (msg.getPerformative() == ACLMessage.AGREE) {
+                InfoUpdate held = (InfoUpdate)getContentManager().extractContent(msg);
+                twoPhaseCommit.agreed(tradeID, side, held.getRemovedBooks(), -held.getMoneyChange());
+            } else {
+                twoPhaseCommit.refused(tradeID, side, msg.getContent());
+            }
+        }
+    }
 
-            //the same for the other one
-            books = agentInfo2.getBooks();
-            addBooks = sendOrder1.getSendingBooks();
-            for (int i = 0; i < addBooks.size(); i++) {
-                books.add(addBooks.get(i));
+    //sends the reply when the journal is durable up to the position (at once if it is -1)
+    private void sendWhenDurable(long position, final ACLMessage reply) {
+        if (position < 0) {
+            send(reply);
+            return;
+        }
+        journal.whenDurable(position, new Runnable() {
+            @Override
+            public void run() {
+                durableReplies.add(reply);
+                replies.restart();
             }
+        });
+    }
 
-            //System.out.println("Transaction: " + sendOrder1);
+    //sends the replies to the transactions settled by the settlement engine
+    private class SettlementReplyBehaviour extends CyclicBehaviour {
 
+        @Override
+        public void action() {
 
-            //transfer money between agents
-            agentInfo1.setMoney(agentInfo1.getMoney()-sendOrder1.getSendingMoney());
-            agentInfo1.setMoney(agentInfo1.getMoney()+sendOrder2.getSendingMoney());
+            ACLMessage durable;
+            while ((durable = durableReplies.poll()) != null) {
+                send(durable);
+            }
 
-            agentInfo2.setMoney(agentInfo2.getMoney()-sendOrder2.getSendingMoney());
-            agentInfo2.setMoney(agentInfo2.getMoney()+sendOrder1.getSendingMoney());
+            SettlementEngine.Result res;
+            while ((res = settlement.poll()) != null) {
 
-            //send both agent an INFORM - the trade was successful
-            ACLMessage reply1 = sendMsg1.createReply();
-            ACLMessage reply2 = sendMsg2.createReply();
-            reply1.setPerformative(ACLMessage.INFORM);
-            reply2.setPerformative(ACLMessage.INFORM);
-            reply1.setContent("done");
-            reply2.setContent("done");
-            send(reply1);
-            send(reply2);
+                ACLMessage sendMsg1 = res.first.getSenderMessage();
+                ACLMessage sendMsg2 = res.second.getSenderMessage();
 
-            //System.out.println(agentName1 + " " + agentInfo1.toString());
-            //System.out.println(agentName2 + " " + agentInfo2.toString());
+                //from the second request of the transaction to the reply
+                Metrics.getInstance().record(Metrics.REPLY,
+                        (System.currentTimeMillis() - res.second.getTimeReceived()) * 1000000);
+                Metrics.getInstance().end(res.first.getSendOrder().getTradeConversationID(), Metrics.TRADE_REPLIED);
+
+                if (!res.isSuccess()) {
+                    sendFailure(sendMsg1, sendMsg2, res.failure);
+                    continue;
+                }
 
+                //System.out.println("Transaction: " + res.first.getSendOrder());
+
+                //send both agent an INFORM - the trade was successful, the INFORM describes the changes of their
+                //information, so they do not need to ask for it
+                send(createInform(sendMsg1, res.firstUpdate));
+                send(createInform(sendMsg2, res.secondUpdate));
+            }
+
+            block();
+        }
+
+        ACLMessage createInform(ACLMessage request, InfoUpdate update) {
+            ACLMessage reply = request.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            try {
+                getContentManager().fillContent(reply, update);
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+                reply.setContent("done");
+            } catch (OntologyException e) {
+                e.printStackTrace();
+                reply.setContent("done");
+            }
+            return reply;
         }
 
         //send FAILURE to both agent, the failure is described as text, only performative is important
@@ -511,25 +1349,6 @@ public class Environment extends Agent {
             send(reply1);
             send(reply2);
         }
-
-
-        //finds the books the agent wants to send but does not own
-        ArrayList<BookInfo> getMissingBooks(AgentInfo agent, ArrayList<BookInfo> books) {
-            ArrayList<BookInfo> missing = new ArrayList<BookInfo>();
-            for (BookInfo bi : books) {
-                boolean found = false;
-                for (int i = 0; i < agent.getBooks().size(); i++) {
-                    if (agent.getBooks().get(i).getBookID() == bi.getBookID()) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
-                    missing.add(bi);
-                }
-            }
-            return missing;
-        }
     }
 
 }
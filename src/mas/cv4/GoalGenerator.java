@@ -0,0 +1,156 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.Goal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates the initial books, goals and money of the traders.
+ *
+ * Each trader gets its own random generator split from one seed and its own range of book IDs, so the traders can be
+ * generated in parallel and the result depends only on the seed and the order of the traders (not on the number of
+ * threads).
+ *
+ * A shard of the environment generates only its own traders (see setPartition()), the i-th trader of shard s out of n
+ * gets what the trader i*n+s would get without the shards, so the book IDs of the shards never collide.
+ */
+public class GoalGenerator {
+
+    static final int BOOKS_PER_AGENT = 4;
+    static final double INITIAL_MONEY = 400;
+
+    final String[] titles;
+    final long seed;
+    final int threads;
+    //the traders are every shards-th trader starting with shard
+    int shard = 0;
+    int shards = 1;
+
+    public GoalGenerator(long seed, int threads) {
+        ArrayList<String> names = new ArrayList<String>(Constants.getBooknames());
+        Collections.sort(names);
+        this.titles = names.toArray(new String[names.size()]);
+        this.seed = seed;
+        this.threads = threads;
+    }
+
+    /** Generates only the traders of the shard (out of the given number of shards) */
+    public GoalGenerator setPartition(int shard, int shards) {
+        this.shard = shard;
+        this.shards = shards;
+        return this;
+    }
+
+    /** Generates the information of count traders */
+    public AgentInfo[] generate(int count) {
+        return generate(0, count);
+    }
+
+    /**
+     * Generates the information of the traders first .. first+count-1, the same as generate(first+count) would give
+     * them (e.g. for the traders which join after the ones recovered from a journal)
+     */
+    public AgentInfo[] generate(final int first, int count) {
+
+        final AgentInfo[] infos = new AgentInfo[count];
+
+        //the generators are split in order, so each trader gets the same one regardless of the threads
+        final SplittableRandom[] rnds = new SplittableRandom[count];
+        SplittableRandom root = new SplittableRandom(seed);
+        for (int i = 0; i < global(first); i++) {
+            root.split();
+        }
+        for (int i = 0; i < count; i++) {
+            rnds[i] = root.split();
+            //skip the traders of the other shards
+            for (int j = 1; j < shards; j++) {
+                root.split();
+            }
+        }
+
+        if (threads <= 1 || count < 2 * threads) {
+            for (int i = 0; i < count; i++) {
+                infos[i] = generate(global(first + i), rnds[i]);
+            }
+            return infos;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<?>> parts = new ArrayList<Future<?>>();
+            int chunk = (count + threads - 1) / threads;
+            for (int from = 0; from < count; from += chunk) {
+                final int start = from;
+                final int end = Math.min(count, from + chunk);
+                parts.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = start; i < end; i++) {
+                            infos[i] = generate(global(first + i), rnds[i]);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> part : parts) {
+                part.get();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("goal generation failed", e);
+        } finally {
+            pool.shutdown();
+        }
+
+        return infos;
+    }
+
+    //the index of the i-th trader of the shard among the traders of all shards
+    int global(int i) {
+        return i * shards + shard;
+    }
+
+    //the first few titles (after a shuffle) are the books of the agent, the rest are its goals
+    AgentInfo generate(int index, SplittableRandom rnd) {
+
+        String[] shuffled = titles.clone();
+        for (int i = shuffled.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            String tmp = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = tmp;
+        }
+
+        //each agent uses one ID per title (as the books and the books in the goals were numbered before)
+        int bID = index * shuffled.length;
+
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+        ArrayList<Goal> goals = new ArrayList<Goal>();
+
+        for (int i = 0; i < shuffled.length; i++) {
+            BookInfo bi = new BookInfo();
+            bi.setBookID(bID++);
+            bi.setBookName(shuffled[i]);
+
+            if (i < BOOKS_PER_AGENT) {
+                books.add(bi);
+            } else {
+                Goal g = new Goal();
+                g.setBook(bi);
+                g.setValue(Constants.getPrice(shuffled[i]) + rnd.nextInt(40) - 20);
+                goals.add(g);
+            }
+        }
+
+        AgentInfo ai = new AgentInfo();
+        ai.setBooks(books);
+        ai.setGoals(goals);
+        ai.setMoney(INITIAL_MONEY);
+        return ai;
+    }
+}
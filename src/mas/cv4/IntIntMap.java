@@ -0,0 +1,129 @@
+package mas.cv4;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive ints to primitive ints (open addressing with linear probing), e.g. the book ID -> owner index
+ * map of the ledger.
+ */
+public class IntIntMap {
+
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+    private final int missing;
+
+    /**
+     * @param missing the value returned by get() for keys which are not in the map
+     */
+    public IntIntMap(int expected, int missing) {
+        int cap = 8;
+        while (cap < expected * 2) {
+            cap <<= 1;
+        }
+        keys = new int[cap];
+        values = new int[cap];
+        Arrays.fill(keys, FREE);
+        mask = cap - 1;
+        this.missing = missing;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int key) {
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key)
+                return values[i];
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    public boolean containsKey(int key) {
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /** Stores the value, returns the previous one (or the missing value) */
+    public int put(int key, int value) {
+        if (key == FREE)
+            throw new IllegalArgumentException("key " + key + " is reserved");
+
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return missing;
+    }
+
+    /** Removes the key, returns its value (or the missing value) */
+    public int remove(int key) {
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                int old = values[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    //close the gap after a removal so that the probing sequences stay unbroken
+    private void shiftBack(int gap) {
+        int i = (gap + 1) & mask;
+        while (keys[i] != FREE) {
+            int home = slot(keys[i]);
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[gap] = FREE;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,118 @@
+package mas.cv4;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive ints (open addressing with linear probing), used to store the books owned by an agent without
+ * boxing every book ID into an Integer.
+ */
+public class IntSet {
+
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int size;
+    private int mask;
+
+    public IntSet() {
+        this(16);
+    }
+
+    public IntSet(int expected) {
+        int cap = 8;
+        while (cap < expected * 2) {
+            cap <<= 1;
+        }
+        keys = new int[cap];
+        Arrays.fill(keys, FREE);
+        mask = cap - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int key) {
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /** Adds the key, returns false if it was already in the set */
+    public boolean add(int key) {
+        if (key == FREE)
+            throw new IllegalArgumentException("key " + key + " is reserved");
+
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key)
+                return false;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        size++;
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    /** Removes the key, returns false if it was not in the set */
+    public boolean remove(int key) {
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int[] toArray() {
+        int[] ret = new int[size];
+        int n = 0;
+        for (int k : keys) {
+            if (k != FREE)
+                ret[n++] = k;
+        }
+        return ret;
+    }
+
+    //close the gap after a removal so that the probing sequences stay unbroken
+    private void shiftBack(int gap) {
+        int i = (gap + 1) & mask;
+        while (keys[i] != FREE) {
+            int home = slot(keys[i]);
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[gap] = FREE;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = keys;
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+        size = 0;
+        for (int k : old) {
+            if (k != FREE)
+                add(k);
+        }
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,509 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.Goal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the changes of the ledger, the environment rebuilds its ledger from it after a restart.
+ *
+ * The journal records the registration of each agent (its initial books, goals and money) and each settled trade
+ * (conversation ID, both agents, the books and the money they sent). A trade is appended by the settlement worker while
+ * it still holds the locks of both accounts, so the trades of each agent are in the journal in the order they were
+ * applied and the replay moves the books exactly as the settlement did. A shard of the environment records only its
+ * side of a trade with an agent of another shard (a transfer): the books and money the agent sent and the books (with
+ * their titles, they are new to the shard) and money it received.
+ *
+ * The file is written through memory-mapped segments of SEGMENT_SIZE bytes, appending a record only copies it into
+ * the mapped memory. The records are made durable by a single flusher thread (group commit): it forces all the records
+ * appended since its last force at once and then runs the actions waiting for them (see whenDurable()), so the cost of
+ * the force is shared by all the trades settled in the meantime. The environment replies to a trade only when its
+ * record is durable.
+ *
+ * Each record is [length][type][payload][CRC32 of type and payload]. A record never crosses the end of a segment, a
+ * length of -1 means the rest of the segment is unused. The first record with the length 0 or a wrong checksum (a
+ * record torn by a crash) ends the journal.
+ */
+public class Journal {
+
+    //types of the records
+    static final byte AGENT = 1;
+    static final byte TRADE = 2;
+    static final byte TRANSFER = 3;
+
+    static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final int END_OF_SEGMENT = -1;
+
+    /** Receives the records read by replay() */
+    public interface Replayer {
+
+        void agent(String name, AgentInfo info);
+
+        void trade(long time, String conversationID, String agent1, int[] books1, double money1,
+                   String agent2, int[] books2, double money2);
+
+        void transfer(long time, String conversationID, String agent, int[] sent, double sentMoney,
+                      ArrayList<BookInfo> received, double receivedMoney);
+    }
+
+    //an action waiting until the journal is durable up to the position
+    private static class Waiter {
+        final long position;
+        final Runnable action;
+
+        Waiter(long position, Runnable action) {
+            this.position = position;
+            this.action = action;
+        }
+    }
+
+    File file;
+    RandomAccessFile raf;
+    FileChannel channel;
+
+    //guarded by this: the segment being written, the segments which are full but not forced yet, the end of the last
+    //appended record, the end of the last durable record and the actions waiting for the flusher
+    MappedByteBuffer segment;
+    long segmentStart;
+    ArrayList<MappedByteBuffer> unforced = new ArrayList<MappedByteBuffer>();
+    long written;
+    long durable;
+    ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+    boolean closed = false;
+
+    Thread flusher;
+
+    //each appending thread encodes its records into its own buffer, outside of the lock
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(4096);
+        }
+    };
+
+    /**
+     * Opens the journal and replays the records it already contains (the replayer may be null), new records are
+     * appended after the last valid one.
+     */
+    public Journal(File file, Replayer replayer) throws IOException {
+        this(file, replayer, 0);
+    }
+
+    /**
+     * Opens the journal and replays only the records which start at the position from or later (e.g. the records
+     * which are not in the snapshot the ledger was restored from).
+     */
+    public Journal(File file, Replayer replayer, long from) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+
+        long end = replay(channel, replayer, from);
+
+        segmentStart = end - end % SEGMENT_SIZE;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_SIZE);
+        segment.position((int)(end - segmentStart));
+        //the rest of a torn record must not look like a record after the new ones
+        for (int i = segment.position(); i < SEGMENT_SIZE; i++) {
+            if (segment.get(i) != 0)
+                segment.put(i, (byte)0);
+        }
+        written = end;
+        durable = end;
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Appends the registration of the agent, returns the end position of the record */
+    public long appendAgent(String name, AgentInfo info) {
+        ByteBuffer b = begin(AGENT);
+        b = ensure(b, 16 + stringSize(name));
+        putString(b, name);
+        b.putDouble(info.getMoney());
+        b.putInt(info.getBooks().size());
+        for (BookInfo bi : info.getBooks()) {
+            b = ensure(b, 4 + stringSize(bi.getBookName()));
+            putBook(b, bi);
+        }
+        b = ensure(b, 4);
+        b.putInt(info.getGoals().size());
+        for (Goal g : info.getGoals()) {
+            b = ensure(b, 12 + stringSize(g.getBook().getBookName()));
+            putBook(b, g.getBook());
+            b.putDouble(g.getValue());
+        }
+        return append(b);
+    }
+
+    /**
+     * Appends a settled trade, the first agent sent books1 and money1, the second one books2 and money2. Returns the
+     * end position of the record (see whenDurable()).
+     */
+    public long appendTrade(String conversationID, String agent1, ArrayList<BookInfo> books1, double money1,
+                            String agent2, ArrayList<BookInfo> books2, double money2) {
+        ByteBuffer b = begin(TRADE);
+        b = ensure(b, 8 + stringSize(conversationID));
+        b.putLong(System.currentTimeMillis());
+        putString(b, conversationID);
+        b = putSide(b, agent1, books1, money1);
+        b = putSide(b, agent2, books2, money2);
+        return append(b);
+    }
+
+    /**
+     * Appends the side of a trade with an agent of another shard, the agent sent the books and money and received the
+     * other ones. Returns the end position of the record.
+     */
+    public long appendTransfer(String conversationID, String agent, ArrayList<BookInfo> sent, double sentMoney,
+                               ArrayList<BookInfo> received, double receivedMoney) {
+        ByteBuffer b = begin(TRANSFER);
+        b = ensure(b, 8 + stringSize(conversationID));
+        b.putLong(System.currentTimeMillis());
+        putString(b, conversationID);
+        b = putSide(b, agent, sent, sentMoney);
+        b = ensure(b, 12);
+        b.putDouble(receivedMoney);
+        b.putInt(received.size());
+        for (BookInfo bi : received) {
+            b = ensure(b, 4 + stringSize(bi.getBookName()));
+            putBook(b, bi);
+        }
+        return append(b);
+    }
+
+    /** The end of the last appended record */
+    public synchronized long getPosition() {
+        return written;
+    }
+
+    /** Runs the action (on the flusher thread) when the journal is durable up to the position */
+    public void whenDurable(long position, Runnable action) {
+        synchronized (this) {
+            if (position > durable) {
+                waiters.add(new Waiter(position, action));
+                notifyAll();
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /** Forces all appended records to the disk and waits for it */
+    public void sync() {
+        final CountDownLatch done = new CountDownLatch(1);
+        long position;
+        synchronized (this) {
+            position = written;
+        }
+        whenDurable(position, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Forces the remaining records, stops the flusher and closes the file */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join(5000);
+            channel.close();
+            raf.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //the flusher: waits for records somebody waits for, forces them and runs the waiting actions
+    private void flush() {
+
+        ArrayList<MappedByteBuffer> toForce = new ArrayList<MappedByteBuffer>();
+        ArrayList<Waiter> ready = new ArrayList<Waiter>();
+
+        while (true) {
+            long target;
+            synchronized (this) {
+                while (!closed && waiters.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed && waiters.isEmpty() && durable == written) {
+                    return;
+                }
+                //everything appended until now is forced at once, the records appended during the force wait for
+                //the next round
+                target = written;
+                toForce.addAll(unforced);
+                unforced.clear();
+                toForce.add(segment);
+            }
+
+            if (target > durable) {
+                long start = System.nanoTime();
+                for (MappedByteBuffer mbb : toForce) {
+                    mbb.force();
+                }
+                Metrics.getInstance().record(Metrics.JOURNAL_SYNC, System.nanoTime() - start);
+                Metrics.getInstance().count(Metrics.JOURNAL_SYNCS);
+            }
+            toForce.clear();
+
+            synchronized (this) {
+                durable = Math.max(durable, target);
+                for (int i = waiters.size() - 1; i >= 0; i--) {
+                    if (waiters.get(i).position <= durable) {
+                        ready.add(waiters.remove(i));
+                    }
+                }
+            }
+
+            for (int i = ready.size() - 1; i >= 0; i--) {
+                ready.get(i).action.run();
+            }
+            ready.clear();
+        }
+    }
+
+    //copies the encoded record into the journal, returns its end position
+    private long append(ByteBuffer b) {
+
+        //the length (without itself) and the checksum of the type and the payload
+        int length = b.position() - 4;
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), 4, length);
+        b = ensure(b, 4);
+        b.putInt((int)crc.getValue());
+        b.putInt(0, length + 4);
+        b.flip();
+
+        if (b.remaining() > SEGMENT_SIZE - 4) {
+            throw new IllegalArgumentException("journal record of " + b.remaining() + " bytes is too large");
+        }
+
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("journal is closed");
+            }
+
+            //the record (and the end mark after it) must fit into the segment
+            if (segment.remaining() < b.remaining() + 4) {
+                segment.putInt(END_OF_SEGMENT);
+                unforced.add(segment);
+                segmentStart += SEGMENT_SIZE;
+                try {
+                    segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_SIZE);
+                } catch (IOException e) {
+                    throw new RuntimeException("cannot extend the journal " + file, e);
+                }
+                written = segmentStart;
+            }
+
+            segment.put(b);
+            written = segmentStart + segment.position();
+            Metrics.getInstance().count(Metrics.JOURNAL_RECORDS);
+            return written;
+        }
+    }
+
+    private ByteBuffer begin(byte type) {
+        ByteBuffer b = scratch.get();
+        b.clear();
+        b.putInt(0); //the length, filled in by append()
+        b.put(type);
+        return b;
+    }
+
+    //makes sure there are at least n more bytes in the buffer, the thread keeps the larger buffer for next time
+    private ByteBuffer ensure(ByteBuffer b, int n) {
+        if (b.remaining() >= n) {
+            return b;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(b.capacity() * 2, b.position() + n));
+        b.flip();
+        larger.put(b);
+        scratch.set(larger);
+        return larger;
+    }
+
+    private ByteBuffer putSide(ByteBuffer b, String agent, ArrayList<BookInfo> books, double money) {
+        b = ensure(b, 16 + 4 * books.size() + stringSize(agent));
+        putString(b, agent);
+        b.putDouble(money);
+        b.putInt(books.size());
+        for (BookInfo bi : books) {
+            b.putInt(bi.getBookID());
+        }
+        return b;
+    }
+
+    private static void putBook(ByteBuffer b, BookInfo bi) {
+        b.putInt(bi.getBookID());
+        putString(b, bi.getBookName());
+    }
+
+    //the most bytes the string can take
+    private static int stringSize(String s) {
+        return 2 + 3 * s.length();
+    }
+
+    private static void putString(ByteBuffer b, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        b.putShort((short)bytes.length);
+        b.put(bytes);
+    }
+
+    private static String getString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getShort() & 0xffff];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static BookInfo getBook(ByteBuffer b) {
+        BookInfo bi = new BookInfo();
+        bi.setBookID(b.getInt());
+        bi.setBookName(getString(b));
+        return bi;
+    }
+
+    private static int[] getBookIDs(ByteBuffer b) {
+        int[] ids = new int[b.getInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = b.getInt();
+        }
+        return ids;
+    }
+
+    /**
+     * Reads all valid records of the journal and passes the ones starting at the position from or later to the
+     * replayer, returns the end of the last valid record
+     */
+    static long replay(FileChannel channel, Replayer replayer, long from) throws IOException {
+
+        long size = channel.size();
+        long end = 0;
+        CRC32 crc = new CRC32();
+
+        for (long start = 0; start < size; start += SEGMENT_SIZE) {
+
+            MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+
+            while (true) {
+                if (seg.remaining() < 4) {
+                    return end;
+                }
+                long recordStart = start + seg.position();
+                int length = seg.getInt();
+                if (length == END_OF_SEGMENT) {
+                    break;
+                }
+                if (length <= 4 || length > seg.remaining()) {
+                    return end;
+                }
+
+                //check the record is complete before using it
+                ByteBuffer record = seg.slice();
+                record.limit(length - 4);
+                byte[] data = new byte[length - 4];
+                record.get(data);
+                crc.reset();
+                crc.update(data);
+                seg.position(seg.position() + length - 4);
+                if (seg.getInt() != (int)crc.getValue()) {
+                    return end;
+                }
+
+                if (replayer != null && recordStart >= from) {
+                    replayRecord(ByteBuffer.wrap(data), replayer);
+                }
+                end = start + seg.position();
+            }
+
+            end = start + SEGMENT_SIZE;
+        }
+
+        return end;
+    }
+
+    private static void replayRecord(ByteBuffer b, Replayer replayer) {
+
+        byte type = b.get();
+
+        if (type == AGENT) {
+            String name = getString(b);
+            AgentInfo ai = new AgentInfo();
+            ai.setMoney(b.getDouble());
+            ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+            for (int n = b.getInt(); n > 0; n--) {
+                books.add(getBook(b));
+            }
+            ArrayList<Goal> goals = new ArrayList<Goal>();
+            for (int n = b.getInt(); n > 0; n--) {
+                Goal g = new Goal();
+                g.setBook(getBook(b));
+                g.setValue(b.getDouble());
+                goals.add(g);
+            }
+            ai.setBooks(books);
+            ai.setGoals(goals);
+            replayer.agent(name, ai);
+        } else if (type == TRADE) {
+            long time = b.getLong();
+            String id = getString(b);
+            String agent1 = getString(b);
+            double money1 = b.getDouble();
+            int[] books1 = getBookIDs(b);
+            String agent2 = getString(b);
+            double money2 = b.getDouble();
+            int[] books2 = getBookIDs(b);
+            replayer.trade(time, id, agent1, books1, money1, agent2, books2, money2);
+        } else if (type == TRANSFER) {
+            long time = b.getLong();
+            String id = getString(b);
+            String agent = getString(b);
+            double sentMoney = b.getDouble();
+            int[] sent = getBookIDs(b);
+            double receivedMoney = b.getDouble();
+            ArrayList<BookInfo> received = new ArrayList<BookInfo>();
+            for (int n = b.getInt(); n > 0; n--) {
+                received.add(getBook(b));
+            }
+            replayer.transfer(time, id, agent, sent, sentMoney, received, receivedMoney);
+        }
+    }
+}
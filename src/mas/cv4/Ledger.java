@@ -0,0 +1,701 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.Goal;
+import mas.cv4.onto.InfoUpdate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The book and money ledger of the environment.
+ *
+ * The ownership of each book is indexed by its ID, both per agent (a set of book IDs) and globally (book ID -> owner),
+ * so checking, transferring and rolling back a trade costs time proportional to the number of books in the trade, not
+ * to the number of books in the market. The AgentInfo of an agent is only generated when somebody asks for it.
+ *
+ * Each account has its own lock, a trade locks only the two accounts involved (see lock()). Changes of the structure of
+ * the ledger (new agents and books) take the write lock of the whole ledger, so they never run together with a trade.
+ *
+ * The utility and the number of met goals of each agent are updated only for the books and money moved by a trade, and
+ * the leaderboard keeps the agents ordered by utility, so the best agents can be listed without looking at the others.
+ *
+ * Each account also publishes an immutable copy of its books, money and version after every change (copy-on-write),
+ * the AgentInfo of an agent is generated from it without any locks and a point-in-time view of the whole ledger (see
+ * capture()) only collects the copies of all accounts.
+ *
+ * A shard of the environment keeps only the accounts of its agents. A trade with an agent of another shard is made in
+ * two phases: prepare() holds the books and money the local agent sends, commit() removes them from the ledger and
+ * adds what the agent received (abort() releases them).
+ */
+public class Ledger {
+
+    //the books, money and version of an account at one moment, never changed once published
+    static class AccountState {
+
+        final BookInfo[] books;
+        final double money;
+        final int version;
+
+        AccountState(BookInfo[] books, double money, int version) {
+            this.books = books;
+            this.money = money;
+            this.version = version;
+        }
+    }
+
+    /** The states of all accounts at one moment, for the snapshots of the market (see SnapshotStore) */
+    static class View {
+
+        final Account[] accounts;
+        final AccountState[] states;
+        //the end of the journal at the moment of the view, the later records are not in it
+        final long journalPosition;
+        final long time;
+
+        View(Account[] accounts, AccountState[] states, long journalPosition, long time) {
+            this.accounts = accounts;
+            this.states = states;
+            this.journalPosition = journalPosition;
+            this.time = time;
+        }
+    }
+
+    //all information the ledger keeps about one agent
+    static class Account {
+
+        final int index;
+        final String name;
+        final ReentrantLock lock = new ReentrantLock();
+        final IntSet books = new IntSet();
+        final ArrayList<Goal> goals;
+        double money;
+        //the money held for the trades with the agents of other shards (see prepare())
+        double heldMoney;
+        //increased with every change of the books or money
+        int version;
+
+        //number of owned books and the values and number of the goals per book type (see BookCatalogue)
+        int[] typeCounts = new int[BookCatalogue.size()];
+        double[] goalValues = new double[BookCatalogue.size()];
+        int[] goalCounts = new int[BookCatalogue.size()];
+        //utility and number of met goals, updated with each change of the books and money (see Utils.computeUtility())
+        double utility;
+        int goalsMet;
+        //the entry of the account in the leaderboard
+        Standing standing;
+        //the last published copy of the books and money
+        volatile AccountState state;
+
+        Account(int index, String name, ArrayList<Goal> goals, double money) {
+            this.index = index;
+            this.name = name;
+            this.goals = goals;
+            this.money = money;
+            this.utility = money;
+
+            for (Goal g : goals) {
+                int type = g.getBook().getTypeID();
+                ensureType(type);
+                goalValues[type] += g.getValue();
+                goalCounts[type]++;
+            }
+        }
+
+        //the catalogue may have learned new types since the arrays were created
+        void ensureType(int type) {
+            if (type >= typeCounts.length) {
+                int size = Math.max(type + 1, BookCatalogue.size());
+                typeCounts = Arrays.copyOf(typeCounts, size);
+                goalValues = Arrays.copyOf(goalValues, size);
+                goalCounts = Arrays.copyOf(goalCounts, size);
+            }
+        }
+
+        //the first book of a type meets all goals with the type
+        void addBook(int id, int type) {
+            ensureType(type);
+            books.add(id);
+            if (typeCounts[type]++ == 0) {
+                utility += goalValues[type];
+                goalsMet += goalCounts[type];
+            }
+        }
+
+        void removeBook(int id, int type) {
+            books.remove(id);
+            if (--typeCounts[type] == 0) {
+                utility -= goalValues[type];
+                goalsMet -= goalCounts[type];
+            }
+        }
+
+        void addMoney(double amount) {
+            money += amount;
+            utility += amount;
+        }
+
+        //the money which can be sent in a trade
+        double available() {
+            return money - heldMoney;
+        }
+    }
+
+    /**
+     * The books and money an agent sends in a trade with an agent of another shard, held by the first phase of the
+     * trade (see prepare()) until it is committed or aborted. Nothing is held if the failure is set.
+     */
+    static class Hold {
+
+        final Account acc;
+        //the books as they are in the ledger (not as they were named in the request)
+        final ArrayList<BookInfo> books;
+        final double money;
+        final String failure;
+        //end of the record of the committed part of the trade in the journal, -1 if it was not journaled
+        long journalPosition = -1;
+
+        Hold(Account acc, ArrayList<BookInfo> books, double money, String failure) {
+            this.acc = acc;
+            this.books = books;
+            this.money = money;
+            this.failure = failure;
+        }
+    }
+
+    /** The utility of an agent at one moment, the entries of the leaderboard */
+    public static class Standing {
+
+        public final String name;
+        public final double utility;
+        public final int goalsMet;
+        public final boolean allGoalsMet;
+        final int index;
+
+        Standing(Account acc) {
+            this.name = acc.name;
+            this.utility = acc.utility;
+            this.goalsMet = acc.goalsMet;
+            this.allGoalsMet = acc.goalsMet == acc.goals.size();
+            this.index = acc.index;
+        }
+    }
+
+    //the best agent first, ties are broken by the order of registration
+    static final Comparator<Standing> BY_UTILITY = new Comparator<Standing>() {
+        @Override
+        public int compare(Standing a, Standing b) {
+            int c = Double.compare(b.utility, a.utility);
+            return c != 0 ? c : Integer.compare(a.index, b.index);
+        }
+    };
+
+    static final int NO_OWNER = -1;
+    //the owner of a held book (the book stays in the account of the agent, but it cannot be traded)
+    static final int HELD = -2;
+
+    ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+    //index -> account, replaced (not modified) when an agent is added
+    volatile Account[] accountList = new Account[0];
+
+    //read lock is held by trades, write lock by structural changes
+    ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+
+    //book ID -> index of the owner
+    IntIntMap bookOwner = new IntIntMap(1024, NO_OWNER);
+    //book ID -> the book itself (needed to generate the views and to know the titles)
+    HashMap<Integer, BookInfo> bookInfos = new HashMap<Integer, BookInfo>();
+
+    //the standings of all agents ordered by utility (guarded by its own monitor, the trades update it in parallel)
+    final TreeSet<Standing> leaderboard = new TreeSet<Standing>(BY_UTILITY);
+
+    /** Registers a new agent with its initial books, goals and money */
+    public void addAgent(String name, ArrayList<BookInfo> books, ArrayList<Goal> goals, double money) {
+        AgentInfo ai = new AgentInfo();
+        ai.setBooks(books);
+        ai.setGoals(goals);
+        ai.setMoney(money);
+        addAgents(new String[]{name}, new AgentInfo[]{ai});
+    }
+
+    /**
+     * Registers several agents at once (e.g. all traders when the trading starts), the list of the accounts is copied
+     * only once. Nothing is added if any of the agents or books is already in the ledger.
+     */
+    public void addAgents(String[] names, AgentInfo[] infos) {
+
+        structure.writeLock().lock();
+        try {
+            HashSet<String> newNames = new HashSet<String>();
+            IntSet newBooks = new IntSet();
+
+            for (int i = 0; i < names.length; i++) {
+                if (accounts.containsKey(names[i]) || !newNames.add(names[i])) {
+                    throw new IllegalArgumentException("agent " + names[i] + " is already in the ledger");
+                }
+
+                for (BookInfo bi : infos[i].getBooks()) {
+                    if (bookOwner.containsKey(bi.getBookID()) || !newBooks.add(bi.getBookID())) {
+                        throw new IllegalArgumentException("book " + bi + " already has an owner");
+                    }
+                }
+            }
+
+            Account[] list = new Account[accountList.length + names.length];
+            System.arraycopy(accountList, 0, list, 0, accountList.length);
+
+            for (int i = 0; i < names.length; i++) {
+                AgentInfo ai = infos[i];
+                Account acc = new Account(accountList.length + i, names[i], ai.getGoals(), ai.getMoney());
+                //the agents restored from a snapshot keep the version of their information
+                acc.version = ai.getVersion();
+                list[acc.index] = acc;
+
+                for (BookInfo bi : ai.getBooks()) {
+                    bookOwner.put(bi.getBookID(), acc.index);
+                    bookInfos.put(bi.getBookID(), bi);
+                    acc.addBook(bi.getBookID(), bi.getTypeID());
+                }
+                publish(acc);
+
+                accounts.put(acc.name, acc);
+                updateStanding(acc);
+            }
+
+            accountList = list;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    public boolean hasAgent(String name) {
+        return accounts.containsKey(name);
+    }
+
+    public int getAgentCount() {
+        return accountList.length;
+    }
+
+    public ArrayList<String> getAgentNames() {
+        Account[] list = accountList;
+        ArrayList<String> names = new ArrayList<String>(list.length);
+        for (Account acc : list) {
+            names.add(acc.name);
+        }
+        return names;
+    }
+
+    Account getAccount(String name) {
+        return accounts.get(name);
+    }
+
+    /**
+     * Locks the accounts of two agents for a trade. The locks are always taken in the order of the account indices, so
+     * two trades can never wait for each other.
+     */
+    void lock(Account acc1, Account acc2) {
+        structure.readLock().lock();
+        if (acc1.index < acc2.index) {
+            acc1.lock.lock();
+            acc2.lock.lock();
+        } else {
+            acc2.lock.lock();
+            acc1.lock.lock();
+        }
+    }
+
+    void unlock(Account acc1, Account acc2) {
+        acc1.lock.unlock();
+        acc2.lock.unlock();
+        structure.readLock().unlock();
+    }
+
+    void lock(Account acc) {
+        structure.readLock().lock();
+        acc.lock.lock();
+    }
+
+    void unlock(Account acc) {
+        acc.lock.unlock();
+        structure.readLock().unlock();
+    }
+
+    /** The name of the owner of the book, or null if nobody owns it */
+    public String getOwner(int bookID) {
+        structure.readLock().lock();
+        try {
+            int owner = bookOwner.get(bookID);
+            return owner < 0 ? null : accountList[owner].name;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /** The book with the ID (as it was given to its first owner), or null if there is no such book */
+    public BookInfo getBook(int bookID) {
+        structure.readLock().lock();
+        try {
+            return bookInfos.get(bookID);
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /** The current utility and met goals of the agent, null if the agent is not known */
+    public Standing getStanding(String name) {
+        Account acc = accounts.get(name);
+        if (acc == null) {
+            return null;
+        }
+        synchronized (leaderboard) {
+            return acc.standing;
+        }
+    }
+
+    /** The k agents with the highest utility, the best first */
+    public ArrayList<Standing> getTop(int k) {
+        synchronized (leaderboard) {
+            ArrayList<Standing> top = new ArrayList<Standing>(Math.min(k, leaderboard.size()));
+            for (Standing st : leaderboard) {
+                if (top.size() == k)
+                    break;
+                top.add(st);
+            }
+            return top;
+        }
+    }
+
+    //replaces the entry of the account in the leaderboard, the account has to be locked
+    private void updateStanding(Account acc) {
+        synchronized (leaderboard) {
+            if (acc.standing != null) {
+                leaderboard.remove(acc.standing);
+            }
+            acc.standing = new Standing(acc);
+            leaderboard.add(acc.standing);
+        }
+    }
+
+    /** Generates the AgentInfo (books, goals, money) of the agent, null if the agent is not known */
+    public AgentInfo getAgentInfo(String name) {
+
+        Account acc = accounts.get(name);
+        if (acc == null) {
+            return null;
+        }
+
+        //the published state is consistent, no locks are needed
+        AccountState st = acc.state;
+
+        AgentInfo ai = new AgentInfo();
+        ai.setBooks(new ArrayList<BookInfo>(Arrays.asList(st.books)));
+        ai.setGoals(acc.goals);
+        ai.setMoney(st.money);
+        ai.setVersion(st.version);
+        return ai;
+    }
+
+    /**
+     * Collects the states of all accounts at one moment. No trade runs while they are collected (the write lock of
+     * the ledger is held), but that takes only a copy of a reference per account, the states themselves are written
+     * out later without any locks. The position of the journal (if there is one) is taken at the same moment, the
+     * trades are appended to it while the ledger is locked for them.
+     */
+    View capture(Journal journal) {
+        structure.writeLock().lock();
+        try {
+            Account[] list = accountList;
+            AccountState[] states = new AccountState[list.length];
+            for (int i = 0; i < list.length; i++) {
+                states[i] = list[i].state;
+            }
+            return new View(list, states, journal != null ? journal.getPosition() : 0, System.currentTimeMillis());
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    //publishes a copy of the books and money of the account, the account has to be locked (or not yet visible)
+    private void publish(Account acc) {
+        int[] ids = acc.books.toArray();
+        BookInfo[] books = new BookInfo[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            books[i] = bookInfos.get(ids[i]);
+        }
+        acc.state = new AccountState(books, acc.money, acc.version);
+    }
+
+    /** Finds the books the agent wants to send but does not own, the account has to be locked */
+    ArrayList<BookInfo> getMissingBooks(Account acc, ArrayList<BookInfo> books) {
+
+        ArrayList<BookInfo> missing = new ArrayList<BookInfo>();
+        for (BookInfo bi : books) {
+            if (bookOwner.get(bi.getBookID()) != acc.index) {
+                missing.add(bi);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Exchanges the books and the money between two agents, both accounts have to be locked. The first agent sends
+     * books1 and money1, the second one sends books2 and money2. If any of the books cannot be moved (e.g. the same
+     * book is listed twice), everything moved so far is rolled back and false is returned.
+     */
+    boolean transfer(Account acc1, ArrayList<BookInfo> books1, double money1,
+                     Account acc2, ArrayList<BookInfo> books2, double money2) {
+
+        int moved1 = moveBooks(acc1, acc2, books1);
+        if (moved1 < books1.size()) {
+            rollback(acc2, acc1, books1, moved1);
+            return false;
+        }
+
+        int moved2 = moveBooks(acc2, acc1, books2);
+        if (moved2 < books2.size()) {
+            rollback(acc1, acc2, books2, moved2);
+            rollback(acc2, acc1, books1, moved1);
+            return false;
+        }
+
+        acc1.addMoney(money2 - money1);
+        acc2.addMoney(money1 - money2);
+
+        acc1.version++;
+        acc2.version++;
+
+        publish(acc1);
+        publish(acc2);
+
+        updateStanding(acc1);
+        updateStanding(acc2);
+
+        return true;
+    }
+
+    /**
+     * Repeats a trade read from the journal (see Journal), the first agent sends the books with the IDs books1 and
+     * money1, the second one books2 and money2. Returns false if the agents or the books are not in the ledger.
+     */
+    public boolean applyTrade(String name1, int[] books1, double money1, String name2, int[] books2, double money2) {
+
+        Account acc1 = accounts.get(name1);
+        Account acc2 = accounts.get(name2);
+        if (acc1 == null || acc2 == null || acc1 == acc2) {
+            return false;
+        }
+
+        lock(acc1, acc2);
+        try {
+            ArrayList<BookInfo> sent1 = new ArrayList<BookInfo>(books1.length);
+            ArrayList<BookInfo> sent2 = new ArrayList<BookInfo>(books2.length);
+            for (int id : books1) {
+                BookInfo bi = bookInfos.get(id);
+                if (bi == null)
+                    return false;
+                sent1.add(bi);
+            }
+            for (int id : books2) {
+                BookInfo bi = bookInfos.get(id);
+                if (bi == null)
+                    return false;
+                sent2.add(bi);
+            }
+            return transfer(acc1, sent1, money1, acc2, sent2, money2);
+        } finally {
+            unlock(acc1, acc2);
+        }
+    }
+
+    /**
+     * The first phase of a trade with an agent of another shard: checks the agent owns the books and has the money it
+     * sends and holds them, so no other trade can use them. The account (and the information of the agent) does not
+     * change until the trade is committed.
+     */
+    Hold prepare(String name, ArrayList<BookInfo> books, double money) {
+
+        Account acc = accounts.get(name);
+        if (acc == null) {
+            return new Hold(null, null, 0, "agent not found");
+        }
+
+        lock(acc);
+        try {
+            ArrayList<BookInfo> missing = getMissingBooks(acc, books);
+            if (missing.size() > 0) {
+                return new Hold(acc, null, 0, name + " does not have " + missing);
+            }
+            if (acc.available() < money) {
+                return new Hold(acc, null, 0, name + " does not have enough money");
+            }
+
+            ArrayList<BookInfo> held = new ArrayList<BookInfo>(books.size());
+            for (int i = 0; i < books.size(); i++) {
+                int id = books.get(i).getBookID();
+                if (bookOwner.get(id) != acc.index) {
+                    //the same book listed twice
+                    for (BookInfo bi : held) {
+                        bookOwner.put(bi.getBookID(), acc.index);
+                    }
+                    return new Hold(acc, null, 0, "books cannot be transferred");
+                }
+                bookOwner.put(id, HELD);
+                held.add(bookInfos.get(id));
+            }
+            acc.heldMoney += money;
+
+            return new Hold(acc, held, money, null);
+        } finally {
+            unlock(acc);
+        }
+    }
+
+    /** Returns the held books and money to the agent (the trade was aborted) */
+    void abort(Hold hold) {
+        lock(hold.acc);
+        try {
+            for (BookInfo bi : hold.books) {
+                bookOwner.put(bi.getBookID(), hold.acc.index);
+            }
+            hold.acc.heldMoney -= hold.money;
+        } finally {
+            unlock(hold.acc);
+        }
+    }
+
+    /**
+     * The second phase of a trade with an agent of another shard: the held books and money leave the ledger and the
+     * books and money sent by the other agent are added to the account. The change is appended to the journal (if it
+     * is not null) while the ledger is locked. Returns the change of the information of the agent.
+     */
+    InfoUpdate commit(Hold hold, ArrayList<BookInfo> received, double receivedMoney, Journal journal,
+                      String conversationID) {
+        structure.writeLock().lock();
+        try {
+            hold.acc.heldMoney -= hold.money;
+            InfoUpdate iu = exchange(hold.acc, hold.books, hold.money, received, receivedMoney);
+            if (journal != null) {
+                hold.journalPosition = journal.appendTransfer(conversationID, hold.acc.name, hold.books, hold.money,
+                        received, receivedMoney);
+            }
+            return iu;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Repeats the part of a trade with an agent of another shard read from the journal (see Journal.appendTransfer()).
+     * Returns false if the agent is not in the ledger or does not own the books it sent.
+     */
+    public boolean applyTransfer(String name, int[] sent, double sentMoney, ArrayList<BookInfo> received,
+                                 double receivedMoney) {
+        structure.writeLock().lock();
+        try {
+            Account acc = accounts.get(name);
+            if (acc == null) {
+                return false;
+            }
+            ArrayList<BookInfo> books = new ArrayList<BookInfo>(sent.length);
+            for (int id : sent) {
+                if (!acc.books.contains(id)) {
+                    return false;
+                }
+                books.add(bookInfos.get(id));
+            }
+            exchange(acc, books, sentMoney, received, receivedMoney);
+            return true;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    //the books leave the ledger and the received ones are added to it, the write lock has to be held (the ownership
+    //index changes its structure)
+    private InfoUpdate exchange(Account acc, ArrayList<BookInfo> sent, double sentMoney, ArrayList<BookInfo> received,
+                                double receivedMoney) {
+
+        for (BookInfo bi : sent) {
+            acc.removeBook(bi.getBookID(), bi.getTypeID());
+            //both agents of a trade coordinated by another shard can be here, the book may have been received already
+            int owner = bookOwner.get(bi.getBookID());
+            if (owner == HELD || owner == acc.index) {
+                bookOwner.remove(bi.getBookID());
+                bookInfos.remove(bi.getBookID());
+            }
+        }
+        for (BookInfo bi : received) {
+            bookOwner.put(bi.getBookID(), acc.index);
+            bookInfos.put(bi.getBookID(), bi);
+            acc.addBook(bi.getBookID(), bi.getTypeID());
+        }
+        acc.addMoney(receivedMoney - sentMoney);
+
+        acc.version++;
+        publish(acc);
+        updateStanding(acc);
+
+        InfoUpdate iu = new InfoUpdate();
+        iu.setAddedBooks(received);
+        iu.setRemovedBooks(sent);
+        iu.setMoneyChange(receivedMoney - sentMoney);
+        iu.setVersion(acc.version);
+        return iu;
+    }
+
+    /**
+     * Describes the last change of the account (made by transfer()) for the agent, the account has to be locked. The
+     * books are taken from the ledger, not from the (possibly wrongly named) books in the requests.
+     */
+    InfoUpdate describeChange(Account acc, ArrayList<BookInfo> added, ArrayList<BookInfo> removed, double moneyChange) {
+
+        InfoUpdate iu = new InfoUpdate();
+        iu.setAddedBooks(lookupBooks(added));
+        iu.setRemovedBooks(lookupBooks(removed));
+        iu.setMoneyChange(moneyChange);
+        iu.setVersion(acc.version);
+        return iu;
+    }
+
+    private ArrayList<BookInfo> lookupBooks(ArrayList<BookInfo> books) {
+        ArrayList<BookInfo> ret = new ArrayList<BookInfo>(books.size());
+        for (BookInfo bi : books) {
+            ret.add(bookInfos.get(bi.getBookID()));
+        }
+        return ret;
+    }
+
+    //moves the books from one account to the other, returns the number of books moved before the first error
+    private int moveBooks(Account from, Account to, ArrayList<BookInfo> books) {
+        for (int i = 0; i < books.size(); i++) {
+            int id = books.get(i).getBookID();
+            if (bookOwner.get(id) != from.index || !from.books.contains(id)) {
+                return i;
+            }
+            int type = bookInfos.get(id).getTypeID();
+            from.removeBook(id, type);
+            to.addBook(id, type);
+            bookOwner.put(id, to.index);
+        }
+        return books.size();
+    }
+
+    //returns the first n books back to their previous owner
+    private void rollback(Account from, Account to, ArrayList<BookInfo> books, int n) {
+        for (int i = 0; i < n; i++) {
+            int id = books.get(i).getBookID();
+            int type = bookInfos.get(id).getTypeID();
+            from.removeBook(id, type);
+            to.addBook(id, type);
+            bookOwner.put(id, to.index);
+        }
+    }
+}
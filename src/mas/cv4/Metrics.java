@@ -0,0 +1,346 @@
+package mas.cv4;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latencies of the stages of the trading protocols, shared by all agents in the JVM.
+ *
+ * The agents record how long each stage took (e.g. the environment records the settlement of a trade, the traders
+ * the round trip of a CFP) and count the events (settled trades, expired transactions). The simulation harness reads
+ * them to report the throughput and the latency percentiles.
+ *
+ * The stages of a single trade are traced by its conversation ID: the buyer begins the trace when it sends the CFP,
+ * each agent which sees the trade later (the seller, the environment) marks the stage it reached and the time since
+ * the previous mark is recorded for that stage. A negotiation which ends without a trade drops its trace (drop()), the
+ * traces nobody ended are dropped after TRACE_TIMEOUT (checked while new traces begin, at most once per the timeout),
+ * so the traces do not pile up in a long running platform. The latencies go to lock-free histograms with buckets of
+ * logarithmic width (as in HdrHistogram), so recording never blocks and the memory does not grow with the number of
+ * samples.
+ *
+ * The latencies and the traces can be switched off (setEnabled(), -Dmas.metrics=false), then recording costs only a
+ * check of a flag. The counters are always kept, the harness needs them. The metrics are also available through JMX as
+ * mas.cv4:type=Metrics (see MetricsMXBean).
+ */
+public class Metrics implements MetricsMXBean {
+
+    //names of the stages and counters
+    public static final String CFP = "cfp";
+    public static final String TRANSACTION = "transaction";
+    public static final String MATCH_WAIT = "match-wait";
+    public static final String SETTLEMENT = "settlement";
+    public static final String REPLY = "reply";
+    public static final String START_TRADING = "start-trading";
+    public static final String INFO_REFRESH = "info-refresh";
+    public static final String TRADES_SETTLED = "trades-settled";
+    public static final String TRADES_FAILED = "trades-failed";
+    public static final String TRANSACTIONS_EXPIRED = "transactions-expired";
+    public static final String TRADERS_STARTED = "traders-started";
+    public static final String ORDERS_PLACED = "orders-placed";
+    public static final String ORDERS_MATCHED = "orders-matched";
+    public static final String TRACES_ABANDONED = "traces-abandoned";
+    public static final String CFPS_COALESCED = "cfps-coalesced";
+    public static final String CFPS_DROPPED = "cfps-dropped";
+    public static final String TICKS_SKIPPED = "ticks-skipped";
+    public static final String CFPS_EXPIRED = "cfps-expired";
+    public static final String CFPS_REFUSED_BUSY = "cfps-refused-busy";
+    public static final String JOURNAL_SYNC = "journal-sync";
+    public static final String JOURNAL_SYNCS = "journal-syncs";
+    public static final String JOURNAL_RECORDS = "journal-records";
+    public static final String SNAPSHOT = "snapshot";
+    public static final String SNAPSHOT_VIEW = "snapshot-view";
+    public static final String SNAPSHOTS = "snapshots";
+    public static final String TWO_PHASE_COMMIT = "two-phase-commit";
+    public static final String TRADES_CROSS_SHARD = "trades-cross-shard";
+    public static final String REQUESTS_FORWARDED = "requests-forwarded";
+    public static final String HOST_TICK = "host-tick";
+
+    //stages of a traced trade, each one measured from the previous one
+    public static final String TRADE_PROPOSALS = "trade/proposals";
+    public static final String TRADE_ACCEPTED = "trade/accepted";
+    public static final String TRADE_FIRST_REQUEST = "trade/first-request";
+    public static final String TRADE_MATCHED = "trade/matched";
+    public static final String TRADE_SETTLED = "trade/settled";
+    public static final String TRADE_REPLIED = "trade/replied";
+
+    //traces without a new stage for this long are dropped (the trade failed somewhere)
+    static final long TRACE_TIMEOUT = 60L * 1000 * 1000 * 1000;
+
+    static Metrics theInstance = new Metrics();
+
+    /**
+     * A histogram of non-negative values. Values below 2^SUB_BITS have their own bucket, the larger ones are split by
+     * their highest bit into ranges and each range into 2^SUB_BITS buckets, so each value is known with the relative
+     * error of at most 2^-SUB_BITS (about 3 %).
+     */
+    static class Histogram {
+
+        static final int SUB_BITS = 5;
+        static final int SUB_COUNT = 1 << SUB_BITS;
+        static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        static int bucket(long value) {
+            if (value < SUB_COUNT)
+                return (int)value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int)(value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        //the lowest value in the bucket
+        static long lowest(int bucket) {
+            if (bucket < SUB_COUNT)
+                return bucket;
+            int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+            long sub = bucket % SUB_COUNT;
+            return (1L << exp) | (sub << (exp - SUB_BITS));
+        }
+
+        void add(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(bucket(value));
+            total.incrementAndGet();
+
+            long m = max.get();
+            while (value > m && !max.compareAndSet(m, value)) {
+                m = max.get();
+            }
+        }
+
+        long count() {
+            return total.get();
+        }
+
+        //the p-th percentile (0-100), the middle of the bucket it falls into, -1 if the histogram is empty
+        long percentile(double p) {
+            long n = total.get();
+            if (n == 0)
+                return -1;
+            if (p >= 100)
+                return max.get();
+
+            long rank = Math.max(1, (long)Math.ceil(p / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    long low = lowest(i);
+                    long high = i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+                    return Math.min(max.get(), low + (high - low) / 2);
+                }
+            }
+            return max.get();
+        }
+    }
+
+    volatile boolean enabled = !"false".equals(System.getProperty("mas.metrics"));
+    boolean registered = false;
+
+    ConcurrentHashMap<String, Histogram> stages = new ConcurrentHashMap<String, Histogram>();
+    ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    //conversation ID -> time of the last stage of the trade (System.nanoTime())
+    ConcurrentHashMap<String, AtomicLong> traces = new ConcurrentHashMap<String, AtomicLong>();
+    //the abandoned traces are looked for again at this time (System.nanoTime())
+    AtomicLong nextExpiry = new AtomicLong(System.nanoTime() + TRACE_TIMEOUT);
+
+    public static Metrics getInstance() {
+        return theInstance;
+    }
+
+    /** Registers the metrics with the platform MBean server, does nothing if they are registered already */
+    public synchronized void registerMBean() {
+        if (registered)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("mas.cv4:type=Metrics"));
+            registered = true;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Records the duration of one run of the stage */
+    public void record(String stage, long nanos) {
+        if (!enabled)
+            return;
+
+        Histogram h = stages.get(stage);
+        if (h == null) {
+            Histogram created = new Histogram();
+            h = stages.putIfAbsent(stage, created);
+            if (h == null)
+                h = created;
+        }
+        h.add(nanos);
+    }
+
+    /** Starts the trace of the trade with the conversation ID */
+    public void begin(String conversationID) {
+        if (!enabled || conversationID == null)
+            return;
+        long now = System.nanoTime();
+        traces.put(conversationID, new AtomicLong(now));
+
+        //only one of the threads beginning a trace looks for the abandoned ones
+        long next = nextExpiry.get();
+        if (now - next >= 0 && nextExpiry.compareAndSet(next, now + TRACE_TIMEOUT))
+            expireTraces();
+    }
+
+    /** The trade reached the stage, records the time since its previous stage (if the trade is traced) */
+    public void stage(String conversationID, String stage) {
+        if (!enabled || conversationID == null)
+            return;
+
+        AtomicLong last = traces.get(conversationID);
+        if (last == null)
+            return;
+        long now = System.nanoTime();
+        record(stage, now - last.getAndSet(now));
+    }
+
+    /** The trade reached its last stage, records it and stops the trace */
+    public void end(String conversationID, String stage) {
+        if (!enabled || conversationID == null)
+            return;
+
+        AtomicLong last = traces.remove(conversationID);
+        if (last == null)
+            return;
+        record(stage, System.nanoTime() - last.get());
+    }
+
+    /** The negotiation ended without a trade, stops its trace without recording anything */
+    public void drop(String conversationID) {
+        if (conversationID != null)
+            traces.remove(conversationID);
+    }
+
+    //drops the traces of the trades which did not finish
+    void expireTraces() {
+        long now = System.nanoTime();
+        Iterator<AtomicLong> it = traces.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().get() > TRACE_TIMEOUT) {
+                it.remove();
+                count(TRACES_ABANDONED);
+            }
+        }
+    }
+
+    public void count(String counter) {
+        count(counter, 1);
+    }
+
+    public void count(String counter, long n) {
+        AtomicLong c = counters.get(counter);
+        if (c == null) {
+            AtomicLong created = new AtomicLong();
+            c = counters.putIfAbsent(counter, created);
+            if (c == null)
+                c = created;
+        }
+        c.addAndGet(n);
+    }
+
+    @Override
+    public long getCount(String counter) {
+        AtomicLong c = counters.get(counter);
+        return c == null ? 0 : c.get();
+    }
+
+    /** The p-th percentile (0-100) of the latency of the stage in nanoseconds, -1 if nothing was recorded */
+    public long getPercentile(String stage, double p) {
+        Histogram h = stages.get(stage);
+        if (h == null)
+            return -1;
+        return h.percentile(p);
+    }
+
+    @Override
+    public double getPercentileMillis(String stage, double p) {
+        long nanos = getPercentile(stage, p);
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    @Override
+    public long getSamples(String stage) {
+        Histogram h = stages.get(stage);
+        return h == null ? 0 : h.count();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        TreeMap<String, Long> ret = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> c : counters.entrySet()) {
+            ret.put(c.getKey(), c.getValue().get());
+        }
+        return ret;
+    }
+
+    @Override
+    public String[] getStages() {
+        return new TreeMap<String, Histogram>(stages).keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public int getActiveTraces() {
+        return traces.size();
+    }
+
+    @Override
+    public void reset() {
+        stages.clear();
+        counters.clear();
+        traces.clear();
+    }
+
+    @Override
+    public String getSummary() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(out);
+        print(ps);
+        ps.flush();
+        return out.toString();
+    }
+
+    /** Prints the counters and the latency percentiles (in milliseconds) of all stages */
+    public void print(PrintStream out) {
+
+        expireTraces();
+
+        for (Map.Entry<String, Long> c : getCounters().entrySet()) {
+            out.printf("%-24s %12d%n", c.getKey(), c.getValue());
+        }
+
+        out.printf("%-24s %8s %10s %10s %10s %10s%n", "stage", "count", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(stages).entrySet()) {
+            Histogram h = e.getValue();
+            out.printf("%-24s %8d %10.3f %10.3f %10.3f %10.3f%n", e.getKey(), h.count(), h.percentile(50) / 1e6,
+                    h.percentile(90) / 1e6, h.percentile(99) / 1e6, h.percentile(100) / 1e6);
+        }
+    }
+}
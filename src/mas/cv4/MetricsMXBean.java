@@ -0,0 +1,36 @@
+package mas.cv4;
+
+import java.util.Map;
+
+/**
+ * The trading metrics (see Metrics) as seen through JMX, e.g. in JConsole or VisualVM.
+ */
+public interface MetricsMXBean {
+
+    /** Whether the latencies and traces are recorded */
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /** Values of all counters by their names */
+    Map<String, Long> getCounters();
+
+    long getCount(String counter);
+
+    /** Names of the stages with recorded latencies */
+    String[] getStages();
+
+    /** Number of recorded latencies of the stage */
+    long getSamples(String stage);
+
+    /** The p-th percentile (0-100) of the latency of the stage in milliseconds, -1 if nothing was recorded */
+    double getPercentileMillis(String stage, double p);
+
+    /** Number of trades being traced now */
+    int getActiveTraces();
+
+    /** The counters and the percentiles of all stages as text */
+    String getSummary();
+
+    void reset();
+}
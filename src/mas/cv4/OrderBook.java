@@ -0,0 +1,151 @@
+package mas.cv4;
+
+import jade.lang.acl.ACLMessage;
+import mas.cv4.onto.PlaceOrder;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * A limit order book of one book title.
+ *
+ * The bids are ordered from the highest price, the asks from the lowest, orders with the same price by the time they
+ * were placed. Each agent has at most one bid and one ask in the book, a new order replaces the previous one. An
+ * order which crosses the best order on the other side is matched with it for the price of the order which was in the
+ * book first, so a trade costs the two requests and the two replies no matter how many agents trade the title.
+ *
+ * The book is not thread safe, it is used only by the agent thread of the environment.
+ */
+public class OrderBook {
+
+    /** An order waiting in the book */
+    public static class Order {
+
+        public final String trader;
+        public final PlaceOrder order;
+        public final ACLMessage request;
+        //when the order was placed and when it expires (in milliseconds)
+        public final long time;
+        public final long deadline;
+        final long seq;
+
+        Order(String trader, PlaceOrder order, ACLMessage request, long time, long deadline, long seq) {
+            this.trader = trader;
+            this.order = order;
+            this.request = request;
+            this.time = time;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+
+        public double getPrice() {
+            return order.getPrice();
+        }
+    }
+
+    /** Two crossing orders and the price of the trade */
+    public static class Match {
+
+        public final Order bid;
+        public final Order ask;
+        public final double price;
+
+        Match(Order bid, Order ask, double price) {
+            this.bid = bid;
+            this.ask = ask;
+            this.price = price;
+        }
+    }
+
+    static final Comparator<Order> BIDS = new Comparator<Order>() {
+        @Override
+        public int compare(Order a, Order b) {
+            int c = Double.compare(b.getPrice(), a.getPrice());
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        }
+    };
+
+    static final Comparator<Order> ASKS = new Comparator<Order>() {
+        @Override
+        public int compare(Order a, Order b) {
+            int c = Double.compare(a.getPrice(), b.getPrice());
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        }
+    };
+
+    TreeSet<Order> bids = new TreeSet<Order>(BIDS);
+    TreeSet<Order> asks = new TreeSet<Order>(ASKS);
+    //trader -> its order on each side
+    HashMap<String, Order> bidsByTrader = new HashMap<String, Order>();
+    HashMap<String, Order> asksByTrader = new HashMap<String, Order>();
+
+    long nextSeq = 0;
+
+    /** Creates an order of the trader for this book, the orders are ordered by the time they are created */
+    public Order createOrder(String trader, PlaceOrder po, ACLMessage request, long time, long deadline) {
+        return new Order(trader, po, request, time, deadline, nextSeq++);
+    }
+
+    /**
+     * Adds the order to the book, or matches it with the best order on the other side.
+     *
+     * @param replaced the previous order of the trader on the same side is added here
+     * @return the match if the order crossed the book, null if the order waits in the book
+     */
+    public Match place(Order order, ArrayList<Order> replaced) {
+
+        String trader = order.trader;
+        PlaceOrder po = order.order;
+
+        Order previous = po.isBid() ? bidsByTrader.remove(trader) : asksByTrader.remove(trader);
+        if (previous != null) {
+            remove(previous);
+            replaced.add(previous);
+        }
+
+        if (po.isBid()) {
+            Order best = asks.isEmpty() ? null : asks.first();
+            if (best != null && best.getPrice() <= po.getPrice() && !best.trader.equals(trader)) {
+                remove(best);
+                return new Match(order, best, best.getPrice());
+            }
+            bids.add(order);
+            bidsByTrader.put(trader, order);
+        } else {
+            Order best = bids.isEmpty() ? null : bids.first();
+            if (best != null && best.getPrice() >= po.getPrice() && !best.trader.equals(trader)) {
+                remove(best);
+                return new Match(best, order, best.getPrice());
+            }
+            asks.add(order);
+            asksByTrader.put(trader, order);
+        }
+
+        return null;
+    }
+
+    /** Removes the order if it is still in the book, returns whether it was there */
+    public boolean remove(Order order) {
+        HashMap<String, Order> byTrader = order.order.isBid() ? bidsByTrader : asksByTrader;
+        if (byTrader.get(order.trader) == order) {
+            byTrader.remove(order.trader);
+        }
+        return order.order.isBid() ? bids.remove(order) : asks.remove(order);
+    }
+
+    /** The highest bid, null if there is none */
+    public Order getBestBid() {
+        return bids.isEmpty() ? null : bids.first();
+    }
+
+    /** The lowest ask, null if there is none */
+    public Order getBestAsk() {
+        return asks.isEmpty() ? null : asks.first();
+    }
+
+    public int size() {
+        return bids.size() + asks.size();
+    }
+}
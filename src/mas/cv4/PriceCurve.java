@@ -0,0 +1,53 @@
+package mas.cv4;
+
+/**
+ * How a price moves from one bound to the other during the trading.
+ *
+ * The progress goes from 0 (start of the trading) to 1 (end of the price changes), the curve says how far between the
+ * two prices the current price is.
+ */
+public interface PriceCurve {
+
+    /** The price for the progress (between 0 and 1), from equals the price at 0, to the price at 1 */
+    double value(double from, double to, double progress);
+
+    /** The price changes with the same speed all the time */
+    class Linear implements PriceCurve {
+        @Override
+        public double value(double from, double to, double progress) {
+            return from + (to - from) * progress;
+        }
+    }
+
+    /** The price changes slowly at the start and quickly at the end */
+    class Exponential implements PriceCurve {
+
+        final double steepness;
+        final double scale;
+
+        public Exponential(double steepness) {
+            this.steepness = steepness;
+            this.scale = Math.expm1(steepness);
+        }
+
+        @Override
+        public double value(double from, double to, double progress) {
+            return from + (to - from) * Math.expm1(steepness * progress) / scale;
+        }
+    }
+
+    /** The price changes in a few discrete steps */
+    class Stepwise implements PriceCurve {
+
+        final int steps;
+
+        public Stepwise(int steps) {
+            this.steps = steps;
+        }
+
+        @Override
+        public double value(double from, double to, double progress) {
+            return from + (to - from) * Math.floor(progress * steps) / steps;
+        }
+    }
+}
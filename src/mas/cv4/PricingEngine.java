@@ -0,0 +1,116 @@
+package mas.cv4;
+
+import mas.cv4.onto.Goal;
+
+/**
+ * The prices for which a trader sells and buys the books.
+ *
+ * The lowest and highest price of each book type is computed once when the trading starts. The sellers start with the
+ * high price and go down, the buyers start with the low price and go up, the curve says how. The time is read only
+ * once per decision round (see startRound()), the prices of all types for the round are computed at that moment, so
+ * evaluating the offers in the round costs one array access per book.
+ */
+public class PricingEngine {
+
+    //time (in milliseconds since the start) when the prices start to change and when they stop
+    static final double START_LOWER_TIME = 0;
+    static final double TIME_THOLD = 1 * 60 * 1000;
+
+    final PriceCurve curve;
+    long startTime;
+
+    //bounds of the prices per book type
+    double[] sellMin = new double[0];
+    double[] sellMax = new double[0];
+    double[] buyMin = new double[0];
+    double[] buyMax = new double[0];
+    //types we have a goal for (only these are bought)
+    boolean[] wanted = new boolean[0];
+
+    //prices of the current round
+    double[] sellPrices = new double[0];
+    double[] buyPrices = new double[0];
+
+    public PricingEngine(PriceCurve curve) {
+        this.curve = curve;
+    }
+
+    /** Creates the curve with the given name (linear, exponential or stepwise) */
+    public static PriceCurve createCurve(String name) {
+        if (name.equals("linear"))
+            return new PriceCurve.Linear();
+        if (name.equals("exponential"))
+            return new PriceCurve.Exponential(3);
+        if (name.equals("stepwise"))
+            return new PriceCurve.Stepwise(4);
+        throw new IllegalArgumentException("unknown price curve " + name);
+    }
+
+    /**
+     * Computes the bounds of the prices when the trading starts.
+     *
+     * @param goalByType our goal for each book type (null if we do not want the type)
+     */
+    public void start(long startTime, Goal[] goalByType) {
+
+        this.startTime = startTime;
+
+        int n = BookCatalogue.size();
+        sellMin = new double[n];
+        sellMax = new double[n];
+        buyMin = new double[n];
+        buyMax = new double[n];
+        wanted = new boolean[n];
+
+        for (int type = 0; type < n; type++) {
+            double price = BookCatalogue.getPrice(type);
+            sellMax[type] = price + 19;
+            sellMin[type] = Math.max(1, price / 2);
+
+            Goal goal = type < goalByType.length ? goalByType[type] : null;
+            if (goal != null) {
+                wanted[type] = true;
+                buyMax[type] = goal.getValue() - 1;
+                buyMin[type] = Math.max(1, goal.getValue() - 40);
+            }
+        }
+
+        sellPrices = new double[n];
+        buyPrices = new double[n];
+        startRound(startTime);
+    }
+
+    /** Computes the prices for the current time, should be called before each decision */
+    public void startRound() {
+        startRound(System.currentTimeMillis());
+    }
+
+    public void startRound(long now) {
+
+        double elapsed = now - startTime;
+        double progress;
+        if (elapsed < START_LOWER_TIME) {
+            progress = 0;
+        } else if (elapsed >= TIME_THOLD) {
+            progress = 1;
+        } else {
+            progress = (elapsed - START_LOWER_TIME) / (TIME_THOLD - START_LOWER_TIME);
+        }
+
+        for (int type = 0; type < sellPrices.length; type++) {
+            sellPrices[type] = Math.max(0, curve.value(sellMax[type], sellMin[type], progress));
+            buyPrices[type] = wanted[type] ? Math.max(0, curve.value(buyMin[type], buyMax[type], progress)) : 0;
+        }
+    }
+
+    /** How much do we want to get for a book of the type */
+    public double getSellPrice(int type) {
+        //a type nobody knew when the trading started has no price (as in Constants.getPrice())
+        return type < sellPrices.length ? sellPrices[type] : Double.NaN;
+    }
+
+    /** How much are we willing to pay for a book of the type (0 if we do not want it) */
+    public double getBuyPrice(int type) {
+        return type < buyPrices.length ? buyPrices[type] : 0;
+    }
+}
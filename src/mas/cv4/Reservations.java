@@ -0,0 +1,102 @@
+package mas.cv4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The books of a trader which are promised in a running negotiation.
+ *
+ * A book offered in a proposal (or given in an accepted offer) is reserved for the conversation until the reply-by
+ * time of the message, or until the transaction is finished, so it is not offered to anybody else at the same time.
+ * A reservation which expired is ignored, the negotiation it belonged to cannot finish any more.
+ *
+ * The table is not thread safe, it should only be used from the behaviours of its agent.
+ */
+public class Reservations {
+
+    private static class Reservation {
+        final String owner;
+        long expiry;
+
+        Reservation(String owner, long expiry) {
+            this.owner = owner;
+            this.expiry = expiry;
+        }
+    }
+
+    //book ID -> its reservation, conversation -> the books reserved for it
+    private HashMap<Integer, Reservation> byBook = new HashMap<Integer, Reservation>();
+    private HashMap<String, ArrayList<Integer>> byOwner = new HashMap<String, ArrayList<Integer>>();
+
+    /** Whether the book is reserved for a conversation other than the given one (which may be null) */
+    public boolean isReserved(int bookID, String owner, long now) {
+        Reservation r = byBook.get(bookID);
+        if (r == null)
+            return false;
+        if (r.expiry <= now) {
+            remove(bookID, r);
+            return false;
+        }
+        return !r.owner.equals(owner);
+    }
+
+    /** Reserves the book for the conversation until the expiry, returns false if it is reserved for another one */
+    public boolean reserve(int bookID, String owner, long expiry, long now) {
+        if (isReserved(bookID, owner, now))
+            return false;
+
+        Reservation r = byBook.get(bookID);
+        if (r != null) {
+            r.expiry = Math.max(r.expiry, expiry);
+            return true;
+        }
+
+        byBook.put(bookID, new Reservation(owner, expiry));
+        ArrayList<Integer> books = byOwner.get(owner);
+        if (books == null) {
+            books = new ArrayList<Integer>(2);
+            byOwner.put(owner, books);
+        }
+        books.add(bookID);
+        return true;
+    }
+
+    /** Keeps the books of the conversation reserved until the expiry (e.g. when the proposal was accepted) */
+    public void extend(String owner, long expiry) {
+        ArrayList<Integer> books = byOwner.get(owner);
+        if (books == null)
+            return;
+        for (int bookID : books) {
+            Reservation r = byBook.get(bookID);
+            if (r != null && r.owner.equals(owner))
+                r.expiry = Math.max(r.expiry, expiry);
+        }
+    }
+
+    /** Releases all the books reserved for the conversation */
+    public void release(String owner) {
+        ArrayList<Integer> books = byOwner.remove(owner);
+        if (books == null)
+            return;
+        for (int bookID : books) {
+            Reservation r = byBook.get(bookID);
+            if (r != null && r.owner.equals(owner))
+                byBook.remove(bookID);
+        }
+    }
+
+    /** The number of reserved books (including the expired reservations which were not removed yet) */
+    public int size() {
+        return byBook.size();
+    }
+
+    private void remove(int bookID, Reservation r) {
+        byBook.remove(bookID);
+        ArrayList<Integer> books = byOwner.get(r.owner);
+        if (books != null) {
+            books.remove((Integer)bookID);
+            if (books.isEmpty())
+                byOwner.remove(r.owner);
+        }
+    }
+}
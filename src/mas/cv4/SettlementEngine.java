@@ -0,0 +1,265 @@
+package mas.cv4;
+
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.InfoUpdate;
+import mas.cv4.onto.MakeTransaction;
+import mas.cv4.onto.TransactionInfo;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settles matched pairs of MakeTransaction requests on a pool of worker threads.
+ *
+ * Only the two agents involved in a trade are locked (see Ledger.lock), so trades between different agents settle in
+ * parallel. The results are not sent from the workers, they are queued and the listener is notified, so that the
+ * replies are sent by the agent thread. In the deterministic mode a single worker settles the trades in the order in
+ * which they were matched, so the results of a competition can be reproduced.
+ */
+public class SettlementEngine {
+
+    /** Notified (from a worker thread) each time a new result is available */
+    public interface ResultListener {
+        void resultAvailable();
+    }
+
+    /** A settled (or failed) pair of transactions */
+    public static class Result {
+
+        public final TransactionInfo first;
+        public final TransactionInfo second;
+        //null if the trade was successful, the reason of the failure otherwise
+        public final String failure;
+        //changes of the information of the first and the second agent (if the trade was successful)
+        public final InfoUpdate firstUpdate;
+        public final InfoUpdate secondUpdate;
+        //end of the record of the trade in the journal, -1 if it was not journaled
+        long journalPosition = -1;
+
+        Result(TransactionInfo first, TransactionInfo second, String failure) {
+            this(first, second, failure, null, null);
+        }
+
+        Result(TransactionInfo first, TransactionInfo second, String failure, InfoUpdate firstUpdate, InfoUpdate secondUpdate) {
+            this.first = first;
+            this.second = second;
+            this.failure = failure;
+            this.firstUpdate = firstUpdate;
+            this.secondUpdate = secondUpdate;
+        }
+
+        public boolean isSuccess() {
+            return failure == null;
+        }
+    }
+
+    Ledger ledger;
+    ExecutorService workers;
+    ResultListener listener;
+    ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<Result>();
+    //the settled trades are appended here (null = no journal)
+    Journal journal;
+
+    /**
+     * @param threads number of worker threads, ignored in the deterministic mode
+     * @param deterministic settle the trades one by one in the order they are submitted
+     */
+    public SettlementEngine(Ledger ledger, int threads, boolean deterministic, ResultListener listener) {
+        this.ledger = ledger;
+        this.listener = listener;
+
+        ThreadFactory tf = new ThreadFactory() {
+            int n = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "settlement-" + n++);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+        if (deterministic || threads <= 1) {
+            workers = Executors.newSingleThreadExecutor(tf);
+        } else {
+            workers = Executors.newFixedThreadPool(threads, tf);
+        }
+    }
+
+    /**
+     * Records all settled trades in the journal, the result of a trade is available only when its record is durable,
+     * so an agent is never told about a trade which would be lost by a crash
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /** Hands a matched pair of transactions to the workers */
+    public void submit(final TransactionInfo first, final TransactionInfo second) {
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                final Result res = settle(first, second);
+                Metrics.getInstance().record(Metrics.SETTLEMENT, System.nanoTime() - start);
+                Metrics.getInstance().count(res.isSuccess() ? Metrics.TRADES_SETTLED : Metrics.TRADES_FAILED);
+                Metrics.getInstance().stage(first.getSendOrder().getTradeConversationID(), Metrics.TRADE_SETTLED);
+
+                if (res.journalPosition < 0) {
+                    publish(res);
+                    return;
+                }
+
+                //the worker does not wait for the disk, the flusher publishes the result
+                journal.whenDurable(res.journalPosition, new Runnable() {
+                    @Override
+                    public void run() {
+                        publish(res);
+                    }
+                });
+            }
+        });
+    }
+
+    private void publish(Result res) {
+        results.add(res);
+        listener.resultAvailable();
+    }
+
+    /** Returns the next result which should be replied to, null if there is none */
+    public Result poll() {
+        return results.poll();
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks the two orders describe the same trade and the agents own what they send, and moves the books and the
+     * money. Returns the result with the changes of both agents, or with the reason of the failure.
+     */
+    public Result settle(TransactionInfo first, TransactionInfo second) {
+
+        MakeTransaction sendOrder1 = first.getSendOrder();
+        MakeTransaction sendOrder2 = second.getSendOrder();
+
+        String failure = checkOrdersMatch(sendOrder1, sendOrder2);
+        if (failure != null) {
+            return new Result(first, second, failure);
+        }
+
+        String agentName1 = sendOrder1.getSenderName();
+        String agentName2 = sendOrder2.getSenderName();
+
+        Ledger.Account acc1 = ledger.getAccount(agentName1);
+        Ledger.Account acc2 = ledger.getAccount(agentName2);
+
+        if (acc1 == null || acc2 == null) {
+            return new Result(first, second, "agent not found");
+        }
+
+        if (acc1 == acc2) {
+            return new Result(first, second, "agent cannot trade with itself");
+        }
+
+        ledger.lock(acc1, acc2);
+        try {
+            //check the agents have all the books they want to send
+            ArrayList<BookInfo> ag1MissingBooks = ledger.getMissingBooks(acc1, sendOrder1.getSendingBooks());
+            if (ag1MissingBooks.size() > 0) {
+                return new Result(first, second, agentName1 + " does not have " + ag1MissingBooks);
+            }
+
+            ArrayList<BookInfo> ag2MissingBooks = ledger.getMissingBooks(acc2, sendOrder2.getSendingBooks());
+            if (ag2MissingBooks.size() > 0) {
+                return new Result(first, second, agentName2 + " does not have " + ag2MissingBooks);
+            }
+
+            //check the agent have enough money (not held by a trade with another shard)
+            if (acc1.available() < sendOrder1.getSendingMoney()) {
+                return new Result(first, second, agentName1 + " does not have enough money");
+            }
+
+            if (acc2.available() < sendOrder2.getSendingMoney()) {
+                return new Result(first, second, agentName2 + " does not have enough money");
+            }
+
+            //move the books and the money, the ledger rolls everything back if the books cannot be moved
+            if (!ledger.transfer(acc1, sendOrder1.getSendingBooks(), sendOrder1.getSendingMoney(),
+                    acc2, sendOrder2.getSendingBooks(), sendOrder2.getSendingMoney())) {
+                return new Result(first, second, "books cannot be transferred");
+            }
+
+            InfoUpdate update1 = ledger.describeChange(acc1, sendOrder2.getSendingBooks(), sendOrder1.getSendingBooks(),
+                    sendOrder2.getSendingMoney() - sendOrder1.getSendingMoney());
+            InfoUpdate update2 = ledger.describeChange(acc2, sendOrder1.getSendingBooks(), sendOrder2.getSendingBooks(),
+                    sendOrder1.getSendingMoney() - sendOrder2.getSendingMoney());
+
+            Result res = new Result(first, second, null, update1, update2);
+
+            //appended while both accounts are locked, so the trades of each agent are journaled in the order they
+            //were applied
+            if (journal != null) {
+                res.journalPosition = journal.appendTrade(sendOrder1.getTradeConversationID(),
+                        agentName1, sendOrder1.getSendingBooks(), sendOrder1.getSendingMoney(),
+                        agentName2, sendOrder2.getSendingBooks(), sendOrder2.getSendingMoney());
+            }
+
+            return res;
+        } finally {
+            ledger.unlock(acc1, acc2);
+        }
+    }
+
+    //checks the two orders describe the same trade (does not need any locks)
+    static String checkOrdersMatch(MakeTransaction sendOrder1, MakeTransaction sendOrder2) {
+
+        //check the senders and receiver match
+        if (!sendOrder1.getReceiverName().equals(sendOrder2.getSenderName()) ||
+                !sendOrder1.getSenderName().equals(sendOrder2.getReceiverName())) {
+            return "sender and receiver do not match";
+        }
+
+        //check the list of sent and expected books match
+        if (sendOrder1.getSendingBooks().size() != sendOrder2.getReceivingBooks().size()) {
+            return "orders do not match";
+        }
+
+        if (sendOrder1.getReceivingBooks().size() != sendOrder2.getSendingBooks().size()) {
+            return "orders do not match";
+        }
+
+        for (int i = 0; i < sendOrder1.getSendingBooks().size(); i++) {
+            if (sendOrder1.getSendingBooks().get(i).getBookID() != sendOrder2.getReceivingBooks().get(i).getBookID()) {
+                return "orders do not match";
+            }
+        }
+
+        for (int i = 0; i < sendOrder2.getSendingBooks().size(); i++) {
+            if (sendOrder2.getSendingBooks().get(i).getBookID() != sendOrder1.getReceivingBooks().get(i).getBookID()) {
+                return "orders do not match";
+            }
+        }
+
+        //check the amount of money matches
+        if (sendOrder1.getSendingMoney() != sendOrder2.getReceivingMoney()) {
+            return "orders do not match";
+        }
+
+        if (sendOrder1.getReceivingMoney() != sendOrder2.getSendingMoney()) {
+            return "orders do not match";
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,214 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.MakeTransaction;
+import mas.cv4.onto.TransactionInfo;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays the MakeTransaction requests recorded by the environment (see TradeRecorder, env-args record=FILE) through
+ * the matching and the settlement of the environment, without JADE and without the agents. For each run the market
+ * is restored as it was when the trading started and the requests are matched by a TransactionMatcher and settled as
+ * in Environment.HandleSendBehaviour. It prints the settlements per second and the allocation rate of all threads.
+ *
+ * Usage: java mas.cv4.SettlementReplay FILE [iterations=5] [warmup=2] [workers=0] [speed=0] [metrics=true]
+ *        [transaction-timeout=5000]
+ *
+ * workers=0 settles the trades on the replay thread, workers=N uses a settlement engine with N workers (1 = the
+ * deterministic mode). speed=0 replays the requests as fast as possible (the recorded times are still used to match
+ * and expire the transactions), speed=1 waits for the recorded times, speed=10 replays 10 times faster.
+ */
+public class SettlementReplay {
+
+    //a recorded request
+    static class Request {
+        final long nanos;
+        final MakeTransaction mt;
+
+        Request(long nanos, MakeTransaction mt) {
+            this.nanos = nanos;
+            this.mt = mt;
+        }
+    }
+
+    //the results of one run
+    static class Run {
+        long nanos;
+        long allocated;
+        long settled;
+        long failed;
+        long expired;
+        double utility;
+    }
+
+    ArrayList<String> names = new ArrayList<String>();
+    ArrayList<AgentInfo> infos = new ArrayList<AgentInfo>();
+    ArrayList<Request> requests = new ArrayList<Request>();
+
+    int workers;
+    double speed;
+    long transactionTimeout;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+            System.err.println("Usage: java mas.cv4.SettlementReplay FILE [iterations=5] [warmup=2] [workers=0] " +
+                    "[speed=0] [metrics=true] [transaction-timeout=5000]");
+            System.exit(1);
+        }
+
+        String[] rest = new String[args.length - 1];
+        System.arraycopy(args, 1, rest, 0, rest.length);
+        HashMap<String, String> params = Utils.parseArguments(rest);
+
+        int iterations = Integer.parseInt(Utils.getArgument(params, "iterations", "5"));
+        int warmup = Integer.parseInt(Utils.getArgument(params, "warmup", "2"));
+        Metrics.getInstance().setEnabled(Boolean.parseBoolean(Utils.getArgument(params, "metrics", "true")));
+
+        SettlementReplay replay = new SettlementReplay();
+        replay.workers = Integer.parseInt(Utils.getArgument(params, "workers", "0"));
+        replay.speed = Double.parseDouble(Utils.getArgument(params, "speed", "0"));
+        replay.transactionTimeout = Long.parseLong(Utils.getArgument(params, "transaction-timeout", "5000"));
+        replay.load(new File(args[0]));
+
+        System.out.printf("%d agents, %d requests, workers=%d, speed=%s%n", replay.names.size(),
+                replay.requests.size(), replay.workers, replay.speed == 0 ? "max" : "" + replay.speed);
+        System.out.printf("%-8s %10s %8s %8s %8s %14s %12s %12s %12s%n", "run", "time ms", "settled", "failed",
+                "expired", "settlements/s", "alloc MB/s", "B/request", "utility");
+
+        double rate = 0;
+        double allocRate = 0;
+        double perRequest = 0;
+        for (int i = 0; i < warmup + iterations; i++) {
+            Run r = replay.run();
+            double seconds = r.nanos / 1e9;
+            String name = i < warmup ? "warmup" + (i + 1) : "run" + (i - warmup + 1);
+            System.out.printf("%-8s %10.1f %8d %8d %8d %14.0f %12.1f %12.0f %12.1f%n", name, r.nanos / 1e6,
+                    r.settled, r.failed, r.expired, r.settled / seconds, r.allocated / seconds / 1e6,
+                    (double)r.allocated / Math.max(1, replay.requests.size()), r.utility);
+            if (i >= warmup) {
+                rate += r.settled / seconds / iterations;
+                allocRate += r.allocated / seconds / 1e6 / iterations;
+                perRequest += (double)r.allocated / Math.max(1, replay.requests.size()) / iterations;
+            }
+        }
+
+        System.out.printf("mean: %.0f settlements/s, %.1f MB/s allocated, %.0f B per request%n", rate, allocRate,
+                perRequest);
+    }
+
+    void load(File file) throws Exception {
+        TradeRecorder.read(file, new TradeRecorder.Listener() {
+            @Override
+            public void agent(String name, AgentInfo info) {
+                names.add(name);
+                infos.add(info);
+            }
+
+            @Override
+            public void request(long nanos, String sender, MakeTransaction mt) {
+                requests.add(new Request(nanos, mt));
+            }
+        });
+    }
+
+    //restores the market and replays all requests
+    Run run() throws InterruptedException {
+
+        final Run r = new Run();
+        Ledger ledger = new Ledger();
+        ledger.addAgents(names.toArray(new String[names.size()]), infos.toArray(new AgentInfo[infos.size()]));
+
+        final AtomicLong results = new AtomicLong();
+        SettlementEngine engine = new SettlementEngine(ledger, workers, workers <= 1, new SettlementEngine.ResultListener() {
+            @Override
+            public void resultAvailable() {
+                results.incrementAndGet();
+            }
+        });
+
+        //the recorded times (in milliseconds since the start of the recording) are the clock of the matcher
+        TransactionMatcher matcher = new TransactionMatcher(transactionTimeout, 0);
+        ArrayList<TransactionInfo> expired = new ArrayList<TransactionInfo>();
+        long submitted = 0;
+
+        System.gc();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (Request req : requests) {
+
+            if (speed > 0) {
+                long wait = (long)(req.nanos / speed) - (System.nanoTime() - start);
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                }
+            }
+
+            long now = req.nanos / 1000000;
+            matcher.expire(now, expired);
+            r.expired += expired.size();
+            expired.clear();
+
+            //the same steps as Environment.HandleSendBehaviour
+            TransactionInfo second = new TransactionInfo(req.mt, null, now);
+            TransactionInfo first = matcher.match(second);
+            if (first == null) {
+                continue;
+            }
+
+            if (workers <= 0) {
+                count(r, engine.settle(first, second));
+            } else {
+                engine.submit(first, second);
+                submitted++;
+            }
+        }
+
+        //wait for the workers
+        while (results.get() < submitted) {
+            Thread.sleep(0, 100000);
+        }
+        SettlementEngine.Result res;
+        while ((res = engine.poll()) != null) {
+            count(r, res);
+        }
+
+        r.nanos = System.nanoTime() - start;
+        r.allocated = allocatedBytes() - allocated;
+        engine.shutdown();
+
+        for (String name : names) {
+            r.utility += ledger.getStanding(name).utility;
+        }
+        return r;
+    }
+
+    private static void count(Run r, SettlementEngine.Result res) {
+        if (res.isSuccess()) {
+            r.settled++;
+        } else {
+            r.failed++;
+        }
+    }
+
+    //bytes allocated by all live threads so far (the threads started later count from zero)
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        if (!(tmx instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long[] bytes = ((com.sun.management.ThreadMXBean)tmx).getThreadAllocatedBytes(tmx.getAllThreadIds());
+        long sum = 0;
+        for (long b : bytes) {
+            if (b > 0)
+                sum += b;
+        }
+        return sum;
+    }
+}
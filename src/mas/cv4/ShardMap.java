@@ -0,0 +1,107 @@
+package mas.cv4;
+
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import mas.cv4.onto.MakeTransaction;
+
+import java.util.Iterator;
+
+/**
+ * Assigns the agents and the order books to the shards of the environment.
+ *
+ * The hash of an agent name is split into as many equal ranges as there are shards, the shard with the range keeps the
+ * account of the agent (its home shard) and is the only one the agent talks to. The order book of a title lives in the
+ * shard given by its type ID. Every shard and every trader computes the same assignment, the shards only announce
+ * their index and the number of shards in their DF registration (see describe()).
+ */
+public class ShardMap {
+
+    //properties of the environment service in the DF
+    public static final String SHARD = "shard";
+    public static final String SHARDS = "shards";
+
+    final int shard;
+    final int shards;
+
+    public ShardMap(int shard, int shards) {
+        if (shards < 1 || shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("shard " + shard + " of " + shards);
+        }
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /** The shard which keeps the account of the agent */
+    public static int shardOf(String agent, int shards) {
+        //the hash is mixed (as in MurmurHash3), the names of the agents differ only in a few characters
+        int h = agent.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (int)(((h & 0xffffffffL) * shards) >>> 32);
+    }
+
+    public int shardOf(String agent) {
+        return shardOf(agent, shards);
+    }
+
+    /** The shard which keeps the order book of the title */
+    public int shardOfTitle(int typeID) {
+        return typeID % shards;
+    }
+
+    /** The shard which pairs the two requests of the trade and settles it (the home shard of one of the agents) */
+    public int coordinatorOf(MakeTransaction mt) {
+        String a = mt.getSenderName();
+        String b = mt.getReceiverName();
+        return shardOf(a.compareTo(b) <= 0 ? a : b);
+    }
+
+    public boolean isLocal(String agent) {
+        return shards == 1 || shardOf(agent) == shard;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /** Adds the index of the shard and the number of shards to the description of the environment service */
+    public void describe(ServiceDescription sd) {
+        sd.addProperties(new Property(SHARD, "" + shard));
+        sd.addProperties(new Property(SHARDS, "" + shards));
+    }
+
+    /** The index of the shard registered in the DF (0 for an environment which is not sharded) */
+    public static int getShard(DFAgentDescription dfd) {
+        return getProperty(dfd, SHARD, 0);
+    }
+
+    /** Checks the environment registered in the DF is the home shard of the agent */
+    public static boolean isHome(DFAgentDescription dfd, String agent) {
+        return shardOf(agent, getProperty(dfd, SHARDS, 1)) == getProperty(dfd, SHARD, 0);
+    }
+
+    private static int getProperty(DFAgentDescription dfd, String name, int def) {
+        if (dfd == null) {
+            return def;
+        }
+        Iterator services = dfd.getAllServices();
+        while (services.hasNext()) {
+            Iterator props = ((ServiceDescription)services.next()).getAllProperties();
+            while (props.hasNext()) {
+                Property p = (Property)props.next();
+                if (name.equals(p.getName()) && p.getValue() != null) {
+                    return Integer.parseInt(p.getValue().toString());
+                }
+            }
+        }
+        return def;
+    }
+}
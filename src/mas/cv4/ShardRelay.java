@@ -0,0 +1,68 @@
+package mas.cv4;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Keeps the requests of the local traders forwarded to other shards until the replies arrive.
+ *
+ * Each forwarded request gets a token (the reply-with of the forwarded message), the reply of the other shard (or the
+ * second phase of the trade, see TwoPhaseCommit) names the token and the request is taken back to answer the trader.
+ * A request nobody answers is kept at most until its trade can no longer be settled. The relay does not need JADE, the
+ * environment does the messaging (see Environment.forward()).
+ *
+ * The relay is not thread safe, the environment uses it only from its agent thread.
+ */
+public class ShardRelay<T> {
+
+    HashMap<String, T> relayed = new HashMap<String, T>();
+    //expiry of the tokens of the forwarded requests
+    TimerWheel<String> timeouts;
+    long timeout;
+    long seq = 0;
+
+    /**
+     * @param timeout milliseconds to wait for the other side of a transaction (and again for its two phases)
+     */
+    public ShardRelay(long timeout, long now) {
+        this.timeout = timeout;
+        this.timeouts = new TimerWheel<String>(1, 8192, now);
+    }
+
+    /**
+     * Keeps the forwarded request, returns its token. The request is kept after its reply-by time (null if none) as
+     * long as its transaction can still be matched and committed.
+     */
+    public String add(T request, Date replyBy, long now) {
+        String token = "relay-" + seq++;
+        relayed.put(token, request);
+        timeouts.schedule(token, Math.max(replyBy != null ? replyBy.getTime() : now, now + timeout) + timeout);
+        return token;
+    }
+
+    /** Removes and returns the request of the token, null if it is not known (or it expired) */
+    public T remove(String token) {
+        return token == null ? null : relayed.remove(token);
+    }
+
+    /** Removes the requests kept longer than they can be answered, returns their number */
+    public int expire(long now) {
+
+        ArrayList<String> expired = new ArrayList<String>();
+        timeouts.advance(now, expired);
+
+        int removed = 0;
+        for (String token : expired) {
+            if (relayed.remove(token) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** The number of the requests waiting for a reply */
+    public int size() {
+        return relayed.size();
+    }
+}
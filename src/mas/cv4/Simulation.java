@@ -0,0 +1,174 @@
+package mas.cv4;
+
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+import jade.wrapper.StaleProxyException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Runs a whole competition in one JVM without the GUI, e.g. for load tests with many traders.
+ *
+ * The harness starts a JADE main container, N traders and the environment, lets them trade for the given time (or
+ * until the given number of trades is settled) and prints the throughput, the latencies of the protocol stages (see
+ * Metrics) and the final utilities of the traders.
+ *
+ * With shards=N the environment is split into N shards (see ShardMap), each one in its own agent container connected
+ * to the main container, as they would run on separate machines.
+ *
+ * With hosts=H and hosted=N, H trader hosts run N traders each (see TraderHost) besides the agents, e.g. agents=0
+ * hosts=2 hosted=5000 trades with 10000 traders. The hosts get the trader-args too (e.g. market=order-book).
+ *
+ * Usage: java mas.cv4.Simulation agents=100 duration=60 [trades=N] [port=1099] [shards=1] [hosts=0] [hosted=1000]
+ *        [trader-args=batch;codec=sl;market=order-book] [env-args=workers=4;deterministic] [top=10]
+ */
+public class Simulation {
+
+    public static void main(String[] args) throws Exception {
+
+        HashMap<String, String> params = Utils.parseArguments(args);
+        int agents = Integer.parseInt(Utils.getArgument(params, "agents", "10"));
+        long duration = Long.parseLong(Utils.getArgument(params, "duration", "60")) * 1000;
+        long trades = Long.parseLong(Utils.getArgument(params, "trades", "0"));
+        int top = Integer.parseInt(Utils.getArgument(params, "top", "10"));
+        int shards = Integer.parseInt(Utils.getArgument(params, "shards", "1"));
+        int hosts = Integer.parseInt(Utils.getArgument(params, "hosts", "0"));
+        int hosted = Integer.parseInt(Utils.getArgument(params, "hosted", "1000"));
+        int traders = agents + hosts * hosted;
+        String port = Utils.getArgument(params, "port", "1099");
+
+        Profile p = new ProfileImpl();
+        p.setParameter(Profile.LOCAL_PORT, port);
+        p.setParameter(Profile.GUI, "false");
+        p.setParameter("nomtp", "true"); //everything runs in this JVM, no HTTP port is needed
+        //the DF returns at most 100 agents in one search by default (see DirectoryCache)
+        String maxResults = "" + Math.max(100, (agents + hosts) * 2);
+        p.setParameter(DirectoryCache.MAX_RESULTS, maxResults);
+
+        Runtime rt = Runtime.instance();
+        rt.setCloseVM(false);
+        AgentContainer container = rt.createMainContainer(p);
+
+        Object[] traderArgs = splitArguments(Utils.getArgument(params, "trader-args", ""));
+        for (int i = 0; i < agents; i++) {
+            container.createNewAgent("trader" + i, BookTrader.class.getName(), traderArgs).start();
+        }
+        for (int i = 0; i < hosts; i++) {
+            ArrayList<Object> hostArgs = new ArrayList<Object>();
+            Collections.addAll(hostArgs, traderArgs);
+            hostArgs.add("traders=" + hosted);
+            container.createNewAgent("host" + i, TraderHost.class.getName(), hostArgs.toArray()).start();
+        }
+
+        //the environment waits until all the traders are registered, we keep it to read its ledger at the end
+        ArrayList<Environment> envs = new ArrayList<Environment>();
+        for (int i = 0; i < shards; i++) {
+            ArrayList<Object> envArgs = new ArrayList<Object>();
+            envArgs.add("verbose=false"); //can be changed in env-args
+            Collections.addAll(envArgs, splitArguments(Utils.getArgument(params, "env-args", "")));
+            envArgs.add("traders=" + traders);
+
+            Environment env = new Environment();
+            if (shards == 1) {
+                env.setArguments(envArgs.toArray());
+                container.acceptNewAgent("environment", env).start();
+            } else {
+                envArgs.add("shard=" + i);
+                envArgs.add("shards=" + shards);
+                env.setArguments(envArgs.toArray());
+
+                Profile sp = new ProfileImpl();
+                sp.setParameter(Profile.MAIN_HOST, "localhost");
+                sp.setParameter(Profile.MAIN_PORT, port);
+                sp.setParameter(Profile.CONTAINER_NAME, "shard-" + i);
+                sp.setParameter("nomtp", "true");
+                sp.setParameter(DirectoryCache.MAX_RESULTS, maxResults); //the limit the agents of the shard expect
+                rt.createAgentContainer(sp).acceptNewAgent("environment-" + i, env).start();
+            }
+            envs.add(env);
+        }
+
+        for (Environment env : envs) {
+            while (env.getTradingStart() == 0) {
+                Thread.sleep(100);
+            }
+        }
+
+        System.err.println("trading started with " + traders + " traders");
+
+        Metrics metrics = Metrics.getInstance();
+        long start = envs.get(0).getTradingStart();
+        long elapsed;
+        long firstTrade = -1;
+        while (true) {
+            Thread.sleep(100);
+            elapsed = System.currentTimeMillis() - start;
+            if (firstTrade < 0 && metrics.getCount(Metrics.TRADES_SETTLED) > 0)
+                firstTrade = elapsed;
+            if (elapsed >= duration)
+                break;
+            if (trades > 0 && metrics.getCount(Metrics.TRADES_SETTLED) >= trades)
+                break;
+        }
+
+        printReport(envs, metrics, traders, elapsed, firstTrade, top);
+
+        try {
+            container.kill();
+        } catch (StaleProxyException e) {
+            e.printStackTrace();
+        }
+        rt.shutDown();
+        System.exit(0);
+    }
+
+    //the agent arguments are separated by semicolons (commas are used by jade.Boot)
+    static Object[] splitArguments(String args) {
+        if (args.isEmpty())
+            return new Object[0];
+        return args.split(";");
+    }
+
+    static void printReport(ArrayList<Environment> envs, Metrics metrics, int agents, long elapsed, long firstTrade, int top) {
+
+        long settled = metrics.getCount(Metrics.TRADES_SETTLED);
+
+        System.out.println();
+        System.out.printf("agents: %d, time: %.1f s, settled trades: %d, throughput: %.1f trades/s%n", agents,
+                elapsed / 1000.0, settled, settled * 1000.0 / elapsed);
+        System.out.println("first trade after: " + (firstTrade < 0 ? "-" : firstTrade + " ms"));
+        System.out.println();
+        metrics.print(System.out);
+
+        //final utilities, the ledgers keep them up to date and ordered (the shards are merged)
+        ArrayList<Ledger.Standing> all = new ArrayList<Ledger.Standing>();
+        for (Environment env : envs) {
+            all.addAll(env.ledger.getTop(Integer.MAX_VALUE));
+        }
+        if (all.isEmpty())
+            return;
+        if (envs.size() > 1)
+            Collections.sort(all, Ledger.BY_UTILITY);
+
+        double sum = 0;
+        int goalsMet = 0;
+        for (Ledger.Standing st : all) {
+            sum += st.utility;
+            if (st.allGoalsMet)
+                goalsMet++;
+        }
+
+        System.out.println();
+        System.out.printf("utility: max %.1f, median %.1f, mean %.1f, min %.1f, all goals met: %d of %d%n",
+                all.get(0).utility, all.get(all.size() / 2).utility, sum / all.size(), all.get(all.size() - 1).utility,
+                goalsMet, all.size());
+
+        for (int i = 0; i < Math.min(top, all.size()); i++) {
+            System.out.printf("%50s  %13f%n", all.get(i).name, all.get(i).utility);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.Goal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Point-in-time snapshots of the market (the books, goals and money of all agents) in a directory.
+ *
+ * A snapshot is written from a view of the ledger (see Ledger.capture()), so the trades go on while it is written. It
+ * also remembers the position of the journal at the moment of the view, a restarted environment loads the latest
+ * snapshot and replays only the part of the journal written after it, instead of the whole history.
+ *
+ * The format is compact: the titles are written once and the books refer to them by their index, each book takes an
+ * int and a short. The file ends with the CRC32 of its content, a snapshot is written into a temporary file and renamed
+ * when it is complete, so a crash never leaves a snapshot which looks valid but is not. Only the newest snapshots are
+ * kept.
+ */
+public class SnapshotStore {
+
+    static final int MAGIC = 0x4d534e50; //"MSNP"
+    static final int FORMAT = 1;
+    static final String PREFIX = "snapshot-";
+    static final String SUFFIX = ".snap";
+
+    /** The market read from a snapshot */
+    public static class Snapshot {
+
+        public final long time;
+        public final long journalPosition;
+        public final String[] names;
+        public final AgentInfo[] infos;
+        public final File file;
+
+        Snapshot(long time, long journalPosition, String[] names, AgentInfo[] infos, File file) {
+            this.time = time;
+            this.journalPosition = journalPosition;
+            this.names = names;
+            this.infos = infos;
+            this.file = file;
+        }
+    }
+
+    File dir;
+    int keep;
+
+    /**
+     * @param keep the number of the newest snapshots which are kept, the older ones are deleted
+     */
+    public SnapshotStore(File dir, int keep) {
+        this.dir = dir;
+        this.keep = Math.max(1, keep);
+        dir.mkdirs();
+    }
+
+    /** Writes the view as a new snapshot, returns its file */
+    File write(Ledger.View view) throws IOException {
+
+        //the snapshots are named by the time, zero padded so that they sort by the name
+        File file = new File(dir, String.format("%s%020d%s", PREFIX, view.time, SUFFIX));
+        File tmp = new File(dir, file.getName() + ".tmp");
+
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(view.time);
+            out.writeLong(view.journalPosition);
+
+            //title -> its index in this snapshot
+            HashMap<String, Integer> titles = new HashMap<String, Integer>();
+            ArrayList<String> titleList = new ArrayList<String>();
+            for (int i = 0; i < view.accounts.length; i++) {
+                for (BookInfo bi : view.states[i].books) {
+                    addTitle(titles, titleList, bi.getBookName());
+                }
+                for (Goal g : view.accounts[i].goals) {
+                    addTitle(titles, titleList, g.getBook().getBookName());
+                }
+            }
+            out.writeInt(titleList.size());
+            for (String title : titleList) {
+                out.writeUTF(title);
+            }
+
+            out.writeInt(view.accounts.length);
+            for (int i = 0; i < view.accounts.length; i++) {
+                Ledger.Account acc = view.accounts[i];
+                Ledger.AccountState st = view.states[i];
+
+                out.writeUTF(acc.name);
+                out.writeDouble(st.money);
+                out.writeInt(st.version);
+
+                out.writeShort(st.books.length);
+                for (BookInfo bi : st.books) {
+                    out.writeInt(bi.getBookID());
+                    out.writeShort(titles.get(bi.getBookName()));
+                }
+
+                out.writeShort(acc.goals.size());
+                for (Goal g : acc.goals) {
+                    out.writeInt(g.getBook().getBookID());
+                    out.writeShort(titles.get(g.getBook().getBookName()));
+                    out.writeDouble(g.getValue());
+                }
+            }
+
+            out.flush();
+            long crc = checked.getChecksum().getValue();
+            out.writeLong(crc);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+
+        deleteOld();
+        return file;
+    }
+
+    /** Reads the newest valid snapshot, null if there is none */
+    public Snapshot readLatest() {
+        File[] files = list();
+        for (int i = files.length - 1; i >= 0; i--) {
+            try {
+                return read(files[i]);
+            } catch (IOException e) {
+                System.err.println("Skipping snapshot " + files[i] + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /** Reads the snapshot, throws an IOException if it is not complete or not valid */
+    public static Snapshot read(File file) throws IOException {
+
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fis, 1 << 16), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("not a snapshot");
+            }
+            long time = in.readLong();
+            long journalPosition = in.readLong();
+
+            String[] titles = new String[in.readInt()];
+            for (int i = 0; i < titles.length; i++) {
+                titles[i] = in.readUTF();
+            }
+
+            String[] names = new String[in.readInt()];
+            AgentInfo[] infos = new AgentInfo[names.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+
+                AgentInfo ai = new AgentInfo();
+                ai.setMoney(in.readDouble());
+                ai.setVersion(in.readInt());
+
+                int n = in.readUnsignedShort();
+                ArrayList<BookInfo> books = new ArrayList<BookInfo>(n);
+                for (int j = 0; j < n; j++) {
+                    books.add(book(in.readInt(), titles[in.readUnsignedShort()]));
+                }
+
+                n = in.readUnsignedShort();
+                ArrayList<Goal> goals = new ArrayList<Goal>(n);
+                for (int j = 0; j < n; j++) {
+                    Goal g = new Goal();
+                    g.setBook(book(in.readInt(), titles[in.readUnsignedShort()]));
+                    g.setValue(in.readDouble());
+                    goals.add(g);
+                }
+
+                ai.setBooks(books);
+                ai.setGoals(goals);
+                infos[i] = ai;
+            }
+
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc) {
+                throw new IOException("wrong checksum");
+            }
+
+            return new Snapshot(time, journalPosition, names, infos, file);
+        } finally {
+            fis.close();
+        }
+    }
+
+    //the snapshots in the directory, the oldest first
+    private File[] list() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        ArrayList<File> snapshots = new ArrayList<File>();
+        for (File f : files) {
+            if (f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX)) {
+                snapshots.add(f);
+            }
+        }
+        File[] ret = snapshots.toArray(new File[snapshots.size()]);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private void deleteOld() {
+        File[] files = list();
+        for (int i = 0; i < files.length - keep; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static void addTitle(HashMap<String, Integer> titles, ArrayList<String> titleList, String title) {
+        if (!titles.containsKey(title)) {
+            titles.put(title, titleList.size());
+            titleList.add(title);
+        }
+    }
+
+    private static BookInfo book(int id, String title) {
+        BookInfo bi = new BookInfo();
+        bi.setBookID(id);
+        bi.setBookName(title);
+        return bi;
+    }
+}
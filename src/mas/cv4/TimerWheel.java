@@ -0,0 +1,97 @@
+package mas.cv4;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel. Each timeout is put into the slot of its deadline (deadline / tick mod number of slots), so
+ * scheduling is O(1) and advancing the wheel only looks at the slots the time passed over, i.e. it costs time
+ * proportional to the elapsed ticks and the expired timeouts, not to the number of scheduled timeouts. Timeouts further
+ * than one rotation away stay in their slot until their deadline comes.
+ *
+ * The wheel is not thread safe, it is used only by the agent thread.
+ */
+public class TimerWheel<T> {
+
+    private static class Entry<T> {
+        final T value;
+        final long deadline;
+
+        Entry(T value, long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tick;
+    private final int mask;
+    private final ArrayList<Entry<T>>[] slots;
+    private long lastTick;
+    private int size;
+
+    /**
+     * @param tick the length of one tick (granularity of the wheel) in milliseconds
+     * @param slots the number of slots, rounded up to a power of two
+     * @param now the current time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tick, int slots, long now) {
+        int n = 1;
+        while (n < slots) {
+            n <<= 1;
+        }
+        this.tick = tick;
+        this.mask = n - 1;
+        this.slots = new ArrayList[n];
+        this.lastTick = now / tick;
+    }
+
+    /** The number of scheduled timeouts which have not expired yet */
+    public int size() {
+        return size;
+    }
+
+    /** Schedules the value to expire at the deadline (in milliseconds) */
+    public void schedule(T value, long deadline) {
+        long t = Math.max(deadline / tick, lastTick + 1);
+        int i = (int)(t & mask);
+        if (slots[i] == null) {
+            slots[i] = new ArrayList<Entry<T>>();
+        }
+        slots[i].add(new Entry<T>(value, deadline));
+        size++;
+    }
+
+    /** Moves the wheel to the current time, adds all values whose deadline passed to expired */
+    public void advance(long now, ArrayList<T> expired) {
+
+        long nowTick = now / tick;
+
+        //when more than a full rotation passed, each slot needs to be visited only once
+        long from = Math.max(lastTick + 1, nowTick - mask);
+
+        for (long t = from; t <= nowTick; t++) {
+            ArrayList<Entry<T>> slot = slots[(int)(t & mask)];
+            if (slot == null || slot.isEmpty()) {
+                continue;
+            }
+
+            //keep the entries of the later rotations in place
+            int kept = 0;
+            for (int j = 0; j < slot.size(); j++) {
+                Entry<T> e = slot.get(j);
+                if (e.deadline <= now) {
+                    expired.add(e.value);
+                    size--;
+                } else {
+                    slot.set(kept++, e);
+                }
+            }
+            while (slot.size() > kept) {
+                slot.remove(slot.size() - 1);
+            }
+        }
+
+        //the current tick is not over yet, it is visited again next time
+        lastTick = Math.max(lastTick, nowTick - 1);
+    }
+}
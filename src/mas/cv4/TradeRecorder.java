@@ -0,0 +1,191 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.Goal;
+import mas.cv4.onto.MakeTransaction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Records the MakeTransaction requests received by the environment, so the settlement can be measured offline on a
+ * real workload (see SettlementReplay).
+ *
+ * The recording starts with the agents in the market when the trading started (their books, goals and money), then
+ * each request follows with the time it was received (nanoseconds since the start of the recording), the agent which
+ * sent it and its content. The file is written by the agent thread through a buffer, it is flushed periodically and
+ * when the recorder is closed.
+ */
+public class TradeRecorder {
+
+    static final int MAGIC = 0x4d545243; //"MTRC"
+    static final byte AGENT = 1;
+    static final byte REQUEST = 2;
+
+    /** Receives the records read by read() */
+    public interface Listener {
+
+        void agent(String name, AgentInfo info);
+
+        void request(long nanos, String sender, MakeTransaction mt);
+    }
+
+    DataOutputStream out;
+    long start = System.nanoTime();
+    long requests = 0;
+
+    public TradeRecorder(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+    }
+
+    /** Records all agents of the ledger (when the trading starts) */
+    public void recordAgents(Ledger ledger) {
+        try {
+            for (String name : ledger.getAgentNames()) {
+                AgentInfo ai = ledger.getAgentInfo(name);
+                out.writeByte(AGENT);
+                out.writeUTF(name);
+                out.writeDouble(ai.getMoney());
+                writeBooks(ai.getBooks());
+                out.writeInt(ai.getGoals().size());
+                for (Goal g : ai.getGoals()) {
+                    writeBook(g.getBook());
+                    out.writeDouble(g.getValue());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Records a request as it was received from the sender */
+    public void recordRequest(String sender, MakeTransaction mt) {
+        try {
+            out.writeByte(REQUEST);
+            out.writeLong(System.nanoTime() - start);
+            out.writeUTF(sender);
+            out.writeUTF(mt.getTradeConversationID());
+            out.writeUTF(mt.getSenderName());
+            out.writeUTF(mt.getReceiverName());
+            writeBooks(mt.getSendingBooks());
+            out.writeDouble(mt.getSendingMoney());
+            writeBooks(mt.getReceivingBooks());
+            out.writeDouble(mt.getReceivingMoney());
+            requests++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeBooks(ArrayList<BookInfo> books) throws IOException {
+        out.writeInt(books.size());
+        for (BookInfo bi : books) {
+            writeBook(bi);
+        }
+    }
+
+    private void writeBook(BookInfo bi) throws IOException {
+        out.writeInt(bi.getBookID());
+        out.writeUTF(bi.getBookName());
+    }
+
+    /** Reads the recording and passes its records to the listener, a record cut off at the end is ignored */
+    public static void read(File file, Listener listener) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a trade recording");
+            }
+
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (type == AGENT) {
+                    String name = in.readUTF();
+                    AgentInfo ai = new AgentInfo();
+                    ai.setMoney(in.readDouble());
+                    ai.setBooks(readBooks(in));
+                    ArrayList<Goal> goals = new ArrayList<Goal>();
+                    for (int n = in.readInt(); n > 0; n--) {
+                        Goal g = new Goal();
+                        g.setBook(readBook(in));
+                        g.setValue(in.readDouble());
+                        goals.add(g);
+                    }
+                    ai.setGoals(goals);
+                    listener.agent(name, ai);
+                } else if (type == REQUEST) {
+                    long nanos = in.readLong();
+                    String sender = in.readUTF();
+                    MakeTransaction mt = new MakeTransaction();
+                    mt.setTradeConversationID(in.readUTF());
+                    mt.setSenderName(in.readUTF());
+                    mt.setReceiverName(in.readUTF());
+                    mt.setSendingBooks(readBooks(in));
+                    mt.setSendingMoney(in.readDouble());
+                    mt.setReceivingBooks(readBooks(in));
+                    mt.setReceivingMoney(in.readDouble());
+                    listener.request(nanos, sender, mt);
+                } else {
+                    throw new IOException("unknown record " + type + " in " + file);
+                }
+            }
+        } catch (EOFException e) {
+            //the last record was not flushed completely
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ArrayList<BookInfo> readBooks(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>(n);
+        for (int i = 0; i < n; i++) {
+            books.add(readBook(in));
+        }
+        return books;
+    }
+
+    private static BookInfo readBook(DataInputStream in) throws IOException {
+        BookInfo bi = new BookInfo();
+        bi.setBookID(in.readInt());
+        bi.setBookName(in.readUTF());
+        return bi;
+    }
+}
@@ -0,0 +1,667 @@
+package mas.cv4;
+
+import jade.content.AgentAction;
+import jade.content.ContentElement;
+import jade.content.lang.Codec;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.content.onto.basic.Result;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import mas.cv4.onto.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Runs many traders in one agent, e.g. to load-test the environment with thousands of traders on one machine.
+ *
+ * Each hosted trader is a small state machine with its own name (the name of the host with its index, e.g.
+ * host0.17@platform), the environment keeps an account for it and it is the sender or the receiver of its
+ * MakeTransaction requests. All the traders run on the thread of the host: a timer wheel wakes each of them once per
+ * period, they send their requests in the name of the host with the trader in a parameter (see
+ * Environment.getTrader()) and the replies are passed to them by the conversation ID. The host registers in the DF
+ * once (service trader-host with the number of its traders), the environment generates the goals of all of them.
+ *
+ * With market=direct the traders trade with each other: a trader which misses a book asks a few random traders of the
+ * host which own it and do not need it, if the prices meet, both send their MakeTransaction to the environment. With
+ * market=order-book they place their orders into the order books of the environment, as BookTrader does. The prices
+ * are those of BookTrader (see PricingEngine).
+ */
+public class TraderHost extends Agent {
+
+    //the service of the host in the DF, and the number of its traders
+    static final String SERVICE = "trader-host";
+    static final String TRADERS = "traders";
+    //protocol of the requests of the hosted traders (the replies keep it)
+    static final String PROTOCOL = "trader-host";
+
+    //how often the timer wheel is advanced
+    static final long SCHEDULER_TICK = 10;
+    //how many random traders are asked for a missing book on each tick
+    static final int PROBES = 16;
+    //how long a trader waits for the result of its transaction and its orders stay in the order books (the
+    //orders for whole periods, see placeOrders())
+    static final long TRANSACTION_TTL = 5000;
+    static final long ORDER_TTL = 5000;
+    //the price of a resting order has to move by this fraction before the order is placed again
+    static final double PRICE_STEP = 0.05;
+    //the replies handled in one run of the reply behaviour, the scheduler runs between the batches
+    static final int REPLY_BATCH = 100;
+
+    //prefixes of the reply-with of the requests (the kind of the request the reply belongs to)
+    static final String INFO = "i";
+    static final String TRADE = "t";
+    static final String ORDER = "o";
+
+    Codec codec = new SLCodec();
+    Codec binaryCodec = new BinaryCodec();
+    Ontology onto = BookOntology.getInstance();
+
+    //one hosted trader
+    class Hosted {
+        final int index;
+        final String name;
+        final String conversationID;
+
+        //the home shard of the trader, null until the trading starts for it
+        AID env;
+
+        //the information from the environment (null until the first one arrives) and its version
+        ArrayList<BookInfo> books;
+        ArrayList<Goal> goals;
+        double money;
+        int version;
+        int[] ownedCount = new int[0];
+        Goal[] goalByType = new Goal[0];
+        PricingEngine pricing;
+
+        //the whole information was requested, the trader waits for the result of its trade until the time
+        boolean refreshing;
+        long busyUntil;
+        long tradeStarted;
+        //the trade the trader waits for (its trace is dropped if it fails or the environment does not answer)
+        String tradeID;
+        //the resting order of each type of book (the reply-with of its request, null if none), its price and expiry
+        String[] orderID = new String[0];
+        double[] orderPrice = new double[0];
+        long[] orderExpiry = new long[0];
+
+        Hosted(int index) {
+            this.index = index;
+            this.name = getTraderName(getAID(), index);
+            this.conversationID = getLocalName() + "." + index;
+        }
+
+        boolean isReady() {
+            return books != null;
+        }
+
+        boolean hasBook(int type) {
+            return type < ownedCount.length && ownedCount[type] > 0;
+        }
+
+        boolean isGoal(int type) {
+            return type < goalByType.length && goalByType[type] != null;
+        }
+
+        //replaces the whole information, rebuilds the indices of the books and goals (as BookTrader.setInfo())
+        void setInfo(AgentInfo ai) {
+            books = ai.getBooks();
+            goals = ai.getGoals();
+            money = ai.getMoney();
+            version = ai.getVersion();
+            ownedCount = ai.countBooksByType();
+
+            goalByType = new Goal[BookCatalogue.size()];
+            for (Goal goal : goals) {
+                int type = goal.getBook().getTypeID();
+                if (type >= goalByType.length)
+                    goalByType = Arrays.copyOf(goalByType, BookCatalogue.size());
+                if (goalByType[type] == null)
+                    goalByType[type] = goal;
+            }
+        }
+
+        //applies the changes sent with the result of a trade, returns false if a previous change is missing
+        boolean applyUpdate(InfoUpdate update) {
+            if (update.getVersion() <= version)
+                return true;
+            if (update.getVersion() > version + 1)
+                return false;
+
+            if (update.getRemovedBooks() != null) {
+                for (BookInfo removed : update.getRemovedBooks()) {
+                    for (int i = 0; i < books.size(); i++) {
+                        if (books.get(i).getBookID() == removed.getBookID()) {
+                            ownedCount[books.remove(i).getTypeID()]--;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (update.getAddedBooks() != null) {
+                for (BookInfo added : update.getAddedBooks()) {
+                    if (added.getTypeID() >= ownedCount.length)
+                        ownedCount = Arrays.copyOf(ownedCount, BookCatalogue.size());
+                    books.add(added);
+                    ownedCount[added.getTypeID()]++;
+                }
+            }
+            money += update.getMoneyChange();
+            version = update.getVersion();
+            return true;
+        }
+    }
+
+    Hosted[] traders;
+    TimerWheel<Hosted> wakeUps;
+    long period;
+    boolean directMarket;
+    boolean preferBinary;
+    String curve;
+    Random rnd = new Random();
+
+    DirectoryCache directory;
+    //the time the trading started (the start of the price curves)
+    long startTime;
+    long requestSeq = 0;
+    long tradeSeq = 0;
+
+    @Override
+    protected void setup() {
+        super.setup();
+
+        //arguments: traders=N (number of hosted traders), period=T (milliseconds between the decisions of a trader),
+        //market=direct|order-book, codec=sl|binary, curve=linear|exponential|stepwise (see PricingEngine)
+        HashMap<String, String> args = Utils.parseArguments(getArguments());
+        int n = Integer.parseInt(Utils.getArgument(args, "traders", "1000"));
+        period = Long.parseLong(Utils.getArgument(args, "period", "2000"));
+        directMarket = !Utils.getArgument(args, "market", "direct").equals("order-book");
+        preferBinary = Utils.getArgument(args, "codec", "binary").equals("binary");
+        curve = Utils.getArgument(args, "curve", "linear");
+
+        Metrics.getInstance().registerMBean();
+
+        this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerLanguage(binaryCodec);
+        this.getContentManager().registerOntology(onto);
+
+        traders = new Hosted[n];
+        for (int i = 0; i < n; i++) {
+            traders[i] = new Hosted(i);
+        }
+        wakeUps = new TimerWheel<Hosted>(SCHEDULER_TICK, 1024, System.currentTimeMillis());
+
+        //one registration for all the traders, the environment derives their names from it
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(SERVICE);
+        sd.setName(SERVICE);
+        sd.addLanguages(codec.getName());
+        sd.addLanguages(binaryCodec.getName());
+        sd.addProperties(new Property(TRADERS, "" + n));
+
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(this.getAID());
+        dfd.addServices(sd);
+
+        try {
+            DFService.register(this, dfd);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+
+        directory = new DirectoryCache(this);
+        directory.subscribe("environment");
+
+        addBehaviour(new StartTradingBehaviour());
+        addBehaviour(new ReplyBehaviour());
+        addBehaviour(new SchedulerBehaviour(this, SCHEDULER_TICK));
+    }
+
+    @Override
+    protected void takeDown() {
+        super.takeDown();
+        directory.cancel();
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** The name of the i-th trader of the host */
+    public static String getTraderName(AID host, int i) {
+        String name = host.getName();
+        int at = name.indexOf('@');
+        return at < 0 ? name + "." + i : name.substring(0, at) + "." + i + name.substring(at);
+    }
+
+    /**
+     * The index of the trader among the traders of the host (its name is the name of the host with the index), -1 if
+     * the name is not the name of a trader of the host
+     */
+    public static int getTraderIndex(String trader, AID host) {
+        String name = host.getName();
+        int at = name.indexOf('@');
+        String local = (at < 0 ? name : name.substring(0, at)) + ".";
+        String platform = at < 0 ? "" : name.substring(at);
+        if (!trader.startsWith(local) || !trader.endsWith(platform)
+                || trader.length() == local.length() + platform.length())
+            return -1;
+        for (int i = local.length(); i < trader.length() - platform.length(); i++) {
+            if (!Character.isDigit(trader.charAt(i)))
+                return -1;
+        }
+        try {
+            return Integer.parseInt(trader.substring(local.length(), trader.length() - platform.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** The number of traders of the host registered in the DF */
+    public static int getTraderCount(DFAgentDescription dfd) {
+        Iterator services = dfd.getAllServices();
+        while (services.hasNext()) {
+            Iterator props = ((ServiceDescription)services.next()).getAllProperties();
+            while (props.hasNext()) {
+                Property p = (Property)props.next();
+                if (TRADERS.equals(p.getName()) && p.getValue() != null) {
+                    return Integer.parseInt(p.getValue().toString());
+                }
+            }
+        }
+        return 0;
+    }
+
+    //the trader the conversation of a reply belongs to
+    Hosted getHosted(String conversationID) {
+        String prefix = getLocalName() + ".";
+        if (conversationID == null || !conversationID.startsWith(prefix))
+            return null;
+        try {
+            int i = Integer.parseInt(conversationID.substring(prefix.length()));
+            return i >= 0 && i < traders.length ? traders[i] : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    //the description of the environment (shard) in the DF, searched if the subscription did not bring it yet
+    DFAgentDescription describeEnvironment(AID env) {
+        DFAgentDescription dfd = directory.getDescription("environment", env);
+        if (dfd != null)
+            return dfd;
+        try {
+            DFAgentDescription template = new DFAgentDescription();
+            template.setName(env);
+            DFAgentDescription[] found = DFService.search(this, template);
+            return found.length > 0 ? found[0] : null;
+        } catch (FIPAException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    //sends the request of the trader to its home shard, the reply comes back in the conversation of the trader,
+    //returns the reply-with of the request (null if it was not sent)
+    String request(Hosted t, AgentAction action, String kind, long replyBy) {
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.addReceiver(t.env);
+        msg.setLanguage(preferBinary && directory.supportsLanguage("environment", t.env, binaryCodec.getName())
+                ? binaryCodec.getName() : codec.getName());
+        msg.setOntology(onto.getName());
+        msg.setProtocol(PROTOCOL);
+        msg.setConversationId(t.conversationID);
+        msg.setReplyWith(kind + requestSeq++);
+        msg.addUserDefinedParameter(Environment.TRADER_PARAM, t.name);
+        if (replyBy > 0)
+            msg.setReplyByDate(new Date(replyBy));
+
+        try {
+            getContentManager().fillContent(msg, new Action(t.env, action));
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+            return null;
+        } catch (OntologyException e) {
+            e.printStackTrace();
+            return null;
+        }
+        send(msg);
+        return msg.getReplyWith();
+    }
+
+    //asks the environment for the whole information of the trader
+    void requestInfo(Hosted t) {
+        if (t.refreshing)
+            return;
+        t.refreshing = true;
+        request(t, new GetMyInfo(), INFO, 0);
+    }
+
+    //starts the traders whose home is the shard which sent StartTrading
+    private class StartTradingBehaviour extends CyclicBehaviour {
+
+        MessageTemplate template = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                MessageTemplate.MatchOntology(onto.getName()));
+
+        @Override
+        public void action() {
+
+            ACLMessage request = myAgent.receive(template);
+            if (request == null) {
+                block();
+                return;
+            }
+
+            ACLMessage reply = request.createReply();
+            try {
+                ContentElement ce = getContentManager().extractContent(request);
+                if (!(ce instanceof Action) || !(((Action)ce).getAction() instanceof StartTrading)) {
+                    reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                    send(reply);
+                    return;
+                }
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+                return;
+            } catch (OntologyException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (startTime == 0)
+                startTime = now;
+
+            //the traders start at random times in the first period, so their ticks are spread evenly
+            AID env = request.getSender();
+            DFAgentDescription dfd = describeEnvironment(env);
+            int started = 0;
+            for (Hosted t : traders) {
+                if (t.env == null && ShardMap.isHome(dfd, t.name)) {
+                    t.env = env;
+                    wakeUps.schedule(t, now + (long)(rnd.nextDouble() * period));
+                    started++;
+                }
+            }
+
+            //reply that the traders are able to start trading (the message is ignored by the environment)
+            reply.setPerformative(ACLMessage.INFORM);
+            send(reply);
+            System.out.println(getLocalName() + ": " + started + " traders started by " + env.getLocalName());
+        }
+    }
+
+    //wakes up the traders whose time came, each one makes one decision and sleeps for another period
+    private class SchedulerBehaviour extends TickerBehaviour {
+
+        ArrayList<Hosted> due = new ArrayList<Hosted>();
+
+        public SchedulerBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+
+            long now = System.currentTimeMillis();
+            wakeUps.advance(now, due);
+            if (due.isEmpty())
+                return;
+
+            long started = System.nanoTime();
+            for (Hosted t : due) {
+                wake(t, now);
+                wakeUps.schedule(t, now + period);
+            }
+            due.clear();
+            Metrics.getInstance().record(Metrics.HOST_TICK, System.nanoTime() - started);
+        }
+    }
+
+    //one decision of the trader
+    void wake(Hosted t, long now) {
+
+        if (!t.isReady()) {
+            //the first information (or the request for it failed, the shard did not know the trader yet)
+            requestInfo(t);
+            return;
+        }
+
+        t.pricing.startRound(now);
+
+        if (directMarket) {
+            if (t.busyUntil < now)
+                buy(t, now);
+        } else {
+            placeOrders(t, now);
+        }
+    }
+
+    //buys one missing book from another trader of the host which has it and does not need it
+    void buy(Hosted buyer, long now) {
+
+        int n = buyer.goals.size();
+        int from = rnd.nextInt(Math.max(1, n));
+        for (int g = 0; g < n; g++) {
+            Goal goal = buyer.goals.get((from + g) % n);
+            int type = goal.getBook().getTypeID();
+            double buyPrice = buyer.pricing.getBuyPrice(type);
+            if (buyer.hasBook(type) || buyPrice <= 0)
+                continue;
+
+            for (int k = 0; k < PROBES; k++) {
+                Hosted seller = traders[rnd.nextInt(traders.length)];
+                if (seller == buyer || !seller.isReady() || seller.busyUntil >= now || seller.isGoal(type)
+                        || !seller.hasBook(type))
+                    continue;
+
+                //the prices of the seller are from its last decision
+                double sellPrice = seller.pricing.getSellPrice(type);
+                double price = (buyPrice + sellPrice) / 2;
+                if (sellPrice > buyPrice || price > buyer.money)
+                    continue;
+
+                for (BookInfo book : seller.books) {
+                    if (book.getTypeID() == type) {
+                        trade(buyer, seller, book, price, now);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    //both traders send their side of the trade to their home shards
+    void trade(Hosted buyer, Hosted seller, BookInfo book, double price, long now) {
+
+        String id = getLocalName() + "-trade-" + tradeSeq++;
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+        books.add(book);
+
+        MakeTransaction buy = new MakeTransaction();
+        buy.setTradeConversationID(id);
+        buy.setSenderName(buyer.name);
+        buy.setReceiverName(seller.name);
+        buy.setSendingBooks(new ArrayList<BookInfo>());
+        buy.setSendingMoney(price);
+        buy.setReceivingBooks(books);
+        buy.setReceivingMoney(0);
+
+        MakeTransaction sell = new MakeTransaction();
+        sell.setTradeConversationID(id);
+        sell.setSenderName(seller.name);
+        sell.setReceiverName(buyer.name);
+        sell.setSendingBooks(books);
+        sell.setSendingMoney(0);
+        sell.setReceivingBooks(new ArrayList<BookInfo>());
+        sell.setReceivingMoney(price);
+
+        //neither of them trades again until the environment answers
+        long replyBy = now + TRANSACTION_TTL;
+        buyer.busyUntil = replyBy;
+        seller.busyUntil = replyBy;
+        buyer.tradeStarted = System.nanoTime();
+        seller.tradeStarted = buyer.tradeStarted;
+        dropTrade(buyer);
+        dropTrade(seller);
+        buyer.tradeID = id;
+        seller.tradeID = id;
+        Metrics.getInstance().begin(id);
+
+        request(buyer, buy, TRADE, replyBy);
+        request(seller, sell, TRADE, replyBy);
+    }
+
+    //the trade of the trader ended without a result (it failed, or the trader gave up waiting for it)
+    void dropTrade(Hosted t) {
+        if (t.tradeID != null) {
+            Metrics.getInstance().drop(t.tradeID);
+            t.tradeID = null;
+        }
+    }
+
+    //places a bid for each missing goal and an ask for each type of book the trader does not need, an order which
+    //still rests in the order book is placed again only if its price moved (the environment replaces the old one)
+    void placeOrders(Hosted t, long now) {
+
+        if (t.orderID.length < BookCatalogue.size()) {
+            t.orderID = Arrays.copyOf(t.orderID, BookCatalogue.size());
+            t.orderPrice = Arrays.copyOf(t.orderPrice, BookCatalogue.size());
+            t.orderExpiry = Arrays.copyOf(t.orderExpiry, BookCatalogue.size());
+        }
+
+        //the orders rest for whole periods, they expire (silently) when the trader wakes up and places them again
+        long replyBy = now + Math.max(1, ORDER_TTL / period) * period;
+        for (Goal goal : t.goals) {
+            int type = goal.getBook().getTypeID();
+            double price = t.pricing.getBuyPrice(type);
+            if (t.hasBook(type) || price <= 0 || isResting(t, type, price, now))
+                continue;
+
+            BookInfo bi = new BookInfo();
+            bi.setBookName(goal.getBook().getBookName());
+            placeOrder(t, type, bi, true, price, replyBy);
+        }
+
+        boolean[] offered = new boolean[BookCatalogue.size()];
+        for (BookInfo book : t.books) {
+            int type = book.getTypeID();
+            if (t.isGoal(type) || type >= offered.length || offered[type])
+                continue;
+            offered[type] = true;
+            double price = t.pricing.getSellPrice(type);
+            if (!isResting(t, type, price, now))
+                placeOrder(t, type, book, false, price, replyBy);
+        }
+    }
+
+    boolean isResting(Hosted t, int type, double price, long now) {
+        return t.orderID[type] != null && t.orderExpiry[type] > now
+                && Math.abs(price - t.orderPrice[type]) <= PRICE_STEP * t.orderPrice[type];
+    }
+
+    void placeOrder(Hosted t, int type, BookInfo book, boolean bid, double price, long replyBy) {
+        PlaceOrder po = new PlaceOrder();
+        po.setBook(book);
+        po.setBid(bid);
+        po.setPrice(price);
+        //the type is a part of the reply-with, the reply tells which order is gone
+        t.orderID[type] = request(t, po, ORDER + type + ".", replyBy);
+        t.orderPrice[type] = price;
+        t.orderExpiry[type] = replyBy;
+    }
+
+    //passes the replies of the environment to the traders
+    private class ReplyBehaviour extends CyclicBehaviour {
+
+        MessageTemplate template = MessageTemplate.and(MessageTemplate.MatchProtocol(PROTOCOL),
+                MessageTemplate.not(MessageTemplate.MatchPerformative(ACLMessage.REQUEST)));
+
+        @Override
+        public void action() {
+
+            for (int i = 0; i < REPLY_BATCH; i++) {
+                ACLMessage msg = myAgent.receive(template);
+                if (msg == null) {
+                    block();
+                    return;
+                }
+                Hosted t = getHosted(msg.getConversationId());
+                if (t != null) {
+                    handleReply(t, msg);
+                }
+            }
+        }
+    }
+
+    void handleReply(Hosted t, ACLMessage reply) {
+
+        String kind = reply.getInReplyTo() == null ? "" : reply.getInReplyTo().substring(0, 1);
+        if (kind.equals(TRADE)) {
+            Metrics.getInstance().record(Metrics.TRANSACTION, System.nanoTime() - t.tradeStarted);
+            t.busyUntil = 0;
+            if (reply.getPerformative() == ACLMessage.INFORM) {
+                t.tradeID = null;
+            } else {
+                dropTrade(t);
+            }
+        } else if (kind.equals(INFO)) {
+            t.refreshing = false;
+        } else if (kind.equals(ORDER)) {
+            //the order was filled, replaced or refused, a reply to an older order of the type does not matter
+            String id = reply.getInReplyTo();
+            int type = Integer.parseInt(id.substring(1, id.indexOf('.')));
+            if (type < t.orderID.length && id.equals(t.orderID[type]))
+                t.orderID[type] = null;
+        }
+
+        if (reply.getPerformative() != ACLMessage.INFORM)
+            return;
+
+        try {
+            ContentElement ce = getContentManager().extractContent(reply);
+
+            if (ce instanceof Result) {
+                AgentInfo ai = (AgentInfo)((Result)ce).getValue();
+                boolean first = !t.isReady();
+                if (first || ai.getVersion() >= t.version) {
+                    t.setInfo(ai);
+                }
+                if (first) {
+                    t.pricing = new PricingEngine(PricingEngine.createCurve(curve));
+                    t.pricing.start(startTime, t.goalByType);
+                }
+                return;
+            }
+
+            //an update which does not follow the version of the trader, the whole information is requested
+            if (ce instanceof InfoUpdate && t.isReady() && t.applyUpdate((InfoUpdate)ce))
+                return;
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+
+        if (t.isReady())
+            requestInfo(t);
+    }
+}
@@ -0,0 +1,75 @@
+package mas.cv4;
+
+import mas.cv4.onto.TransactionInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Pairs the two MakeTransaction requests of a trade by their conversation ID.
+ *
+ * The first request of a trade waits here until the request of the other agent arrives or until it expires. This is
+ * the part of the environment between receiving a request and settling the trade (see Environment.HandleSendBehaviour),
+ * it does not need JADE, so the settlement can also be driven by recorded requests (see SettlementReplay).
+ *
+ * The matcher is not thread safe, the environment uses it only from its agent thread.
+ */
+public class TransactionMatcher {
+
+    HashMap<String, TransactionInfo> unfinished = new HashMap<String, TransactionInfo>();
+    //expiry of the unfinished transactions ordered by the time they were received
+    TimerWheel<TransactionInfo> timeouts;
+    long timeout;
+
+    /**
+     * @param timeout milliseconds to wait for the other side of a transaction
+     */
+    public TransactionMatcher(long timeout, long now) {
+        this.timeout = timeout;
+        this.timeouts = new TimerWheel<TransactionInfo>(1, 8192, now);
+    }
+
+    /**
+     * Adds the request of a transaction. If it is the first request of the trade, it is kept and null is returned,
+     * otherwise the first request is removed and returned (the trade can be settled).
+     */
+    public TransactionInfo match(TransactionInfo ti) {
+
+        String transactionID = ti.getSendOrder().getTradeConversationID();
+
+        TransactionInfo first = unfinished.remove(transactionID);
+        if (first == null) { //this is the first time we know about transaction
+            unfinished.put(transactionID, ti);
+            timeouts.schedule(ti, ti.getTimeReceived() + timeout);
+            Metrics.getInstance().stage(transactionID, Metrics.TRADE_FIRST_REQUEST);
+            return null;
+        }
+
+        Metrics.getInstance().record(Metrics.MATCH_WAIT, (ti.getTimeReceived() - first.getTimeReceived()) * 1000000);
+        Metrics.getInstance().stage(transactionID, Metrics.TRADE_MATCHED);
+        return first;
+    }
+
+    /** Removes the transactions which waited for the other side longer than the timeout and adds them to expired */
+    public void expire(long now, ArrayList<TransactionInfo> expired) {
+
+        int from = expired.size();
+        timeouts.advance(now, expired);
+
+        //the transaction may have been matched in the meantime (and the ID even used again)
+        for (int i = expired.size() - 1; i >= from; i--) {
+            TransactionInfo ti = expired.get(i);
+            String id = ti.getSendOrder().getTradeConversationID();
+            if (unfinished.get(id) == ti) {
+                unfinished.remove(id);
+            } else {
+                expired.remove(i);
+            }
+        }
+    }
+
+    /** The number of transactions waiting for the other side */
+    public int size() {
+        return unfinished.size();
+    }
+}
@@ -0,0 +1,287 @@
+package mas.cv4;
+
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.InfoUpdate;
+import mas.cv4.onto.MakeTransaction;
+import mas.cv4.onto.TransactionInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Settles the trades between the agents of two shards in two phases.
+ *
+ * As the coordinator (the shard which matched the trade) it asks the home shard of each agent to hold the books and
+ * money the agent sends (prepare), and commits the trade when both sides are held, or aborts it when a side cannot be
+ * held or its shard does not answer in time. The sides of the local agents are held and committed in the ledger
+ * directly. As a participant it holds, commits and aborts the sides of the local agents in the trades coordinated by
+ * other shards.
+ *
+ * The messages are sent and received by the environment (see Environment.TwoPhaseCommitMessages), this class only
+ * keeps the state of the trades and tells the listener what to send, so it does not need JADE. It is not thread safe,
+ * the environment uses it only from its agent thread.
+ */
+public class TwoPhaseCommit {
+
+    /** Told what to send to the other shards and to the local agents (called from the methods of the commit) */
+    public interface Listener {
+
+        /** Asks the home shard of the side to hold what its agent sends */
+        void prepare(Trade t, int side);
+
+        /** Tells the home shard of the side to commit, its agent receives the books and money */
+        void commit(Trade t, int side, ArrayList<BookInfo> receivedBooks, double receivedMoney);
+
+        /** Tells the home shard of the side to release the hold (also a shard which did not vote yet) */
+        void abort(Trade t, int side, String failure);
+
+        /** The trade of a local agent was committed, its record ends at the position of the journal (-1 if none) */
+        void committed(TransactionInfo ti, InfoUpdate update, long journalPosition);
+
+        /** The trade of a local agent failed */
+        void failed(TransactionInfo ti, String failure);
+    }
+
+    /** One of the agents of a trade coordinated by this shard */
+    public static class Side {
+
+        public final TransactionInfo ti;
+        public final String agent;
+        public final int shard;
+        //the hold of a local agent
+        Ledger.Hold hold;
+        //the books (as they are in the ledger of the agent) and the money the agent sends, known once they are held
+        ArrayList<BookInfo> books;
+        double money;
+        boolean prepared = false;
+
+        Side(TransactionInfo ti, ShardMap shardMap) {
+            this.ti = ti;
+            this.agent = ti.getSendOrder().getSenderName();
+            this.shard = shardMap.shardOf(agent);
+        }
+
+        void prepared(ArrayList<BookInfo> books, double money) {
+            this.books = books;
+            this.money = money;
+            this.prepared = true;
+        }
+    }
+
+    /** A trade between the agents of two shards coordinated by this shard */
+    public static class Trade {
+
+        public final String id;
+        public final Side[] sides;
+        final long started = System.nanoTime();
+        //the reason of the failure of the first phase (null if none failed yet)
+        String failure;
+
+        Trade(String id, Side first, Side second) {
+            this.id = id;
+            this.sides = new Side[]{first, second};
+        }
+
+        void fail(String reason) {
+            if (failure == null) {
+                failure = reason;
+            }
+        }
+
+        //the trade fails as soon as one side cannot be held, it is committed when both sides are held
+        boolean isDecided() {
+            return failure != null || (sides[0].prepared && sides[1].prepared);
+        }
+    }
+
+    /** The hold of a local agent in a trade coordinated by another shard */
+    public static class Prepared {
+
+        final Ledger.Hold hold;
+        final String tradeID;
+        //the change of the information of the agent, once committed
+        InfoUpdate update;
+
+        Prepared(Ledger.Hold hold, String tradeID) {
+            this.hold = hold;
+            this.tradeID = tradeID;
+        }
+
+        public InfoUpdate getUpdate() {
+            return update;
+        }
+
+        public long getJournalPosition() {
+            return hold.journalPosition;
+        }
+    }
+
+    ShardMap shardMap;
+    Ledger ledger;
+    Listener listener;
+    //the committed sides are appended here (null = no journal)
+    Journal journal;
+    long timeout;
+    //the trades coordinated by this shard and their expiry
+    HashMap<String, Trade> trades = new HashMap<String, Trade>();
+    TimerWheel<Trade> timeouts;
+    long seq = 0;
+    //the holds of the local agents in the trades coordinated by other shards, by the ID of the side
+    HashMap<String, Prepared> prepared = new HashMap<String, Prepared>();
+
+    /**
+     * @param timeout milliseconds to wait for the votes of the other shards
+     */
+    public TwoPhaseCommit(ShardMap shardMap, Ledger ledger, long timeout, long now, Listener listener) {
+        this.shardMap = shardMap;
+        this.ledger = ledger;
+        this.timeout = timeout;
+        this.listener = listener;
+        this.timeouts = new TimerWheel<Trade>(1, 8192, now);
+    }
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Starts the trade of two matched transactions (at least one of the agents belongs to another shard). The sides of
+     * the local agents are held first, if they cannot send what they promised, the other shards are not asked at all.
+     */
+    public Trade begin(TransactionInfo first, TransactionInfo second, long now) {
+
+        Trade t = new Trade(shardMap.getShard() + "-" + seq++, new Side(first, shardMap), new Side(second, shardMap));
+        trades.put(t.id, t);
+        timeouts.schedule(t, now + timeout);
+
+        for (Side side : t.sides) {
+            if (shardMap.isLocal(side.agent)) {
+                MakeTransaction mt = side.ti.getSendOrder();
+                side.hold = ledger.prepare(side.agent, mt.getSendingBooks(), mt.getSendingMoney());
+                if (side.hold.failure != null) {
+                    t.fail(side.hold.failure);
+                } else {
+                    side.prepared(side.hold.books, side.hold.money);
+                }
+            }
+        }
+
+        for (int i = 0; i < t.sides.length && t.failure == null; i++) {
+            if (t.sides[i].hold == null) {
+                listener.prepare(t, i);
+            }
+        }
+
+        if (t.isDecided()) {
+            decide(t);
+        }
+        return t;
+    }
+
+    /** The home shard of the side of the trade held the books (as they are in its ledger) and money of its agent */
+    public void agreed(String tradeID, int side, ArrayList<BookInfo> books, double money) {
+        Trade t = trades.get(tradeID);
+        if (t == null) {
+            return; //decided already (aborted), the abort releases the hold
+        }
+        t.sides[side].prepared(books, money);
+        if (t.isDecided()) {
+            decide(t);
+        }
+    }
+
+    /** The home shard of the side of the trade could not hold what its agent sends */
+    public void refused(String tradeID, int side, String failure) {
+        Trade t = trades.get(tradeID);
+        if (t == null) {
+            return;
+        }
+        t.fail(failure);
+        decide(t);
+    }
+
+    /** Aborts the trades whose shards did not vote in time, returns their number */
+    public int expire(long now) {
+
+        ArrayList<Trade> expired = new ArrayList<Trade>();
+        timeouts.advance(now, expired);
+
+        int aborted = 0;
+        for (Trade t : expired) {
+            if (trades.get(t.id) == t) {
+                t.fail("shard did not answer in time");
+                decide(t);
+                aborted++;
+            }
+        }
+        return aborted;
+    }
+
+    //the second phase of the trade, the sides are committed (or aborted) and their agents informed by their shards
+    void decide(Trade t) {
+
+        trades.remove(t.id);
+        Metrics.getInstance().record(Metrics.TWO_PHASE_COMMIT, System.nanoTime() - t.started);
+        Metrics.getInstance().count(t.failure == null ? Metrics.TRADES_SETTLED : Metrics.TRADES_FAILED);
+        Metrics.getInstance().count(Metrics.TRADES_CROSS_SHARD);
+        Metrics.getInstance().end(t.sides[0].ti.getSendOrder().getTradeConversationID(), Metrics.TRADE_REPLIED);
+
+        for (int i = 0; i < t.sides.length; i++) {
+            Side side = t.sides[i];
+            //the agent receives what the other one sent
+            Side other = t.sides[1 - i];
+
+            if (side.hold != null) {
+                if (t.failure == null) {
+                    InfoUpdate update = ledger.commit(side.hold, other.books, other.money, journal,
+                            side.ti.getSendOrder().getTradeConversationID());
+                    listener.committed(side.ti, update, side.hold.journalPosition);
+                } else {
+                    if (side.hold.failure == null) {
+                        ledger.abort(side.hold);
+                    }
+                    listener.failed(side.ti, t.failure);
+                }
+            } else if (t.failure == null) {
+                listener.commit(t, i, other.books, other.money);
+            } else {
+                listener.abort(t, i, t.failure);
+            }
+        }
+    }
+
+    /**
+     * The first phase of a trade coordinated by another shard: holds the books and money the local agent sends. The
+     * hold is kept under the ID of the side (unless it failed), the returned hold has the books as they are in the
+     * ledger.
+     */
+    public Ledger.Hold prepare(String sideID, MakeTransaction mt) {
+        Ledger.Hold hold = ledger.prepare(mt.getSenderName(), mt.getSendingBooks(), mt.getSendingMoney());
+        if (hold.failure == null) {
+            prepared.put(sideID, new Prepared(hold, mt.getTradeConversationID()));
+        }
+        return hold;
+    }
+
+    /** Commits the held side, the agent receives the books and money, returns null if the side is not held */
+    public Prepared commit(String sideID, ArrayList<BookInfo> receivedBooks, double receivedMoney) {
+        Prepared p = prepared.remove(sideID);
+        if (p != null) {
+            p.update = ledger.commit(p.hold, receivedBooks, receivedMoney, journal, p.tradeID);
+        }
+        return p;
+    }
+
+    /** Releases the held side (if it was held) */
+    public void abort(String sideID) {
+        Prepared p = prepared.remove(sideID);
+        if (p != null) {
+            ledger.abort(p.hold);
+        }
+    }
+
+    /** The number of the trades coordinated by this shard which are not decided yet */
+    public int size() {
+        return trades.size();
+    }
+}
@@ -1,10 +1,9 @@
 package mas.cv4;
 
-import mas.cv4.onto.BookInfo;
 import mas.cv4.onto.AgentInfo;
 import mas.cv4.onto.Goal;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Created by Martin Pilat on 15.4.14.
@@ -23,18 +22,11 @@ public class Utils {
 
         double util = ai.getMoney();
 
-        ArrayList<Goal> goals = ai.getGoals();
-        ArrayList<BookInfo> books = ai.getBooks();
-
-        boolean allGoals = true;
-        for (Goal g : goals) {
-
-            for (int i = 0; i < books.size(); i++) {
-                if (books.get(i).getBookName().equals(g.getBook().getBookName())) {
-                    util += g.getValue();
-                    break;
-                }
-                allGoals = false;
+        //the books are counted by their type, so each goal is checked by one array access
+        int[] owned = ai.countBooksByType();
+        for (Goal g : ai.getGoals()) {
+            if (owns(owned, g.getBook().getTypeID())) {
+                util += g.getValue();
             }
         }
 
@@ -44,21 +36,43 @@ public class Utils {
 
     public static boolean hasAllBooks(AgentInfo ai) {
 
-        ArrayList<Goal> goals = ai.getGoals();
-        ArrayList<BookInfo> books = ai.getBooks();
+        int[] owned = ai.countBooksByType();
+        for (Goal g : ai.getGoals()) {
+            if (!owns(owned, g.getBook().getTypeID())) {
+                return false;
+            }
+        }
+
+        return true;
 
-        int nBooks = 0;
-        for (Goal g : goals) {
+    }
 
-            for (int i = 0; i < books.size(); i++) {
-                if (books.get(i).getBookName().equals(g.getBook().getBookName())) {
-                    nBooks++;
-                    break;
-                }
+    private static boolean owns(int[] counts, int type) {
+        return type < counts.length && counts[type] > 0;
+    }
+
+    /** Parses agent arguments of the form key=value (a single key means key=true) */
+    public static HashMap<String, String> parseArguments(Object[] args) {
+
+        HashMap<String, String> parsed = new HashMap<String, String>();
+        if (args == null)
+            return parsed;
+
+        for (Object arg : args) {
+            String s = arg.toString().trim();
+            int eq = s.indexOf('=');
+            if (eq < 0) {
+                parsed.put(s, "true");
+            } else {
+                parsed.put(s.substring(0, eq).trim(), s.substring(eq + 1).trim());
             }
         }
 
-        return nBooks == goals.size();
+        return parsed;
+    }
 
+    public static String getArgument(HashMap<String, String> args, String key, String defaultValue) {
+        String value = args.get(key);
+        return value == null ? defaultValue : value;
     }
 }
@@ -2,8 +2,10 @@ package mas.cv4.onto;
 
 import jade.content.Concept;
 import jade.content.onto.annotations.Slot;
+import mas.cv4.BookCatalogue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Created by Martin Pilat on 12.2.14.
@@ -15,6 +17,7 @@ public class AgentInfo implements Concept {
     ArrayList<BookInfo> books;
     ArrayList<Goal> goals;
     double money;
+    int version;
 
     @Slot(mandatory = true)
     public ArrayList<BookInfo> getBooks() {
@@ -43,6 +46,29 @@ public class AgentInfo implements Concept {
         this.money = money;
     }
 
+    /** Version of the information, increased by each transaction of the agent */
+    @Slot(mandatory = false)
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    /** The number of owned books of each type (indexed by BookInfo.getTypeID()) */
+    public int[] countBooksByType() {
+        int[] counts = new int[BookCatalogue.size()];
+        for (BookInfo bi : books) {
+            int type = bi.getTypeID();
+            if (type >= counts.length) {
+                counts = Arrays.copyOf(counts, BookCatalogue.size());
+            }
+            counts[type]++;
+        }
+        return counts;
+    }
+
     public String toString() {
 
         String ret = "books: ";
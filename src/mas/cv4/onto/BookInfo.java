@@ -2,6 +2,8 @@ package mas.cv4.onto;
 
 import jade.content.Concept;
 import jade.content.onto.annotations.Slot;
+import jade.content.onto.annotations.SuppressSlot;
+import mas.cv4.BookCatalogue;
 
 /**
  * Created by Martin Pilat on 12.2.14.
@@ -12,6 +14,8 @@ public class BookInfo implements Concept {
 
     private String bookName;
     private int bookID;
+    //type of the book (see BookCatalogue), found when it is needed for the first time
+    private int typeID = -1;
 
     @Slot(mandatory = true)
     public String getBookName() {
@@ -20,6 +24,16 @@ public class BookInfo implements Concept {
 
     public void setBookName(String bookName) {
         this.bookName = bookName;
+        this.typeID = -1;
+    }
+
+    /** The type ID of the book, books with the same name have the same type */
+    @SuppressSlot
+    public int getTypeID() {
+        if (typeID < 0) {
+            typeID = BookCatalogue.getTypeID(bookName);
+        }
+        return typeID;
     }
 
     public int getBookID() {
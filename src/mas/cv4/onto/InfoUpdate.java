@@ -0,0 +1,55 @@
+package mas.cv4.onto;
+
+import jade.content.Predicate;
+import jade.content.onto.annotations.Slot;
+
+import java.util.ArrayList;
+
+/**
+ * Changes of the agent information caused by one transaction, sent by the environment together with the result of
+ * the transaction. The version is the version of the agent information after the change, an agent which missed a
+ * version has to ask for the whole information (GetMyInfo).
+ */
+public class InfoUpdate implements Predicate {
+
+    ArrayList<BookInfo> addedBooks;
+    ArrayList<BookInfo> removedBooks;
+    double moneyChange;
+    int version;
+
+    @Slot(mandatory = true)
+    public ArrayList<BookInfo> getAddedBooks() {
+        return addedBooks;
+    }
+
+    public void setAddedBooks(ArrayList<BookInfo> addedBooks) {
+        this.addedBooks = addedBooks;
+    }
+
+    @Slot(mandatory = true)
+    public ArrayList<BookInfo> getRemovedBooks() {
+        return removedBooks;
+    }
+
+    public void setRemovedBooks(ArrayList<BookInfo> removedBooks) {
+        this.removedBooks = removedBooks;
+    }
+
+    @Slot(mandatory = true)
+    public double getMoneyChange() {
+        return moneyChange;
+    }
+
+    public void setMoneyChange(double moneyChange) {
+        this.moneyChange = moneyChange;
+    }
+
+    @Slot(mandatory = true)
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,51 @@
+package mas.cv4.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * Request (to the environment) to buy or sell one book in the order book of its title.
+ *
+ * A bid is an order to buy a book with the name for at most the price, an ask is an order to sell the book (with the
+ * ID) for at least the price. The order replaces the previous order of the agent for the same title and side, it stays
+ * in the book until it is filled or the reply-by time of the request passes. The environment answers with the changes
+ * of the agent information (InfoUpdate) when the order is filled, or with FAILURE when it is replaced or cannot be
+ * settled.
+ */
+public class PlaceOrder implements AgentAction {
+
+    BookInfo book;
+    boolean bid;
+    double price;
+
+    @Slot(mandatory = true)
+    public BookInfo getBook() {
+        return book;
+    }
+
+    public void setBook(BookInfo book) {
+        this.book = book;
+    }
+
+    @Slot(mandatory = true)
+    public boolean isBid() {
+        return bid;
+    }
+
+    public void setBid(boolean bid) {
+        this.bid = bid;
+    }
+
+    @Slot(mandatory = true)
+    public double getPrice() {
+        return price;
+    }
+
+    public void setPrice(double price) {
+        this.price = price;
+    }
+
+    public String toString() {
+        return (bid ? "bid " : "ask ") + book + " for " + price;
+    }
+}